@@ -20,11 +20,35 @@ application {
     mainClass.set("com.crokoking.datastore.export.translator.Main")
 }
 
+//JMH benchmarks of the hot paths, in the package of the main classes. Run with "gradle jmh", pass JMH options with
+//-Pjmh="EntityJsonBenchmark -p shape=WIDE". Not part of the regular build.
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets["main"].output
+    runtimeClasspath += sourceSets["main"].output
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations["implementation"])
+configurations["jmhRuntimeOnly"].extendsFrom(configurations["runtimeOnly"])
+
 tasks {
     create("runValidations", JavaExec::class) {
         mainClass.set("com.crokoking.datastore.export.translator.ValidatorMain")
         classpath = sourceSets["main"].runtimeClasspath
     }
+    create("runScaleTest", JavaExec::class) {
+        mainClass.set("com.crokoking.datastore.export.translator.ScaleTestMain")
+        classpath = sourceSets["main"].runtimeClasspath
+    }
+    create("jmh", JavaExec::class) {
+        mainClass.set("org.openjdk.jmh.Main")
+        classpath = jmh.runtimeClasspath
+        //Reports the allocation rate next to the throughput
+        args("-prof", "gc", "-rf", "json", "-rff", layout.buildDirectory.file("jmh-result.json").get().asFile.path)
+        val options = project.findProperty("jmh")?.toString()
+        if (options != null) {
+            args(options.split(" ").filter { it.isNotBlank() })
+        }
+    }
 }
 
 @Suppress("VulnerableLibrariesLocal")
@@ -36,6 +60,10 @@ dependencies {
 
     testImplementation("org.junit.jupiter:junit-jupiter:5.9.2")
     testImplementation("com.google.appengine:appengine-testing:2.0.12")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhImplementation"("com.google.appengine:appengine-testing:2.0.12")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 tasks.test {
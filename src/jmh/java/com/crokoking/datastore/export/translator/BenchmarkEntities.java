@@ -0,0 +1,29 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Entities of the shapes of {@link ExportGenerator}. Keys are created for the app of the current environment, which
+ * the benchmarks register with a LocalServiceTestHelper.
+ */
+public final class BenchmarkEntities {
+    public static final int ENTITY_COUNT = 64;
+
+    private BenchmarkEntities() {
+    }
+
+    public static List<Entity> generate(ExportGenerator.Shape shape) {
+        final String appId = ApiProxy.getCurrentEnvironment().getAppId();
+        final Random random = new Random(42);
+        final List<Entity> entities = new ArrayList<>(ENTITY_COUNT);
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            entities.add(ExportGenerator.createEntity(appId, shape.name(), shape, i + 1L, random));
+        }
+        return entities;
+    }
+}
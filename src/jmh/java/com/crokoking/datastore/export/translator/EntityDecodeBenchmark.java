@@ -0,0 +1,93 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.stream.JsonWriter;
+import com.google.storage.onestore.v3.OnestoreEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of export records, the work of the translator's decoder threads
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityDecodeBenchmark {
+    @Param({"WIDE", "DEEP_ANCESTOR", "BLOB_HEAVY", "COLLECTION_HEAVY"})
+    public ExportGenerator.Shape shape;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+    private final DecodeContext decodeContext = new DecodeContext();
+    private final StringWriter buffer = new StringWriter();
+    private final JsonWriter jsonWriter = new JsonWriter(buffer);
+    private final EntityProtoJsonWriter protoJsonWriter = new EntityProtoJsonWriter(jsonWriter);
+    private ByteBuffer[] records;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        helper.setUp();
+        final List<Entity> entities = BenchmarkEntities.generate(shape);
+        records = new ByteBuffer[entities.size()];
+        for (int i = 0; i < entities.size(); i++) {
+            records[i] = ByteBuffer.wrap(EntityTranslator.convertToPb(entities.get(i)).toByteArray());
+        }
+        jsonWriter.setLenient(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Decodes a record into an entity, as the JSON writer and the validator need it
+     */
+    @Benchmark
+    public Entity toEntity() {
+        final ByteBuffer record = nextRecord();
+        return decodeContext.toEntity(record, 0, record.capacity());
+    }
+
+    /**
+     * Decodes a record and writes it as JSON straight from the proto, as the translator does
+     */
+    @Benchmark
+    public int decodeAndSerialize() throws IOException {
+        final ByteBuffer record = nextRecord();
+        final OnestoreEntity.EntityProto entityProto = decodeContext.decode(record, 0, record.capacity());
+        final Key key = decodeContext.toKey(entityProto.getKey());
+        buffer.getBuffer().setLength(0);
+        protoJsonWriter.serializeEntity(entityProto, key);
+        jsonWriter.flush();
+        return buffer.getBuffer().length();
+    }
+
+    private ByteBuffer nextRecord() {
+        index = (index + 1) % records.length;
+        return records[index];
+    }
+}
@@ -0,0 +1,98 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing entities as JSON and reading them back
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityJsonBenchmark {
+    @Param({"WIDE", "DEEP_ANCESTOR", "BLOB_HEAVY", "COLLECTION_HEAVY"})
+    public ExportGenerator.Shape shape;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+    private final StringWriter buffer = new StringWriter();
+    private final JsonWriter jsonWriter = new JsonWriter(buffer);
+    private final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
+    //Shared by the readers of the single entities, like the chunk readers of ParallelEntityJsonReader
+    private final KeyCache keyCache = new KeyCache(EntityJsonReader.DEFAULT_KEY_CACHE_SIZE);
+    private List<Entity> entities;
+    private String[] entityJson;
+    private String[] keyJson;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        helper.setUp();
+        jsonWriter.setLenient(true);
+        entities = BenchmarkEntities.generate(shape);
+        entityJson = new String[entities.size()];
+        keyJson = new String[entities.size()];
+        for (int i = 0; i < entities.size(); i++) {
+            buffer.getBuffer().setLength(0);
+            entityJsonWriter.serializeEntity(entities.get(i));
+            jsonWriter.flush();
+            entityJson[i] = buffer.toString();
+            buffer.getBuffer().setLength(0);
+            entityJsonWriter.serializeKey(entities.get(i).getKey());
+            jsonWriter.flush();
+            keyJson[i] = buffer.toString();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public int serializeEntity() throws IOException {
+        buffer.getBuffer().setLength(0);
+        entityJsonWriter.serializeEntity(entities.get(nextIndex()));
+        jsonWriter.flush();
+        return buffer.getBuffer().length();
+    }
+
+    @Benchmark
+    public Entity deserializeEntity() throws IOException {
+        return new EntityJsonReader(new JsonReader(new StringReader(entityJson[nextIndex()])), keyCache, null).deserializeEntity();
+    }
+
+    @Benchmark
+    public Key deserializeKey() throws IOException {
+        return new EntityJsonReader(new JsonReader(new StringReader(keyJson[nextIndex()])), keyCache, null).deserializeKey();
+    }
+
+    private int nextIndex() {
+        index = (index + 1) % entities.size();
+        return index;
+    }
+}
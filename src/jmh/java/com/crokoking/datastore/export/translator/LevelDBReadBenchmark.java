@@ -0,0 +1,95 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.iq80.leveldb.impl.LogWriter;
+import org.iq80.leveldb.impl.Logs;
+import org.iq80.leveldb.util.Slice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the records of an export file, reported per record
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LevelDBReadBenchmark {
+    private static final int RECORDS = 4096;
+
+    @Param({"WIDE", "BLOB_HEAVY"})
+    public ExportGenerator.Shape shape;
+
+    private Path logFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+        helper.setUp();
+        try {
+            final List<Entity> entities = BenchmarkEntities.generate(shape);
+            logFile = Files.createTempFile("benchmark", ".log");
+            final LogWriter logWriter = Logs.createLogWriter(logFile.toFile(), 1);
+            try {
+                for (int i = 0; i < RECORDS; i++) {
+                    final byte[] record = EntityTranslator.convertToPb(entities.get(i % entities.size())).toByteArray();
+                    logWriter.addRecord(new Slice(record), false);
+                }
+            } finally {
+                logWriter.close();
+            }
+        } finally {
+            helper.tearDown();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void readRecords(Blackhole blackhole) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            new MappedLogReader(channel).read((buffer, offset, length) -> blackhole.consume(length));
+        }
+    }
+
+    /**
+     * Reads the records and only the kind of each, as the kind filter does before a record is decoded
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void readRecordKinds(Blackhole blackhole) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            new MappedLogReader(channel).read((buffer, offset, length) ->
+                blackhole.consume(EntityProtoKindReader.readKind(buffer, offset, length)));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes to a file channel on a dedicated I/O thread. Output is collected in large reusable buffers, full buffers are
+ * handed to the I/O thread, so the writing thread only waits for the disk when every buffer is in flight. Buffers are
+ * allocated as they are needed, up to the configured count. Strings are encoded as UTF-8 straight into the buffers.
+ * The channel is closed with the stream.
+ */
+class AsyncChannelOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final int DEFAULT_BUFFER_COUNT = 2;
+    private static final int MIN_BUFFER_SIZE = 1024;
+    //Marks the end of the output in the queue of full buffers, compared by identity
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final int bufferSize;
+    private final int bufferCount;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ByteBuffer> fullBuffers = new LinkedBlockingQueue<>();
+    //Replaces unpaired surrogates like String.getBytes does
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final Thread ioThread;
+    private volatile IOException failure;
+    //Writing thread
+    private ByteBuffer current;
+    private int allocatedBuffers;
+    private long handedOff;
+    private boolean closed;
+    //Guarded by this
+    private long written;
+
+    public AsyncChannelOutputStream(FileChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount number of buffers, at least 2 to fill one while another one is written
+     */
+    public AsyncChannelOutputStream(FileChannel channel, int bufferSize, int bufferCount) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + ": " + bufferSize);
+        }
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("At least 2 buffers are needed: " + bufferCount);
+        }
+        this.channel = channel;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.current = ByteBuffer.allocate(bufferSize);
+        this.allocatedBuffers = 1;
+        this.ioThread = new Thread(this::run, "output-writer");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!current.hasRemaining()) {
+            handOff();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+            final int count = Math.min(length, current.remaining());
+            current.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Encodes the string as UTF-8 into the buffers
+     *
+     * @return number of bytes written
+     */
+    public long writeUtf8(String string) throws IOException {
+        final CharBuffer chars = CharBuffer.wrap(string);
+        long bytes = 0;
+        encoder.reset();
+        boolean flushing = false;
+        while (true) {
+            final int start = current.position();
+            final CoderResult result = flushing ? encoder.flush(current) : encoder.encode(chars, current, true);
+            bytes += current.position() - start;
+            if (result.isOverflow()) {
+                handOff();
+            } else if (result.isUnderflow()) {
+                if (flushing) {
+                    return bytes;
+                }
+                flushing = true;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Hands the buffered output to the I/O thread and waits until everything is written to the channel
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.position() > 0) {
+            handOff();
+        }
+        try {
+            synchronized (this) {
+                while (written < handedOff) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output to be written");
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            fullBuffers.add(END);
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                ioThread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private void handOff() throws IOException {
+        checkFailure();
+        current.flip();
+        fullBuffers.add(current);
+        handedOff++;
+        ByteBuffer next = freeBuffers.poll();
+        if (next == null && allocatedBuffers < bufferCount) {
+            next = ByteBuffer.allocate(bufferSize);
+            allocatedBuffers++;
+        }
+        if (next == null) {
+            try {
+                next = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free output buffer");
+            }
+        }
+        current = next;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing the output failed", failure);
+        }
+    }
+
+    private void run() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = fullBuffers.take()) != END) {
+                //After a failure the buffers are still returned so that the writing thread does not block
+                if (failure == null) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                buffer.clear();
+                freeBuffers.add(buffer);
+                synchronized (this) {
+                    written++;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
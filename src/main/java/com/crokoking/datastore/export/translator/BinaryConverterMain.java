@@ -0,0 +1,91 @@
+package com.crokoking.datastore.export.translator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts a JSON output of the translator into the binary entity format of {@link EntityBinaryWriter}
+ */
+public class BinaryConverterMain {
+    public static void main(String[] args) {
+        final Option help = Option.builder().option("help").desc("Print help").build();
+        final Option input = Option.builder().option("input").hasArg().desc("JSON input file, may be gzip compressed").required().build();
+        final Option output = Option.builder().option("output").hasArg().desc("Binary output file").required().build();
+
+        final Options options = new Options();
+        options.addOption(help);
+        options.addOption(input);
+        options.addOption(output);
+
+        final CommandLine commandLine;
+        try {
+            final DefaultParser parser = new DefaultParser();
+            commandLine = parser.parse(options, args);
+        } catch (ParseException e) {
+            printHelp(options);
+            return;
+        }
+
+        if (commandLine.hasOption(help)) {
+            printHelp(options);
+            return;
+        }
+
+        final String inputPathString = commandLine.getOptionValue(input);
+        final Path inputPath = Paths.get(inputPathString);
+        if (!Files.isRegularFile(inputPath)) {
+            System.err.println("Input file is not a file: " + inputPathString);
+            return;
+        }
+        final Path outputPath = Paths.get(commandLine.getOptionValue(output));
+
+        try {
+            final long converted = convert(inputPath, outputPath);
+            System.out.println("Converted " + converted + " entities");
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * @return number of converted entities
+     */
+    public static long convert(Path jsonPath, Path binaryPath) throws IOException {
+        final AtomicLong converted = new AtomicLong();
+        try (BufferedReader bufferedReader = CompressedFiles.newReader(jsonPath);
+             EntityBinaryWriter writer = new EntityBinaryWriter(new BufferedOutputStream(Files.newOutputStream(binaryPath), 1 << 16))) {
+            final EntityJsonReader entityJsonReader = new EntityJsonReader(bufferedReader);
+            try {
+                entityJsonReader.deserializeEntities(entity -> {
+                    try {
+                        writer.serializeEntity(entity);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    converted.incrementAndGet();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return converted.get();
+    }
+
+    private static void printHelp(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("BinaryConverter", options, true);
+    }
+}
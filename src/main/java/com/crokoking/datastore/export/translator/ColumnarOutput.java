@@ -0,0 +1,366 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes the entities of every kind into a directory of column files, one per property and one for the keys named
+ * {@value #KEY_COLUMN}. Rows are buffered per kind and written as one chunk per column every {@value #ROW_GROUP_SIZE}
+ * entities. Once {@value #MAX_BUFFERED_ROWS} rows are buffered over all kinds, the kind with the most rows is written
+ * early, so row groups can be smaller. Column files are only open while a chunk is appended. When closed, a {@value #SCHEMA_FILE_NAME} with the inferred schema of every kind is written, read by
+ * {@link ColumnarReader}. A chunk is:
+ * <pre>
+ * chunk  := length:varint rows:varint hasValue:bitset repeated:bitset (elements:varint)* encoding:u8 values
+ * </pre>
+ * The hasValue bitset marks the rows with a value that is not null, the repeated bitset the rows among them whose
+ * value is a collection, followed by the number of elements of each. The values are the single values and the
+ * collection elements in row order. They are encoded by type if they all have the same type: deltas of longs and
+ * dates, a bitset of booleans, a dictionary of strings with few distinct values, doubles as their bits and keys as
+ * key strings. Values of mixed types are written as compact JSON with their type tag.
+ */
+class ColumnarOutput implements Closeable {
+    public static final String SCHEMA_FILE_NAME = "schema.json";
+    public static final String KEY_COLUMN = "__key__";
+    static final int ROW_GROUP_SIZE = 1024;
+    static final int MAX_BUFFERED_ROWS = 4 * ROW_GROUP_SIZE;
+
+    static final int EMPTY = 0;
+    static final int MIXED = 1;
+    static final int LONG_DELTA = 2;
+    static final int DATE_DELTA = 3;
+    static final int BOOLEAN_BITSET = 4;
+    static final int STRING_DICTIONARY = 5;
+    static final int STRING_PLAIN = 6;
+    static final int DOUBLE_PLAIN = 7;
+    static final int KEY_STRINGS = 8;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final Map<String, KindColumns> kinds = new LinkedHashMap<>();
+    private final Set<String> usedDirectories = new HashSet<>();
+    private int bufferedRows;
+    //Encodes values of mixed columns
+    private final StringWriter jsonBuffer = new StringWriter();
+    private final JsonWriter jsonWriter = new JsonWriter(jsonBuffer);
+    private final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
+    private final EntityBinaryWriter.RecordBuffer chunk = new EntityBinaryWriter.RecordBuffer();
+
+    public ColumnarOutput(Path directory) {
+        this.directory = directory;
+        entityJsonWriter.setCompact(true);
+        jsonWriter.setLenient(true);
+    }
+
+    public void write(String kind, Entity entity) throws IOException {
+        KindColumns columns = kinds.get(kind);
+        if (columns == null) {
+            columns = new KindColumns(kind, uniqueDirectory(kind));
+            kinds.put(kind, columns);
+        }
+        columns.add(entity);
+        if (bufferedRows >= MAX_BUFFERED_ROWS) {
+            KindColumns largest = columns;
+            for (KindColumns candidate : kinds.values()) {
+                if (candidate.buffered.size() > largest.buffered.size()) {
+                    largest = candidate;
+                }
+            }
+            largest.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (KindColumns columns : kinds.values()) {
+            try {
+                columns.flush();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        writeSchema();
+    }
+
+    private void writeSchema() throws IOException {
+        try (Writer writer = Files.newBufferedWriter(directory.resolve(SCHEMA_FILE_NAME), StandardCharsets.UTF_8);
+             JsonWriter schemaWriter = new JsonWriter(writer)) {
+            schemaWriter.setIndent(" ");
+            schemaWriter.beginObject();
+            schemaWriter.name("kinds");
+            schemaWriter.beginArray();
+            for (KindColumns columns : kinds.values()) {
+                schemaWriter.beginObject();
+                schemaWriter.name("kind").value(columns.kind);
+                schemaWriter.name("directory").value(columns.directoryName);
+                schemaWriter.name("rows").value(columns.rows);
+                schemaWriter.name("rowGroups").value(columns.rowGroups);
+                schemaWriter.name("columns");
+                schemaWriter.beginArray();
+                for (Column column : columns.columns.values()) {
+                    schemaWriter.beginObject();
+                    schemaWriter.name("name").value(column.name);
+                    schemaWriter.name("file").value(column.fileName);
+                    schemaWriter.name("firstRow").value(column.firstRow);
+                    schemaWriter.name("types");
+                    schemaWriter.beginArray();
+                    for (String type : column.types) {
+                        schemaWriter.value(type);
+                    }
+                    schemaWriter.endArray();
+                    //Rows before the first chunk of the column do not have the property
+                    schemaWriter.name("nullable").value(column.nullable || column.firstRow > 0);
+                    schemaWriter.name("repeated").value(column.repeated);
+                    schemaWriter.endObject();
+                }
+                schemaWriter.endArray();
+                schemaWriter.endObject();
+            }
+            schemaWriter.endArray();
+            schemaWriter.endObject();
+        }
+    }
+
+    //Kinds may contain characters that are not allowed in file names
+    private String uniqueDirectory(String kind) {
+        final String base = kind == null ? "entities" : kind.replaceAll("[^A-Za-z0-9_.-]", "_");
+        String name = base;
+        for (int i = 1; !usedDirectories.add(name); i++) {
+            name = base + "_" + i;
+        }
+        return name;
+    }
+
+    private void writeChunk(Path kindDirectory, Column column, List<Object> rowValues) throws IOException {
+        final int rows = rowValues.size();
+        final byte[] hasValue = new byte[(rows + 7) / 8];
+        final byte[] repeated = new byte[(rows + 7) / 8];
+        final List<Integer> elementCounts = new ArrayList<>();
+        final List<Object> values = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            final Object value = rowValues.get(row);
+            if (value == null) {
+                column.nullable = true;
+                continue;
+            }
+            setBit(hasValue, row);
+            if (value instanceof Collection) {
+                setBit(repeated, row);
+                column.repeated = true;
+                elementCounts.add(((Collection<?>) value).size());
+                for (Object element : (Collection<?>) value) {
+                    column.types.add(element == null ? JsonFormat.NULL_CLASS : element.getClass().getSimpleName());
+                    values.add(element);
+                }
+            } else {
+                column.types.add(value.getClass().getSimpleName());
+                values.add(value);
+            }
+        }
+
+        chunk.reset();
+        chunk.writeVarint(rows);
+        chunk.write(hasValue, 0, hasValue.length);
+        chunk.write(repeated, 0, repeated.length);
+        for (int elementCount : elementCounts) {
+            chunk.writeVarint(elementCount);
+        }
+        writeValues(values);
+        //The first chunk replaces the file of an earlier output
+        final Path file = kindDirectory.resolve(column.fileName);
+        try (OutputStream outputStream = new BufferedOutputStream(column.written
+            ? Files.newOutputStream(file, StandardOpenOption.APPEND)
+            : Files.newOutputStream(file), BUFFER_SIZE)) {
+            chunk.writeTo(outputStream);
+        }
+        column.written = true;
+    }
+
+    private void writeValues(List<Object> values) throws IOException {
+        final Class<?> valueClass = commonClass(values);
+        if (values.isEmpty()) {
+            chunk.write(EMPTY);
+        } else if (valueClass == Long.class || valueClass == Date.class) {
+            chunk.write(valueClass == Long.class ? LONG_DELTA : DATE_DELTA);
+            long previous = 0;
+            for (Object value : values) {
+                final long current = valueClass == Long.class ? (Long) value : ((Date) value).getTime();
+                chunk.writeVarint(EntityBinaryWriter.zigzag(current - previous));
+                previous = current;
+            }
+        } else if (valueClass == Boolean.class) {
+            chunk.write(BOOLEAN_BITSET);
+            final byte[] bits = new byte[(values.size() + 7) / 8];
+            for (int i = 0; i < values.size(); i++) {
+                if ((Boolean) values.get(i)) {
+                    setBit(bits, i);
+                }
+            }
+            chunk.write(bits, 0, bits.length);
+        } else if (valueClass == String.class) {
+            writeStrings(values);
+        } else if (valueClass == Double.class) {
+            chunk.write(DOUBLE_PLAIN);
+            for (Object value : values) {
+                chunk.writeLong(Double.doubleToLongBits((Double) value));
+            }
+        } else if (valueClass == Key.class) {
+            chunk.write(KEY_STRINGS);
+            for (Object value : values) {
+                chunk.writeString(KeyFactory.keyToString((Key) value));
+            }
+        } else {
+            chunk.write(MIXED);
+            for (Object value : values) {
+                final String className = value == null ? JsonFormat.NULL_CLASS : value.getClass().getSimpleName();
+                chunk.writeString(JsonFormat.COMPACT.typeTag(className));
+                jsonBuffer.getBuffer().setLength(0);
+                entityJsonWriter.serializeValue(value);
+                jsonWriter.flush();
+                chunk.writeString(jsonBuffer.toString());
+            }
+        }
+    }
+
+    //Strings with few distinct values are written once and referenced by their index
+    private void writeStrings(List<Object> values) {
+        final Map<String, Integer> dictionary = new HashMap<>();
+        for (Object value : values) {
+            dictionary.putIfAbsent((String) value, dictionary.size());
+            if (dictionary.size() > values.size() / 2) {
+                chunk.write(STRING_PLAIN);
+                for (Object plain : values) {
+                    chunk.writeString((String) plain);
+                }
+                return;
+            }
+        }
+        chunk.write(STRING_DICTIONARY);
+        final String[] entries = new String[dictionary.size()];
+        dictionary.forEach((string, index) -> entries[index] = string);
+        chunk.writeVarint(entries.length);
+        for (String entry : entries) {
+            chunk.writeString(entry);
+        }
+        for (Object value : values) {
+            chunk.writeVarint(dictionary.get((String) value));
+        }
+    }
+
+    //Returns the class all values have, null if they differ or one is null
+    private static Class<?> commonClass(List<Object> values) {
+        Class<?> common = null;
+        for (Object value : values) {
+            if (value == null || (common != null && value.getClass() != common)) {
+                return null;
+            }
+            common = value.getClass();
+        }
+        return common;
+    }
+
+    private static void setBit(byte[] bits, int index) {
+        bits[index >> 3] |= 1 << (index & 7);
+    }
+
+    private static class Column {
+        private final String name;
+        private final String fileName;
+        private final long firstRow;
+        private final Set<String> types = new TreeSet<>();
+        private boolean nullable;
+        private boolean repeated;
+        private boolean written;
+
+        private Column(String name, String fileName, long firstRow) {
+            this.name = name;
+            this.fileName = fileName;
+            this.firstRow = firstRow;
+        }
+    }
+
+    private class KindColumns {
+        private final String kind;
+        private final String directoryName;
+        private final Path kindDirectory;
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+        private final List<Entity> buffered = new ArrayList<>();
+        private long rows;
+        private int rowGroups;
+
+        private KindColumns(String kind, String directoryName) throws IOException {
+            this.kind = kind;
+            this.directoryName = directoryName;
+            this.kindDirectory = Files.createDirectories(directory.resolve(directoryName));
+            column(KEY_COLUMN);
+        }
+
+        private void add(Entity entity) throws IOException {
+            buffered.add(entity);
+            bufferedRows++;
+            rows++;
+            if (buffered.size() >= ROW_GROUP_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffered.isEmpty()) {
+                return;
+            }
+            for (Entity entity : buffered) {
+                for (String name : entity.getProperties().keySet()) {
+                    column(name);
+                }
+            }
+            final List<Object> rowValues = new ArrayList<>(buffered.size());
+            for (Column column : columns.values()) {
+                rowValues.clear();
+                for (Entity entity : buffered) {
+                    rowValues.add(KEY_COLUMN.equals(column.name) ? entity.getKey() : entity.getProperty(column.name));
+                }
+                writeChunk(kindDirectory, column, rowValues);
+            }
+            bufferedRows -= buffered.size();
+            buffered.clear();
+            rowGroups++;
+        }
+
+        private void column(String name) {
+            if (!columns.containsKey(name)) {
+                columns.put(name, new Column(name, "c" + columns.size() + ".col", rows - buffered.size()));
+            }
+        }
+    }
+}
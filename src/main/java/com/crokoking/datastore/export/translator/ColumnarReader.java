@@ -0,0 +1,354 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the columns written by {@link ColumnarOutput}. Reading a column only reads the file of that column. Like the
+ * JSON reader, keys are recreated for the current app and namespace.
+ */
+public class ColumnarReader {
+    private final Path directory;
+    private final Map<String, KindSchema> kinds = new LinkedHashMap<>();
+    //Fixes and caches the keys of key columns and mixed columns
+    private final KeyCache keyCache = new KeyCache(EntityJsonReader.DEFAULT_KEY_CACHE_SIZE);
+
+    private ColumnarReader(Path directory, JsonObject schema) {
+        this.directory = directory;
+        for (JsonElement kindElement : schema.getAsJsonArray("kinds")) {
+            final JsonObject kindObject = kindElement.getAsJsonObject();
+            final Map<String, Column> columns = new LinkedHashMap<>();
+            for (JsonElement columnElement : kindObject.getAsJsonArray("columns")) {
+                final JsonObject columnObject = columnElement.getAsJsonObject();
+                final List<String> types = new ArrayList<>();
+                for (JsonElement type : columnObject.getAsJsonArray("types")) {
+                    types.add(type.getAsString());
+                }
+                final Column column = new Column(columnObject.get("name").getAsString(), columnObject.get("file").getAsString(),
+                    columnObject.get("firstRow").getAsLong(), types, columnObject.get("nullable").getAsBoolean(),
+                    columnObject.get("repeated").getAsBoolean());
+                columns.put(column.name, column);
+            }
+            final String kind = kindObject.get("kind").getAsString();
+            kinds.put(kind, new KindSchema(kindObject.get("directory").getAsString(), kindObject.get("rows").getAsLong(), columns));
+        }
+    }
+
+    public static ColumnarReader open(Path directory) throws IOException {
+        try (Reader reader = Files.newBufferedReader(directory.resolve(ColumnarOutput.SCHEMA_FILE_NAME), StandardCharsets.UTF_8)) {
+            return new ColumnarReader(directory, JsonParser.parseReader(reader).getAsJsonObject());
+        }
+    }
+
+    public List<String> getKinds() {
+        return new ArrayList<>(kinds.keySet());
+    }
+
+    public long getRowCount(String kind) {
+        return schema(kind).rows;
+    }
+
+    /**
+     * @return the columns of the kind in the order their properties were first seen, starting with the key column
+     */
+    public List<Column> getColumns(String kind) {
+        return Collections.unmodifiableList(new ArrayList<>(schema(kind).columns.values()));
+    }
+
+    /**
+     * Reads the values of one property of all entities of a kind
+     *
+     * @return one value per entity, null if the entity does not have the property, a list for a collection
+     */
+    public List<Object> readColumn(String kind, String propertyName) throws IOException {
+        final KindSchema schema = schema(kind);
+        final Column column = schema.columns.get(propertyName);
+        final List<Object> rowValues = new ArrayList<>((int) schema.rows);
+        if (column == null) {
+            rowValues.addAll(Collections.nCopies((int) schema.rows, null));
+            return rowValues;
+        }
+        rowValues.addAll(Collections.nCopies((int) column.firstRow, null));
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(
+            directory.resolve(schema.directoryName).resolve(column.fileName)), 1 << 16)) {
+            ChunkInput chunk;
+            while ((chunk = ChunkInput.next(inputStream)) != null) {
+                readChunk(chunk, rowValues);
+            }
+        }
+        if (rowValues.size() != schema.rows) {
+            throw new IOException("Column " + propertyName + " of kind " + kind + " has " + rowValues.size()
+                + " rows instead of " + schema.rows);
+        }
+        return rowValues;
+    }
+
+    private KindSchema schema(String kind) {
+        final KindSchema schema = kinds.get(kind);
+        if (schema == null) {
+            throw new IllegalArgumentException("No columns for kind " + kind);
+        }
+        return schema;
+    }
+
+    private void readChunk(ChunkInput chunk, List<Object> rowValues) throws IOException {
+        final int rows = (int) chunk.readVarint();
+        final byte[] hasValue = chunk.readBytes((rows + 7) / 8);
+        final byte[] repeated = chunk.readBytes((rows + 7) / 8);
+        final int[] elementCounts = new int[rows];
+        int valueCount = 0;
+        for (int row = 0; row < rows; row++) {
+            if (isSet(repeated, row)) {
+                elementCounts[row] = (int) chunk.readVarint();
+                valueCount += elementCounts[row];
+            } else if (isSet(hasValue, row)) {
+                valueCount++;
+            }
+        }
+        final List<Object> values = readValues(chunk, valueCount);
+        int valueIndex = 0;
+        for (int row = 0; row < rows; row++) {
+            if (isSet(repeated, row)) {
+                rowValues.add(new ArrayList<>(values.subList(valueIndex, valueIndex + elementCounts[row])));
+                valueIndex += elementCounts[row];
+            } else if (isSet(hasValue, row)) {
+                rowValues.add(values.get(valueIndex++));
+            } else {
+                rowValues.add(null);
+            }
+        }
+    }
+
+    private List<Object> readValues(ChunkInput chunk, int count) throws IOException {
+        final int encoding = chunk.readByte();
+        final List<Object> values = new ArrayList<>(count);
+        switch (encoding) {
+            case ColumnarOutput.EMPTY:
+                break;
+            case ColumnarOutput.LONG_DELTA:
+            case ColumnarOutput.DATE_DELTA:
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    previous += EntityBinaryReader.unzigzag(chunk.readVarint());
+                    values.add(encoding == ColumnarOutput.LONG_DELTA ? (Object) previous : new Date(previous));
+                }
+                break;
+            case ColumnarOutput.BOOLEAN_BITSET:
+                final byte[] bits = chunk.readBytes((count + 7) / 8);
+                for (int i = 0; i < count; i++) {
+                    values.add(isSet(bits, i));
+                }
+                break;
+            case ColumnarOutput.STRING_DICTIONARY:
+                final String[] dictionary = new String[(int) chunk.readVarint()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = chunk.readString();
+                }
+                for (int i = 0; i < count; i++) {
+                    final long index = chunk.readVarint();
+                    if (index >= dictionary.length) {
+                        throw new IOException("String index " + index + " is not in the dictionary");
+                    }
+                    values.add(dictionary[(int) index]);
+                }
+                break;
+            case ColumnarOutput.STRING_PLAIN:
+                for (int i = 0; i < count; i++) {
+                    values.add(chunk.readString());
+                }
+                break;
+            case ColumnarOutput.DOUBLE_PLAIN:
+                for (int i = 0; i < count; i++) {
+                    values.add(Double.longBitsToDouble(chunk.readLong()));
+                }
+                break;
+            case ColumnarOutput.KEY_STRINGS:
+                for (int i = 0; i < count; i++) {
+                    values.add(keyCache.toFixedKey(chunk.readString()));
+                }
+                break;
+            case ColumnarOutput.MIXED:
+                for (int i = 0; i < count; i++) {
+                    final String typeTag = chunk.readString();
+                    final JsonReader jsonReader = new JsonReader(new StringReader(chunk.readString()));
+                    jsonReader.setLenient(true);
+                    values.add(new EntityJsonReader(jsonReader, keyCache, null).deserializeValue(typeTag));
+                }
+                break;
+            default:
+                throw new IOException("Unknown column encoding " + encoding);
+        }
+        if (values.size() != count) {
+            throw new IOException("Column chunk has " + values.size() + " values instead of " + count);
+        }
+        return values;
+    }
+
+    private static boolean isSet(byte[] bits, int index) {
+        return (bits[index >> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * Schema of one property of a kind, inferred from the entities that were written
+     */
+    public static final class Column {
+        private final String name;
+        private final String fileName;
+        private final long firstRow;
+        private final List<String> types;
+        private final boolean nullable;
+        private final boolean repeated;
+
+        private Column(String name, String fileName, long firstRow, List<String> types, boolean nullable, boolean repeated) {
+            this.name = name;
+            this.fileName = fileName;
+            this.firstRow = firstRow;
+            this.types = Collections.unmodifiableList(types);
+            this.nullable = nullable;
+            this.repeated = repeated;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return simple class names of the values and collection elements, sorted
+         */
+        public List<String> getTypes() {
+            return types;
+        }
+
+        /**
+         * @return true if some entities do not have the property or have a null value
+         */
+        public boolean isNullable() {
+            return nullable;
+        }
+
+        /**
+         * @return true if some entities have a collection value
+         */
+        public boolean isRepeated() {
+            return repeated;
+        }
+    }
+
+    private static class KindSchema {
+        private final String directoryName;
+        private final long rows;
+        private final Map<String, Column> columns;
+
+        private KindSchema(String directoryName, long rows, Map<String, Column> columns) {
+            this.directoryName = directoryName;
+            this.rows = rows;
+            this.columns = columns;
+        }
+    }
+
+    //One length prefixed chunk of a column file
+    private static class ChunkInput {
+        private final byte[] bytes;
+        private int position;
+
+        private ChunkInput(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        //Returns null at the end of the file
+        private static ChunkInput next(InputStream inputStream) throws IOException {
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int b = inputStream.read();
+                if (b < 0) {
+                    if (shift == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Chunk length is cut off");
+                }
+                if (shift > 28) {
+                    throw new IOException("Chunk length is too long");
+                }
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            final byte[] bytes = new byte[(int) length];
+            int read = 0;
+            while (read < bytes.length) {
+                final int count = inputStream.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException("Column file ends within a chunk");
+                }
+                read += count;
+            }
+            return new ChunkInput(bytes);
+        }
+
+        private int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new EOFException("Column chunk ends within a value");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (position + length > bytes.length) {
+                throw new EOFException("Column chunk ends within a value");
+            }
+            final byte[] result = new byte[length];
+            System.arraycopy(bytes, position, result, 0, length);
+            position += length;
+            return result;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint is too long");
+        }
+
+        private long readLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        private String readString() throws IOException {
+            final int length = (int) readVarint();
+            if (length < 0 || position + length > bytes.length) {
+                throw new EOFException("Column chunk ends within a string");
+            }
+            final String string = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return string;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens output files for reading, decompressing them if they are gzip compressed
+ */
+final class CompressedFiles {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompressedFiles() {
+    }
+
+    public static InputStream newInputStream(Path path) throws IOException {
+        final InputStream inputStream = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        try {
+            inputStream.mark(2);
+            final boolean gzip = inputStream.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF)
+                && inputStream.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+            inputStream.reset();
+            return gzip ? new GZIPInputStream(inputStream, BUFFER_SIZE) : inputStream;
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    public static BufferedReader newReader(Path path) throws IOException {
+        return new BufferedReader(new InputStreamReader(newInputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,84 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes records on one thread, reusing the proto, a scratch buffer and the parent of the last key across records.
+ * A context is not thread safe, every decoder thread needs its own. The decoded proto is only valid until the next
+ * record is decoded.
+ */
+final class DecodeContext {
+    private static final int INITIAL_SCRATCH_SIZE = 16 * 1024;
+
+    private final OnestoreEntity.EntityProto entityProto = new OnestoreEntity.EntityProto();
+    private byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+    private Key lastParent;
+
+    public OnestoreEntity.EntityProto decode(ByteBuffer buffer, int offset, int length) {
+        entityProto.clear();
+        if (buffer.hasArray()) {
+            entityProto.mergeFrom(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            //Views of a mapped file are copied into the scratch buffer, the proto parser only reads arrays in place
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            final ByteBuffer source = buffer.duplicate();
+            source.position(offset);
+            source.get(scratch, 0, length);
+            entityProto.mergeFrom(scratch, 0, length);
+        }
+        return entityProto;
+    }
+
+    public Entity toEntity(ByteBuffer buffer, int offset, int length) {
+        return EntityTranslator.createFromPb(decode(buffer, offset, length));
+    }
+
+    /**
+     * Entities of an export are sorted by key, so consecutive keys mostly share their parent. The parent of the last
+     * decoded key is kept, keys below it are created from it without decoding.
+     */
+    public Key toKey(OnestoreEntity.Reference reference) {
+        final OnestoreEntity.Path path = reference.getPath();
+        if (path.elementSize() > 1 && lastParent != null && isParent(lastParent, reference)) {
+            final OnestoreEntity.Path.Element last = path.getElement(path.elementSize() - 1);
+            if (last.hasName()) {
+                return KeyFactory.createKey(lastParent, last.getType(), last.getName());
+            }
+            //Incomplete keys are decoded
+            if (last.getId() != 0) {
+                return KeyFactory.createKey(lastParent, last.getType(), last.getId());
+            }
+        }
+        final Key key = EntityProtoJsonWriter.decodeKey(reference);
+        if (key.getParent() != null) {
+            lastParent = key.getParent();
+        }
+        return key;
+    }
+
+    //Compares the path of the parent with all but the last element of the reference
+    private static boolean isParent(Key parent, OnestoreEntity.Reference reference) {
+        final OnestoreEntity.Path path = reference.getPath();
+        Key key = parent;
+        for (int i = path.elementSize() - 2; i >= 0; i--) {
+            if (key == null) {
+                return false;
+            }
+            final OnestoreEntity.Path.Element element = path.getElement(i);
+            if (!element.getType().equals(key.getKind()) || element.getId() != key.getId()
+                || (element.hasName() ? !element.getName().equals(key.getName()) : key.getName() != null)) {
+                return false;
+            }
+            key = key.getParent();
+        }
+        return key == null && reference.getApp().equals(parent.getAppId()) && reference.getNameSpace().equals(parent.getNamespace());
+    }
+}
@@ -0,0 +1,435 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.Text;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads entities written by {@link EntityBinaryWriter}, either as entities or as events for an {@link EntityVisitor}.
+ * Like the JSON reader, keys are recreated for the current app and namespace.
+ */
+public class EntityBinaryReader implements Closeable {
+    private final InputStream inputStream;
+    private final List<String> dictionary = new ArrayList<>();
+    //The entity record being decoded
+    private byte[] record = new byte[1024];
+    private int recordLength;
+    private int position;
+    //Passed to the visitor for every single value
+    private final BinaryValue currentValue = new BinaryValue();
+
+    public EntityBinaryReader(InputStream inputStream) throws IOException {
+        this.inputStream = inputStream;
+        final byte[] magic = new byte[EntityBinaryWriter.MAGIC.length];
+        readFully(magic, magic.length);
+        if (!Arrays.equals(magic, EntityBinaryWriter.MAGIC)) {
+            throw new IOException("Not a binary entity file");
+        }
+        final int version = inputStream.read();
+        if (version != EntityBinaryWriter.VERSION) {
+            throw new IOException("Unsupported binary entity file version " + version);
+        }
+    }
+
+    /**
+     * @return the next entity, null at the end of the file
+     */
+    public Entity readEntity() throws IOException {
+        if (!nextEntityRecord()) {
+            return null;
+        }
+        final Entity entity = new Entity(readKey());
+        readProperties(entity);
+        checkRecordEnd();
+        return entity;
+    }
+
+    public void deserializeEntities(Consumer<Entity> consumer) throws IOException {
+        Entity entity;
+        while ((entity = readEntity()) != null) {
+            consumer.accept(entity);
+        }
+    }
+
+    public void visitEntities(EntityVisitor visitor) throws IOException {
+        while (nextEntityRecord()) {
+            visitor.startEntity();
+            visitKeyAndProperties(visitor);
+            checkRecordEnd();
+            visitor.endEntity();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    //Reads records up to the next entity, adding strings to the dictionary
+    private boolean nextEntityRecord() throws IOException {
+        while (true) {
+            final long length = readRecordLength();
+            if (length < 0) {
+                return false;
+            }
+            if (length == 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid record length " + length);
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(record.length * 2, (int) length)];
+            }
+            readFully(record, (int) length);
+            recordLength = (int) length;
+            position = 1;
+            switch (record[0]) {
+                case EntityBinaryWriter.STRING_RECORD:
+                    dictionary.add(new String(record, 1, recordLength - 1, StandardCharsets.UTF_8));
+                    break;
+                case EntityBinaryWriter.ENTITY_RECORD:
+                    return true;
+                default:
+                    throw new IOException("Unknown record type " + record[0]);
+            }
+        }
+    }
+
+    //Returns -1 at the end of the file
+    private long readRecordLength() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = inputStream.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Record length is cut off");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Record length is too long");
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = inputStream.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Binary entity file ends within a record");
+            }
+            read += count;
+        }
+    }
+
+    private void checkRecordEnd() throws IOException {
+        if (position != recordLength) {
+            throw new IOException("Entity record has " + (recordLength - position) + " trailing bytes");
+        }
+    }
+
+    private Key readKey() throws IOException {
+        final int elements = (int) readVarint();
+        if (elements == 0) {
+            return null;
+        }
+        //The app and namespace of the export are replaced by the current ones
+        readReference();
+        readReference();
+        Key key = null;
+        for (int i = 0; i < elements; i++) {
+            final String kind = readReference();
+            if (readByte() == 1) {
+                key = KeyFactory.createKey(key, kind, readString());
+            } else {
+                key = KeyFactory.createKey(key, kind, readVarint());
+            }
+        }
+        return key;
+    }
+
+    private void readProperties(PropertyContainer container) throws IOException {
+        final int count = (int) readVarint();
+        for (int i = 0; i < count; i++) {
+            final String name = readReference();
+            final boolean unindexed = readByte() == 1;
+            final Object value = readValue(readByte());
+            if (unindexed) {
+                container.setUnindexedProperty(name, value);
+            } else {
+                container.setProperty(name, value);
+            }
+        }
+    }
+
+    private Object readValue(int tag) throws IOException {
+        switch (tag) {
+            case EntityBinaryWriter.NULL:
+                return null;
+            case EntityBinaryWriter.STRING:
+                return readString();
+            case EntityBinaryWriter.TRUE:
+                return Boolean.TRUE;
+            case EntityBinaryWriter.FALSE:
+                return Boolean.FALSE;
+            case EntityBinaryWriter.LONG:
+                return unzigzag(readVarint());
+            case EntityBinaryWriter.INTEGER:
+                return (int) unzigzag(readVarint());
+            case EntityBinaryWriter.DOUBLE:
+                return Double.longBitsToDouble(readLong());
+            case EntityBinaryWriter.FLOAT:
+                return Float.intBitsToFloat(readInt());
+            case EntityBinaryWriter.TEXT:
+                return new Text(readString());
+            case EntityBinaryWriter.DATE:
+                return new Date(unzigzag(readVarint()));
+            case EntityBinaryWriter.KEY:
+                return readKey();
+            case EntityBinaryWriter.GEO_PT:
+                return new GeoPt(Float.intBitsToFloat(readInt()), Float.intBitsToFloat(readInt()));
+            case EntityBinaryWriter.EMBEDDED_ENTITY:
+                final EmbeddedEntity embeddedEntity = new EmbeddedEntity();
+                embeddedEntity.setKey(readKey());
+                readProperties(embeddedEntity);
+                return embeddedEntity;
+            case EntityBinaryWriter.COLLECTION:
+                final int size = (int) readVarint();
+                final List<Object> values = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(readValue(readByte()));
+                }
+                return values;
+            case EntityBinaryWriter.BLOB:
+                final int length = (int) readVarint();
+                checkAvailable(length);
+                final byte[] bytes = Arrays.copyOfRange(record, position, position + length);
+                position += length;
+                return new Blob(bytes);
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private void visitKeyAndProperties(EntityVisitor visitor) throws IOException {
+        final Key key = readKey();
+        visitor.key(key == null ? null : KeyFactory.keyToString(key));
+        final int count = (int) readVarint();
+        for (int i = 0; i < count; i++) {
+            final String name = readReference();
+            final boolean unindexed = readByte() == 1;
+            visitor.startProperty(name, unindexed);
+            visitValue(readByte(), visitor);
+            visitor.endProperty();
+        }
+    }
+
+    private void visitValue(int tag, EntityVisitor visitor) throws IOException {
+        if (tag == EntityBinaryWriter.COLLECTION) {
+            visitor.startCollection();
+            final int size = (int) readVarint();
+            for (int i = 0; i < size; i++) {
+                visitValue(readByte(), visitor);
+            }
+            visitor.endCollection();
+        } else if (tag == EntityBinaryWriter.EMBEDDED_ENTITY) {
+            visitor.startEmbeddedEntity();
+            visitKeyAndProperties(visitor);
+            visitor.endEmbeddedEntity();
+        } else {
+            currentValue.start(tag);
+            visitor.value(currentValue);
+            currentValue.finish();
+        }
+    }
+
+    private void skipValue(int tag) throws IOException {
+        switch (tag) {
+            case EntityBinaryWriter.STRING:
+            case EntityBinaryWriter.TEXT:
+            case EntityBinaryWriter.BLOB:
+                final int length = (int) readVarint();
+                checkAvailable(length);
+                position += length;
+                break;
+            case EntityBinaryWriter.LONG:
+            case EntityBinaryWriter.INTEGER:
+            case EntityBinaryWriter.DATE:
+                readVarint();
+                break;
+            case EntityBinaryWriter.DOUBLE:
+            case EntityBinaryWriter.GEO_PT:
+                checkAvailable(8);
+                position += 8;
+                break;
+            case EntityBinaryWriter.FLOAT:
+                checkAvailable(4);
+                position += 4;
+                break;
+            default:
+                //Keys are rare enough to be decoded, everything else has no data
+                readValue(tag);
+        }
+    }
+
+    private static String className(int tag) {
+        switch (tag) {
+            case EntityBinaryWriter.NULL:
+                return JsonFormat.NULL_CLASS;
+            case EntityBinaryWriter.STRING:
+                return String.class.getSimpleName();
+            case EntityBinaryWriter.TRUE:
+            case EntityBinaryWriter.FALSE:
+                return Boolean.class.getSimpleName();
+            case EntityBinaryWriter.LONG:
+                return Long.class.getSimpleName();
+            case EntityBinaryWriter.INTEGER:
+                return Integer.class.getSimpleName();
+            case EntityBinaryWriter.DOUBLE:
+                return Double.class.getSimpleName();
+            case EntityBinaryWriter.FLOAT:
+                return Float.class.getSimpleName();
+            case EntityBinaryWriter.TEXT:
+                return Text.class.getSimpleName();
+            case EntityBinaryWriter.DATE:
+                return Date.class.getSimpleName();
+            case EntityBinaryWriter.KEY:
+                return Key.class.getSimpleName();
+            case EntityBinaryWriter.GEO_PT:
+                return GeoPt.class.getSimpleName();
+            case EntityBinaryWriter.EMBEDDED_ENTITY:
+                return EmbeddedEntity.class.getSimpleName();
+            case EntityBinaryWriter.COLLECTION:
+                return Collection.class.getSimpleName();
+            case EntityBinaryWriter.BLOB:
+                return Blob.class.getSimpleName();
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    private String readReference() throws IOException {
+        final long reference = readVarint();
+        if (reference >= dictionary.size()) {
+            throw new IOException("String reference " + reference + " is not in the dictionary");
+        }
+        return dictionary.get((int) reference);
+    }
+
+    private String readString() throws IOException {
+        final int length = (int) readVarint();
+        checkAvailable(length);
+        final String string = new String(record, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+
+    private int readByte() throws IOException {
+        checkAvailable(1);
+        return record[position++] & 0xFF;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    private int readInt() throws IOException {
+        checkAvailable(4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (record[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    private void checkAvailable(int length) throws IOException {
+        if (length < 0 || position + length > recordLength) {
+            throw new EOFException("Entity record ends within a value");
+        }
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //The value passed to the visitor, reads from the current record
+    private final class BinaryValue implements EntityValue {
+        private int tag;
+        private boolean consumed;
+
+        @Override
+        public String getValueClass() {
+            return className(tag);
+        }
+
+        @Override
+        public Object read() throws IOException {
+            consume();
+            return readValue(tag);
+        }
+
+        @Override
+        public String readKeyString() throws IOException {
+            if (tag != EntityBinaryWriter.KEY) {
+                throw new IllegalStateException("Value of class " + getValueClass() + " is not a key");
+            }
+            consume();
+            final Key key = readKey();
+            return key == null ? null : KeyFactory.keyToString(key);
+        }
+
+        @Override
+        public void skip() throws IOException {
+            consume();
+            skipValue(tag);
+        }
+
+        private void consume() {
+            if (consumed) {
+                throw new IllegalStateException("Value has already been read");
+            }
+            consumed = true;
+        }
+
+        private void start(int tag) {
+            this.tag = tag;
+            this.consumed = false;
+        }
+
+        private void finish() throws IOException {
+            if (!consumed) {
+                skip();
+            }
+        }
+    }
+}
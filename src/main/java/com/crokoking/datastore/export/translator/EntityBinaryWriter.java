@@ -0,0 +1,269 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.Text;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes entities in a compact binary format, read by {@link EntityBinaryReader}. The file starts with the magic
+ * bytes {@code DETB} and a version byte, followed by length prefixed records:
+ * <pre>
+ * record   := length:varint type:u8 payload
+ * string   := bytes:UTF-8                          (type 1, the next entry of the string dictionary)
+ * entity   := key properties                       (type 2)
+ * key      := elements:varint                      (0 for no key)
+ *             appId:ref namespace:ref (kind:ref (0 id:varint | 1 name:str))*
+ * property := name:ref unindexed:u8 value
+ * value    := tag:u8 data
+ * </pre>
+ * Kinds, property names, app ids and namespaces are written once per file as string records and referenced by
+ * their index in the dictionary. Counts, lengths and references are unsigned varints, longs are zigzag varints,
+ * doubles and floats are stored as their bits and blobs as raw bytes.
+ */
+public class EntityBinaryWriter implements Closeable {
+    static final byte[] MAGIC = {'D', 'E', 'T', 'B'};
+    static final int VERSION = 1;
+
+    static final int STRING_RECORD = 1;
+    static final int ENTITY_RECORD = 2;
+
+    static final int NULL = 0;
+    static final int STRING = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int LONG = 4;
+    static final int INTEGER = 5;
+    static final int DOUBLE = 6;
+    static final int FLOAT = 7;
+    static final int TEXT = 8;
+    static final int DATE = 9;
+    static final int KEY = 10;
+    static final int GEO_PT = 11;
+    static final int EMBEDDED_ENTITY = 12;
+    static final int COLLECTION = 13;
+    static final int BLOB = 14;
+
+    private final OutputStream outputStream;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    //The entity record being encoded, strings it adds to the dictionary are written before it
+    private final RecordBuffer record = new RecordBuffer();
+    private final RecordBuffer stringRecord = new RecordBuffer();
+
+    public EntityBinaryWriter(OutputStream outputStream) throws IOException {
+        this.outputStream = outputStream;
+        outputStream.write(MAGIC);
+        outputStream.write(VERSION);
+    }
+
+    public void serializeEntities(List<Entity> entities) throws IOException {
+        for (Entity entity : entities) {
+            serializeEntity(entity);
+        }
+    }
+
+    public void serializeEntity(Entity entity) throws IOException {
+        record.reset();
+        record.write(ENTITY_RECORD);
+        writeKey(entity.getKey());
+        writeProperties(entity);
+        record.writeTo(outputStream);
+    }
+
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+
+    private void writeKey(Key key) throws IOException {
+        if (key == null) {
+            record.writeVarint(0);
+            return;
+        }
+        int elements = 0;
+        for (Key current = key; current != null; current = current.getParent()) {
+            elements++;
+        }
+        final Key[] path = new Key[elements];
+        for (Key current = key; current != null; current = current.getParent()) {
+            path[--elements] = current;
+        }
+        record.writeVarint(path.length);
+        writeReference(key.getAppId());
+        writeReference(key.getNamespace());
+        for (Key element : path) {
+            writeReference(element.getKind());
+            if (element.getName() != null) {
+                record.write(1);
+                record.writeString(element.getName());
+            } else {
+                record.write(0);
+                record.writeVarint(element.getId());
+            }
+        }
+    }
+
+    private void writeProperties(PropertyContainer container) throws IOException {
+        final Map<String, Object> properties = container.getProperties();
+        record.writeVarint(properties.size());
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            writeReference(entry.getKey());
+            record.write(container.isUnindexedProperty(entry.getKey()) ? 1 : 0);
+            writeValue(entry.getValue());
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            record.write(NULL);
+        } else if (value instanceof String) {
+            record.write(STRING);
+            record.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            record.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long) {
+            record.write(LONG);
+            record.writeVarint(zigzag((Long) value));
+        } else if (value instanceof Integer) {
+            record.write(INTEGER);
+            record.writeVarint(zigzag((Integer) value));
+        } else if (value instanceof Double) {
+            record.write(DOUBLE);
+            record.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Float) {
+            record.write(FLOAT);
+            record.writeInt(Float.floatToIntBits((Float) value));
+        } else if (value instanceof Text) {
+            record.write(TEXT);
+            record.writeString(((Text) value).getValue());
+        } else if (value instanceof Date) {
+            record.write(DATE);
+            record.writeVarint(zigzag(((Date) value).getTime()));
+        } else if (value instanceof Key) {
+            record.write(KEY);
+            writeKey((Key) value);
+        } else if (value instanceof GeoPt) {
+            record.write(GEO_PT);
+            record.writeInt(Float.floatToIntBits(((GeoPt) value).getLatitude()));
+            record.writeInt(Float.floatToIntBits(((GeoPt) value).getLongitude()));
+        } else if (value instanceof EmbeddedEntity) {
+            record.write(EMBEDDED_ENTITY);
+            writeKey(((EmbeddedEntity) value).getKey());
+            writeProperties((EmbeddedEntity) value);
+        } else if (value instanceof Collection) {
+            record.write(COLLECTION);
+            record.writeVarint(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                writeValue(element);
+            }
+        } else if (value instanceof Blob) {
+            record.write(BLOB);
+            final byte[] bytes = ((Blob) value).getBytes();
+            record.writeVarint(bytes.length);
+            record.write(bytes, 0, bytes.length);
+        } else {
+            throw new IllegalArgumentException("Cannot serialize value with class " + value.getClass());
+        }
+    }
+
+    //Writes the index of the string in the dictionary, adding it first if it is new
+    private void writeReference(String string) throws IOException {
+        Integer reference = dictionary.get(string);
+        if (reference == null) {
+            reference = dictionary.size();
+            dictionary.put(string, reference);
+            stringRecord.reset();
+            stringRecord.write(STRING_RECORD);
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringRecord.write(bytes, 0, bytes.length);
+            stringRecord.writeTo(outputStream);
+        }
+        record.writeVarint(reference);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    //Growable buffer of one record, written with its length prefix. Also used for the chunks of ColumnarOutput.
+    static class RecordBuffer {
+        private byte[] bytes = new byte[1024];
+        private int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void ensureCapacity(int additional) {
+            if (length + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+            }
+        }
+
+        void write(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        void write(byte[] data, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(data, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeString(String string) {
+            final byte[] data = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(data.length);
+            write(data, 0, data.length);
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            long prefix = length;
+            while ((prefix & ~0x7FL) != 0) {
+                outputStream.write((int) ((prefix & 0x7F) | 0x80));
+                prefix >>>= 7;
+            }
+            outputStream.write((int) prefix);
+            outputStream.write(bytes, 0, length);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.DataTypeTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Selects entities with an expression that is compiled once into a tree of predicates and evaluated on the
+ * decoded protos. The expression language:
+ * <pre>
+ * expression := and ("OR" and)*
+ * and        := unary ("AND" unary)*
+ * unary      := "NOT" unary | "(" expression ")" | comparison
+ * comparison := property operator literal
+ *             | "__key__" ("=" | "!=") key
+ *             | "__key__" "HAS" "ANCESTOR" key
+ *             | ("__namespace__" | "__kind__") ("=" | "!=") string
+ * operator   := "=" | "!=" | "&lt;" | "&lt;=" | "&gt;" | "&gt;="
+ * literal    := string | number | "TRUE" | "FALSE" | "NULL" | key
+ * key        := "KEY" "(" kind "," (id | name) ("," kind "," (id | name))* ")"
+ * </pre>
+ * Keywords are case insensitive, strings are single or double quoted, property names that are not plain
+ * identifiers or that are keywords are written in backquotes, a backquoted name is always a property. A comparison
+ * matches if any value of the property matches, a property that is not set matches nothing. Dates compare with
+ * numbers as milliseconds since the epoch, keys are compared by their path only.
+ */
+final class EntityFilter implements Predicate<OnestoreEntity.EntityProto> {
+    private static final int EMPTY_LIST = OnestoreEntity.Property.Meaning.EMPTY_LIST.getValue();
+
+    private final String expression;
+    private final Predicate<OnestoreEntity.EntityProto> predicate;
+
+    private EntityFilter(String expression, Predicate<OnestoreEntity.EntityProto> predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static EntityFilter parse(String expression) {
+        return new EntityFilter(expression, new Parser(expression).parse());
+    }
+
+    @Override
+    public boolean test(OnestoreEntity.EntityProto entityProto) {
+        return predicate.test(entityProto);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private enum Operator {
+        EQUAL, NOT_EQUAL, LESS, LESS_OR_EQUAL, GREATER, GREATER_OR_EQUAL;
+
+        private boolean matches(int comparison) {
+            switch (this) {
+                case EQUAL:
+                    return comparison == 0;
+                case NOT_EQUAL:
+                    return comparison != 0;
+                case LESS:
+                    return comparison < 0;
+                case LESS_OR_EQUAL:
+                    return comparison <= 0;
+                case GREATER:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    //Compares any value of the property with the literal
+    private static Predicate<OnestoreEntity.EntityProto> propertyComparison(String name, Operator operator, Object literal) {
+        return entityProto -> {
+            for (OnestoreEntity.Property property : entityProto.propertys()) {
+                if (name.equals(property.getName()) && matches(property, operator, literal)) {
+                    return true;
+                }
+            }
+            for (OnestoreEntity.Property property : entityProto.rawPropertys()) {
+                if (name.equals(property.getName()) && matches(property, operator, literal)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static boolean matches(OnestoreEntity.Property property, Operator operator, Object literal) {
+        if (property.getMeaning() == EMPTY_LIST) {
+            return false;
+        }
+        final Object value = DataTypeTranslator.getPropertyValue(property);
+        if (value == null || literal == null) {
+            //Null is only equal to null and not ordered
+            final boolean equal = value == literal;
+            return operator == Operator.EQUAL ? equal : operator == Operator.NOT_EQUAL && !equal;
+        }
+        if (literal instanceof KeyPath) {
+            if (!(value instanceof Key)) {
+                return operator == Operator.NOT_EQUAL;
+            }
+            final boolean equal = ((KeyPath) literal).matches((Key) value);
+            return operator == Operator.EQUAL ? equal : operator == Operator.NOT_EQUAL && !equal;
+        }
+        final Integer comparison = compare(value, literal);
+        if (comparison == null) {
+            //Values of different types are never equal
+            return operator == Operator.NOT_EQUAL;
+        }
+        return operator.matches(comparison);
+    }
+
+    //Returns null if the value cannot be compared with the literal
+    private static Integer compare(Object value, Object literal) {
+        if (value instanceof Date) {
+            value = ((Date) value).getTime();
+        } else if (value instanceof Text) {
+            value = ((Text) value).getValue();
+        }
+        if (value instanceof Number && literal instanceof Number) {
+            if (value instanceof Double || value instanceof Float || literal instanceof Double) {
+                return Double.compare(((Number) value).doubleValue(), ((Number) literal).doubleValue());
+            }
+            return Long.compare(((Number) value).longValue(), ((Number) literal).longValue());
+        }
+        if (value instanceof String && literal instanceof String) {
+            return ((String) value).compareTo((String) literal);
+        }
+        if (value instanceof Boolean && literal instanceof Boolean) {
+            return Boolean.compare((Boolean) value, (Boolean) literal);
+        }
+        return null;
+    }
+
+    //Path of a key literal, the ids are either Long or String
+    private static class KeyPath {
+        private final List<String> kinds = new ArrayList<>();
+        private final List<Object> ids = new ArrayList<>();
+
+        private boolean matches(Key key) {
+            int index = kinds.size() - 1;
+            for (Key current = key; current != null; current = current.getParent(), index--) {
+                if (index < 0 || !current.getKind().equals(kinds.get(index))) {
+                    return false;
+                }
+                final Object id = current.getName() != null ? current.getName() : (Object) current.getId();
+                if (!id.equals(ids.get(index))) {
+                    return false;
+                }
+            }
+            return index < 0;
+        }
+
+        /**
+         * @param prefix if true the path only has to start with this key, which makes it an ancestor or the key itself
+         */
+        private boolean matches(OnestoreEntity.Path path, boolean prefix) {
+            final List<OnestoreEntity.Path.Element> elements = path.elements();
+            if (prefix ? elements.size() < kinds.size() : elements.size() != kinds.size()) {
+                return false;
+            }
+            for (int i = 0; i < kinds.size(); i++) {
+                final OnestoreEntity.Path.Element element = elements.get(i);
+                if (!kinds.get(i).equals(element.getType())) {
+                    return false;
+                }
+                final Object id = element.hasName() ? element.getName() : (Object) element.getId();
+                if (!id.equals(ids.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private enum TokenType {
+        //Backquoted names are never keywords
+        IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, OPERATOR, OPEN, CLOSE, COMMA, END
+    }
+
+    private static class Parser {
+        private static final List<String> OPERATORS = Arrays.asList("=", "==", "!=", "<>", "<", "<=", ">", ">=");
+
+        private final String expression;
+        private int position;
+        private TokenType tokenType;
+        private String token;
+        private int tokenStart;
+
+        private Parser(String expression) {
+            this.expression = expression;
+            next();
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parse() {
+            final Predicate<OnestoreEntity.EntityProto> predicate = parseOr();
+            if (tokenType != TokenType.END) {
+                throw error("Unexpected " + describeToken());
+            }
+            return predicate;
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parseOr() {
+            Predicate<OnestoreEntity.EntityProto> predicate = parseAnd();
+            while (isKeyword("OR")) {
+                next();
+                predicate = predicate.or(parseAnd());
+            }
+            return predicate;
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parseAnd() {
+            Predicate<OnestoreEntity.EntityProto> predicate = parseUnary();
+            while (isKeyword("AND")) {
+                next();
+                predicate = predicate.and(parseUnary());
+            }
+            return predicate;
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parseUnary() {
+            if (isKeyword("NOT")) {
+                next();
+                return parseUnary().negate();
+            }
+            if (tokenType == TokenType.OPEN) {
+                next();
+                final Predicate<OnestoreEntity.EntityProto> predicate = parseOr();
+                expect(TokenType.CLOSE, ")");
+                return predicate;
+            }
+            return parseComparison();
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parseComparison() {
+            if (tokenType != TokenType.IDENTIFIER && tokenType != TokenType.QUOTED_IDENTIFIER) {
+                throw error("Expected property name but found " + describeToken());
+            }
+            final String name = token;
+            final boolean special = tokenType == TokenType.IDENTIFIER;
+            next();
+            if (special && "__key__".equals(name)) {
+                return parseKeyComparison();
+            }
+            final Operator operator = parseOperator();
+            if (special && ("__namespace__".equals(name) || "__kind__".equals(name))) {
+                if (operator != Operator.EQUAL && operator != Operator.NOT_EQUAL) {
+                    throw error(name + " can only be compared with = and !=");
+                }
+                if (tokenType != TokenType.STRING) {
+                    throw error("Expected string but found " + describeToken());
+                }
+                final String literal = token;
+                next();
+                final boolean equal = operator == Operator.EQUAL;
+                if ("__namespace__".equals(name)) {
+                    return entityProto -> literal.equals(entityProto.getKey().getNameSpace()) == equal;
+                }
+                return entityProto -> literal.equals(EntityProtoJsonWriter.getKind(entityProto)) == equal;
+            }
+            final Object literal = parseLiteral();
+            if (literal instanceof KeyPath && operator != Operator.EQUAL && operator != Operator.NOT_EQUAL) {
+                throw error("Keys can only be compared with = and !=");
+            }
+            return propertyComparison(name, operator, literal);
+        }
+
+        private Predicate<OnestoreEntity.EntityProto> parseKeyComparison() {
+            if (isKeyword("HAS")) {
+                next();
+                if (!isKeyword("ANCESTOR")) {
+                    throw error("Expected ANCESTOR but found " + describeToken());
+                }
+                next();
+                final KeyPath ancestor = parseKey();
+                return entityProto -> ancestor.matches(entityProto.getKey().getPath(), true);
+            }
+            final Operator operator = parseOperator();
+            if (operator != Operator.EQUAL && operator != Operator.NOT_EQUAL) {
+                throw error("__key__ can only be compared with =, != and HAS ANCESTOR");
+            }
+            final KeyPath key = parseKey();
+            final boolean equal = operator == Operator.EQUAL;
+            return entityProto -> key.matches(entityProto.getKey().getPath(), false) == equal;
+        }
+
+        private Operator parseOperator() {
+            if (tokenType != TokenType.OPERATOR) {
+                throw error("Expected operator but found " + describeToken());
+            }
+            final Operator operator;
+            switch (token) {
+                case "=":
+                case "==":
+                    operator = Operator.EQUAL;
+                    break;
+                case "!=":
+                case "<>":
+                    operator = Operator.NOT_EQUAL;
+                    break;
+                case "<":
+                    operator = Operator.LESS;
+                    break;
+                case "<=":
+                    operator = Operator.LESS_OR_EQUAL;
+                    break;
+                case ">":
+                    operator = Operator.GREATER;
+                    break;
+                default:
+                    operator = Operator.GREATER_OR_EQUAL;
+                    break;
+            }
+            next();
+            return operator;
+        }
+
+        private Object parseLiteral() {
+            final Object literal;
+            if (tokenType == TokenType.STRING) {
+                literal = token;
+            } else if (tokenType == TokenType.NUMBER) {
+                literal = parseNumber(token);
+            } else if (isKeyword("TRUE")) {
+                literal = Boolean.TRUE;
+            } else if (isKeyword("FALSE")) {
+                literal = Boolean.FALSE;
+            } else if (isKeyword("NULL")) {
+                literal = null;
+            } else if (isKeyword("KEY")) {
+                return parseKey();
+            } else {
+                throw error("Expected value but found " + describeToken());
+            }
+            next();
+            return literal;
+        }
+
+        private KeyPath parseKey() {
+            if (!isKeyword("KEY")) {
+                throw error("Expected KEY but found " + describeToken());
+            }
+            next();
+            expect(TokenType.OPEN, "(");
+            final KeyPath keyPath = new KeyPath();
+            while (true) {
+                if (tokenType != TokenType.STRING) {
+                    throw error("Expected kind but found " + describeToken());
+                }
+                keyPath.kinds.add(token);
+                next();
+                expect(TokenType.COMMA, ",");
+                if (tokenType == TokenType.STRING) {
+                    keyPath.ids.add(token);
+                } else if (tokenType == TokenType.NUMBER && parseNumber(token) instanceof Long) {
+                    keyPath.ids.add(parseNumber(token));
+                } else {
+                    throw error("Expected id or name but found " + describeToken());
+                }
+                next();
+                if (tokenType != TokenType.COMMA) {
+                    break;
+                }
+                next();
+            }
+            expect(TokenType.CLOSE, ")");
+            return keyPath;
+        }
+
+        private Object parseNumber(String number) {
+            try {
+                if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+                    return Double.parseDouble(number);
+                }
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number " + number);
+            }
+        }
+
+        private void expect(TokenType type, String description) {
+            if (tokenType != type) {
+                throw error("Expected " + description + " but found " + describeToken());
+            }
+            next();
+        }
+
+        private boolean isKeyword(String keyword) {
+            return tokenType == TokenType.IDENTIFIER && keyword.equals(token.toUpperCase(Locale.ROOT));
+        }
+
+        private String describeToken() {
+            return tokenType == TokenType.END ? "end of expression" : "'" + token + "'";
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + tokenStart + " in: " + expression);
+        }
+
+        private void next() {
+            while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+                position++;
+            }
+            tokenStart = position;
+            if (position == expression.length()) {
+                tokenType = TokenType.END;
+                token = null;
+                return;
+            }
+            final char c = expression.charAt(position);
+            if (c == '(' || c == ')' || c == ',') {
+                tokenType = c == '(' ? TokenType.OPEN : c == ')' ? TokenType.CLOSE : TokenType.COMMA;
+                token = String.valueOf(c);
+                position++;
+            } else if (c == '\'' || c == '"') {
+                tokenType = TokenType.STRING;
+                token = readQuoted(c);
+            } else if (c == '`') {
+                tokenType = TokenType.QUOTED_IDENTIFIER;
+                token = readQuoted(c);
+            } else if (Character.isDigit(c) || (c == '-' && position + 1 < expression.length()
+                && Character.isDigit(expression.charAt(position + 1)))) {
+                tokenType = TokenType.NUMBER;
+                position++;
+                while (position < expression.length() && isNumberPart(expression.charAt(position))) {
+                    position++;
+                }
+                token = expression.substring(tokenStart, position);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                tokenType = TokenType.IDENTIFIER;
+                while (position < expression.length() && (Character.isJavaIdentifierPart(expression.charAt(position))
+                    || expression.charAt(position) == '.')) {
+                    position++;
+                }
+                token = expression.substring(tokenStart, position);
+            } else if ("=!<>".indexOf(c) >= 0) {
+                tokenType = TokenType.OPERATOR;
+                position++;
+                if (position < expression.length() && "=>".indexOf(expression.charAt(position)) >= 0) {
+                    position++;
+                }
+                token = expression.substring(tokenStart, position);
+                if (!OPERATORS.contains(token)) {
+                    throw error("Unknown operator " + token);
+                }
+            } else {
+                throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private static boolean isNumberPart(char c) {
+            return Character.isDigit(c) || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+';
+        }
+
+        //Reads a string or identifier up to the closing quote, a backslash escapes the next character
+        private String readQuoted(char quote) {
+            final StringBuilder builder = new StringBuilder();
+            position++;
+            while (position < expression.length()) {
+                final char c = expression.charAt(position++);
+                if (c == quote) {
+                    return builder.toString();
+                }
+                if (c == '\\' && position < expression.length()) {
+                    builder.append(expression.charAt(position++));
+                } else {
+                    builder.append(c);
+                }
+            }
+            throw error("Unterminated " + (quote == '`' ? "name" : "string"));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the sidecar index of an uncompressed JSON output file, written by {@link EntityIndexWriter}. The index file
+ * holds all entries sorted by key string, followed by a sparse table with every {@value #SPARSE_INTERVAL}th key, the
+ * byte ranges of the kinds and a fixed size footer:
+ * <pre>
+ * entry  := keyLength:u16 key:UTF-8 offset:i64 length:i32
+ * sparse := count:i32 (keyLength:u16 key:UTF-8 entryPosition:i64)*
+ * kinds  := count:i32 (kindLength:u16 kind:UTF-8 firstOffset:i64 endOffset:i64 entities:i64)*
+ * footer := sparsePosition:i64 kindsPosition:i64 entries:i64 magic:i32
+ * </pre>
+ * Only the sparse table and the kinds are held in memory, a lookup reads the entries of one sparse interval.
+ */
+public final class EntityIndex implements Closeable {
+    public static final String FILE_SUFFIX = ".idx";
+    static final int MAGIC = 0x44455849;
+    static final int SPARSE_INTERVAL = 128;
+    static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+
+    private final FileChannel channel;
+    private final long sparsePosition;
+    private final long entryCount;
+    private final String[] sparseKeys;
+    private final long[] sparsePositions;
+    private final Map<String, KindRange> kindRanges = new LinkedHashMap<>();
+
+    private EntityIndex(FileChannel channel) throws IOException {
+        this.channel = channel;
+        final long size = channel.size();
+        if (size < FOOTER_SIZE) {
+            throw new IOException("Index file is too short");
+        }
+        final ByteBuffer footer = readFully(size - FOOTER_SIZE, FOOTER_SIZE);
+        this.sparsePosition = footer.getLong();
+        final long kindsPosition = footer.getLong();
+        this.entryCount = footer.getLong();
+        if (footer.getInt() != MAGIC) {
+            throw new IOException("Not an entity index");
+        }
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(sparsePosition)), 1 << 16));
+        final int sparseCount = input.readInt();
+        this.sparseKeys = new String[sparseCount];
+        this.sparsePositions = new long[sparseCount];
+        for (int i = 0; i < sparseCount; i++) {
+            sparseKeys[i] = readString(input);
+            sparsePositions[i] = input.readLong();
+        }
+        channel.position(kindsPosition);
+        final DataInputStream kindInput = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        final int kindCount = kindInput.readInt();
+        for (int i = 0; i < kindCount; i++) {
+            final String kind = readString(kindInput);
+            kindRanges.put(kind, new KindRange(kindInput.readLong(), kindInput.readLong(), kindInput.readLong()));
+        }
+    }
+
+    public static EntityIndex open(Path indexPath) throws IOException {
+        final FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+        try {
+            return new EntityIndex(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the path of the index written next to an output file
+     */
+    public static Path indexPath(Path outputPath) {
+        return Paths.get(outputPath.toString() + FILE_SUFFIX);
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the byte range of every kind by kind, in the order the kinds first appear in the output
+     */
+    public Map<String, KindRange> getKindRanges() {
+        return Collections.unmodifiableMap(kindRanges);
+    }
+
+    /**
+     * @return the location of the entity with the key string, null if the output has no such entity
+     */
+    public Entry find(String keyString) throws IOException {
+        //Last sampled key that is not greater than the key string
+        int low = 0;
+        int high = sparseKeys.length - 1;
+        int interval = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (sparseKeys[middle].compareTo(keyString) <= 0) {
+                interval = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (interval < 0) {
+            return null;
+        }
+        final long start = sparsePositions[interval];
+        final long end = interval + 1 < sparsePositions.length ? sparsePositions[interval + 1] : sparsePosition;
+        final ByteBuffer entries = readFully(start, (int) (end - start));
+        while (entries.hasRemaining()) {
+            final byte[] key = new byte[entries.getShort() & 0xFFFF];
+            entries.get(key);
+            final long offset = entries.getLong();
+            final int length = entries.getInt();
+            final int comparison = new String(key, StandardCharsets.UTF_8).compareTo(keyString);
+            if (comparison == 0) {
+                return new Entry(offset, length);
+            } else if (comparison > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Index file ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[input.readUnsignedShort()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Location of an entity object in the output file
+     */
+    public static final class Entry {
+        private final long offset;
+        private final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return length of the entity object in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Byte range of the output file that holds all entities of a kind. Entities of other kinds may be in between
+     * when files were read in parallel without order.
+     */
+    public static final class KindRange {
+        private final long firstOffset;
+        private final long endOffset;
+        private final long entityCount;
+
+        KindRange(long firstOffset, long endOffset, long entityCount) {
+            this.firstOffset = firstOffset;
+            this.endOffset = endOffset;
+            this.entityCount = entityCount;
+        }
+
+        public long getFirstOffset() {
+            return firstOffset;
+        }
+
+        /**
+         * @return offset after the last entity of the kind
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        public long getEntityCount() {
+            return entityCount;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Writes the sidecar index of an output file, see {@link EntityIndex} for the format. Entries are collected in memory
+ * and sorted, larger outputs spill sorted runs into temporary files that are merged when the index is closed.
+ */
+class EntityIndexWriter implements Closeable {
+    static final int DEFAULT_MAX_BUFFERED_ENTRIES = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    private final int maxBufferedEntries;
+    private final List<IndexEntry> buffered = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final Map<String, long[]> kindRanges = new LinkedHashMap<>();
+
+    public EntityIndexWriter(Path path) {
+        this(path, DEFAULT_MAX_BUFFERED_ENTRIES);
+    }
+
+    /**
+     * @param maxBufferedEntries entries held in memory before they are spilled into a sorted run
+     */
+    EntityIndexWriter(Path path, int maxBufferedEntries) {
+        this.path = path;
+        this.maxBufferedEntries = maxBufferedEntries;
+    }
+
+    /**
+     * @param offset position of the entity object in the output file
+     * @param length length of the entity object in bytes
+     */
+    public void add(String keyString, String kind, long offset, int length) throws IOException {
+        buffered.add(new IndexEntry(keyString, offset, length));
+        //First offset, end offset and number of entities
+        final long[] range = kindRanges.computeIfAbsent(kind == null ? "" : kind, k -> new long[]{offset, 0, 0});
+        range[1] = offset + length;
+        range[2]++;
+        if (buffered.size() >= maxBufferedEntries) {
+            spill();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (runs.isEmpty()) {
+                buffered.sort(Comparator.comparing(entry -> entry.keyString));
+                writeIndex(new ListEntrySource(buffered));
+            } else {
+                spill();
+                final List<RunEntrySource> sources = new ArrayList<>();
+                try {
+                    for (Path run : runs) {
+                        sources.add(new RunEntrySource(run));
+                    }
+                    writeIndex(new MergingEntrySource(sources));
+                } finally {
+                    for (RunEntrySource source : sources) {
+                        source.close();
+                    }
+                }
+            }
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        buffered.sort(Comparator.comparing(entry -> entry.keyString));
+        final Path run = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".run");
+        runs.add(run);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+            output.writeInt(buffered.size());
+            for (IndexEntry entry : buffered) {
+                writeString(output, entry.keyString);
+                output.writeLong(entry.offset);
+                output.writeInt(entry.length);
+            }
+        }
+        buffered.clear();
+    }
+
+    private void writeIndex(EntrySource entries) throws IOException {
+        final List<String> sparseKeys = new ArrayList<>();
+        final List<Long> sparsePositions = new ArrayList<>();
+        long position = 0;
+        long entryCount = 0;
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+            IndexEntry entry;
+            while ((entry = entries.next()) != null) {
+                if (entryCount % EntityIndex.SPARSE_INTERVAL == 0) {
+                    sparseKeys.add(entry.keyString);
+                    sparsePositions.add(position);
+                }
+                position += writeString(output, entry.keyString);
+                output.writeLong(entry.offset);
+                output.writeInt(entry.length);
+                position += 8 + 4;
+                entryCount++;
+            }
+            final long sparsePosition = position;
+            output.writeInt(sparseKeys.size());
+            position += 4;
+            for (int i = 0; i < sparseKeys.size(); i++) {
+                position += writeString(output, sparseKeys.get(i));
+                output.writeLong(sparsePositions.get(i));
+                position += 8;
+            }
+            final long kindsPosition = position;
+            output.writeInt(kindRanges.size());
+            for (Map.Entry<String, long[]> kindRange : kindRanges.entrySet()) {
+                writeString(output, kindRange.getKey());
+                for (long value : kindRange.getValue()) {
+                    output.writeLong(value);
+                }
+            }
+            output.writeLong(sparsePosition);
+            output.writeLong(kindsPosition);
+            output.writeLong(entryCount);
+            output.writeInt(EntityIndex.MAGIC);
+        }
+    }
+
+    //Returns the number of bytes written
+    private static int writeString(DataOutputStream output, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Key or kind is too long for the index: " + bytes.length + " bytes");
+        }
+        output.writeShort(bytes.length);
+        output.write(bytes);
+        return 2 + bytes.length;
+    }
+
+    private static class IndexEntry {
+        private final String keyString;
+        private final long offset;
+        private final int length;
+
+        private IndexEntry(String keyString, long offset, int length) {
+            this.keyString = keyString;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    //Returns the entries sorted by key string, null after the last one
+    private interface EntrySource {
+        IndexEntry next() throws IOException;
+    }
+
+    private static class ListEntrySource implements EntrySource {
+        private final List<IndexEntry> entries;
+        private int index;
+
+        private ListEntrySource(List<IndexEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public IndexEntry next() {
+            return index < entries.size() ? entries.get(index++) : null;
+        }
+    }
+
+    private static class RunEntrySource implements EntrySource, Closeable {
+        private final DataInputStream input;
+        private int remaining;
+
+        private RunEntrySource(Path run) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+            this.remaining = input.readInt();
+        }
+
+        @Override
+        public IndexEntry next() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            final byte[] key = new byte[input.readUnsignedShort()];
+            input.readFully(key);
+            return new IndexEntry(new String(key, StandardCharsets.UTF_8), input.readLong(), input.readInt());
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    //Merges sorted runs, keeping the current entry of every run in a heap
+    private static class MergingEntrySource implements EntrySource {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing(head -> head.entry.keyString));
+
+        private MergingEntrySource(List<? extends EntrySource> sources) throws IOException {
+            for (EntrySource source : sources) {
+                final IndexEntry entry = source.next();
+                if (entry != null) {
+                    heads.add(new Head(source, entry));
+                }
+            }
+        }
+
+        @Override
+        public IndexEntry next() throws IOException {
+            final Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            final IndexEntry entry = head.entry;
+            final IndexEntry following = head.source.next();
+            if (following != null) {
+                heads.add(new Head(head.source, following));
+            }
+            return entry;
+        }
+
+        private static class Head {
+            private final EntrySource source;
+            private final IndexEntry entry;
+
+            private Head(EntrySource source, IndexEntry entry) {
+                this.source = source;
+                this.entry = entry;
+            }
+        }
+    }
+}
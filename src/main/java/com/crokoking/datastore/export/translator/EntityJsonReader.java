@@ -5,27 +5,110 @@ import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PropertyContainer;
 import com.google.appengine.api.datastore.Text;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 @SuppressWarnings("unused")
 public class EntityJsonReader {
+    public static final int DEFAULT_KEY_CACHE_SIZE = 10_000;
+
     private final JsonReader jsonReader;
+    //The input split into lines for newline delimited JSON, null if only the JsonReader is known
+    private final BufferedReader lineReader;
+    private final KeyCache keyCache;
+    //Passed to the visitor for every single value
+    private final Value currentValue = new Value();
+    //Names of the entity properties that are read, null for all
+    private Set<String> projection;
 
     public EntityJsonReader(JsonReader jsonReader) {
+        this(jsonReader, DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param keyCacheSize number of keys whose parsed and fixed form is kept, 0 disables caching
+     */
+    public EntityJsonReader(JsonReader jsonReader, int keyCacheSize) {
+        this(jsonReader, new KeyCache(keyCacheSize), null);
+    }
+
+    /**
+     * Reads from the reader itself instead of a JsonReader, which is needed for newline delimited JSON. Every line is
+     * parsed on its own and must hold exactly one entity object.
+     */
+    public EntityJsonReader(Reader reader) {
+        this(reader, DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param keyCacheSize number of keys whose parsed and fixed form is kept, 0 disables caching
+     * @see #EntityJsonReader(Reader)
+     */
+    public EntityJsonReader(Reader reader, int keyCacheSize) {
+        this(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader), new KeyCache(keyCacheSize));
+    }
+
+    private EntityJsonReader(BufferedReader lineReader, KeyCache keyCache) {
+        this.jsonReader = new JsonReader(lineReader);
+        this.lineReader = lineReader;
+        this.keyCache = keyCache;
+    }
+
+    //The key cache and the projection may be shared by the readers of one thread, the projection is not copied
+    EntityJsonReader(JsonReader jsonReader, KeyCache keyCache, Set<String> projection) {
         this.jsonReader = jsonReader;
+        this.lineReader = null;
+        this.keyCache = keyCache;
+        this.projection = projection;
+    }
+
+    /**
+     * Reads only the given properties of entities, the values of all other properties are skipped without being
+     * decoded. Embedded entities of the kept properties are read completely.
+     *
+     * @param propertyNames names of the properties to keep, null to keep all properties
+     */
+    public void setProjection(Set<String> propertyNames) {
+        this.projection = propertyNames == null ? null : new HashSet<>(propertyNames);
+    }
+
+    /**
+     * @return number of keys read from the key cache
+     */
+    public long getKeyCacheHits() {
+        return keyCache.getHits();
+    }
+
+    /**
+     * @return number of keys that had to be parsed and fixed
+     */
+    public long getKeyCacheMisses() {
+        return keyCache.getMisses();
     }
 
     public List<Entity> deserializeEntityArray() throws IOException {
@@ -43,28 +126,146 @@ public class EntityJsonReader {
     }
 
     public void deserializeEntityArray(Consumer<Entity> consumer) throws IOException {
+        visitEntityArray(new EntityBuilder(consumer));
+    }
+
+    /**
+     * Reads newline delimited JSON, one entity object after the other until the end of the input
+     */
+    public void deserializeEntityLines(Consumer<Entity> consumer) throws IOException {
+        visitEntityLines(new EntityBuilder(consumer));
+    }
+
+    /**
+     * Reads either a JSON array of entities or newline delimited JSON, depending on the first token
+     */
+    public void deserializeEntities(Consumer<Entity> consumer) throws IOException {
+        visitEntities(new EntityBuilder(consumer));
+    }
+
+    /**
+     * Reads a single entity from an uncompressed output file, using the index written next to it
+     *
+     * @return the entity, null if the output has no entity with the key string
+     */
+    public static Entity lookup(Path outputPath, String keyString) throws IOException {
+        try (EntityIndex index = EntityIndex.open(EntityIndex.indexPath(outputPath))) {
+            return lookup(outputPath, index, keyString);
+        }
+    }
+
+    /**
+     * Reads a single entity from an uncompressed output file, seeking straight to the position the index has for it
+     *
+     * @return the entity, null if the output has no entity with the key string
+     */
+    public static Entity lookup(Path outputPath, EntityIndex index, String keyString) throws IOException {
+        final EntityIndex.Entry entry = index.find(keyString);
+        if (entry == null) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.getLength());
+        try (FileChannel channel = FileChannel.open(outputPath, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.getOffset() + buffer.position()) < 0) {
+                    throw new EOFException("Output file ends before the indexed entity at " + entry.getOffset());
+                }
+            }
+        }
+        final String json = new String(buffer.array(), StandardCharsets.UTF_8);
+        return new EntityJsonReader(new JsonReader(new StringReader(json))).deserializeOnlyEntity();
+    }
+
+    public Entity deserializeEntity() throws IOException {
+        final EntityBuilder builder = new EntityBuilder(null);
+        visitEntity(builder);
+        return builder.entity;
+    }
+
+    //Reads the only value of the input, which must be an entity object
+    Entity deserializeOnlyEntity() throws IOException {
+        final EntityBuilder builder = new EntityBuilder(null);
+        visitOnlyEntity(builder);
+        return builder.entity;
+    }
+
+    public void visitEntityArray(EntityVisitor visitor) throws IOException {
         jsonReader.beginArray();
-        final EntityJsonReader entityJsonReader = new EntityJsonReader(jsonReader);
         while (jsonReader.hasNext()) {
-            final Entity entity = entityJsonReader.deserializeEntity();
-            consumer.accept(entity);
+            visitEntity(visitor);
         }
         jsonReader.endArray();
     }
 
-    public Entity deserializeEntity() throws IOException {
+    /**
+     * Visits newline delimited JSON, one entity object per line until the end of the input. Each line is parsed by
+     * a strict JsonReader of its own, blank lines are skipped.
+     *
+     * @throws IllegalStateException if the reader was created for a JsonReader instead of the input
+     */
+    public void visitEntityLines(EntityVisitor visitor) throws IOException {
+        if (lineReader == null) {
+            //A lenient JsonReader would also accept comments, unquoted names and several objects per line
+            throw new IllegalStateException("Newline delimited JSON is only read by an EntityJsonReader created for a Reader");
+        }
+        String line;
+        while ((line = lineReader.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                new EntityJsonReader(new JsonReader(new StringReader(line)), keyCache, projection).visitOnlyEntity(visitor);
+            }
+        }
+    }
+
+    /**
+     * Visits either a JSON array of entities or newline delimited JSON, depending on the first token
+     */
+    public void visitEntities(EntityVisitor visitor) throws IOException {
+        if (lineReader == null ? jsonReader.peek() == JsonToken.BEGIN_ARRAY : peekCharacter() == '[') {
+            visitEntityArray(visitor);
+        } else {
+            visitEntityLines(visitor);
+        }
+    }
+
+    //Returns the first character that is not whitespace without consuming it, -1 at the end of the input
+    private int peekCharacter() throws IOException {
+        while (true) {
+            lineReader.mark(1);
+            final int c = lineReader.read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                lineReader.reset();
+                return c;
+            }
+        }
+    }
+
+    //Visits the only value of the input, which must be an entity object
+    void visitOnlyEntity(EntityVisitor visitor) throws IOException {
+        visitEntity(visitor);
+        try {
+            if (jsonReader.peek() == JsonToken.END_DOCUMENT) {
+                return;
+            }
+        } catch (MalformedJsonException e) {
+            //Thrown by a strict reader for a second value
+        }
+        throw new MalformedJsonException("Unexpected content after the entity object");
+    }
+
+    public void visitEntity(EntityVisitor visitor) throws IOException {
         jsonReader.beginObject();
-        skipToName("key");
-        Key key = deserializeKey();
-        Entity entity = new Entity(key);
-        skipToName("properties");
-        deserializeProperties(entity);
+        visitor.startEntity();
+        visitKeyAndProperties(visitor, projection);
         jsonReader.endObject();
-        return entity;
+        visitor.endEntity();
     }
 
+    /**
+     * @param valueClass simple class name or type tag of the value
+     */
     public Object deserializeValue(String valueClass) throws IOException {
-        if (valueClass == null || "null".equals(valueClass)) {
+        valueClass = valueClass == null ? null : JsonFormat.className(valueClass);
+        if (valueClass == null || JsonFormat.NULL_CLASS.equals(valueClass)) {
             jsonReader.nextNull();
             return null;
         } else if (String.class.getSimpleName().equals(valueClass)) {
@@ -96,6 +297,13 @@ public class EntityJsonReader {
         } else if (Key.class.getSimpleName().equals(valueClass)) {
             return deserializeKey();
         } else if (GeoPt.class.getSimpleName().equals(valueClass)) {
+            if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) { //Compact format
+                jsonReader.beginArray();
+                final float latitude = (float) Double.longBitsToDouble(jsonReader.nextLong());
+                final float longitude = (float) Double.longBitsToDouble(jsonReader.nextLong());
+                jsonReader.endArray();
+                return new GeoPt(latitude, longitude);
+            }
             Float latitude = null;
             Float longitude = null;
             jsonReader.beginObject();
@@ -126,19 +334,20 @@ public class EntityJsonReader {
     }
 
     public Object deserializeCollection() throws IOException {
-        List<Object> result = new ArrayList<>();
-        jsonReader.beginArray();
-        while (jsonReader.hasNext()) {
-            Object deserialized = deserializePropertyValue();
-            result.add(deserialized);
-        }
-        jsonReader.endArray();
-        return result;
+        final EntityBuilder builder = new EntityBuilder(null);
+        builder.startProperty(null, false);
+        visitValue(Collection.class.getSimpleName(), builder);
+        return builder.values.pop().values.get(0);
     }
 
     private void skipToName(String name) throws IOException {
+        skipToName(name, name);
+    }
+
+    private void skipToName(String standardName, String compactName) throws IOException {
         while (jsonReader.hasNext()) {
-            if (name.equals(jsonReader.nextName())) {
+            final String name = jsonReader.nextName();
+            if (standardName.equals(name) || compactName.equals(name)) {
                 return;
             } else {
                 jsonReader.skipValue();
@@ -147,43 +356,56 @@ public class EntityJsonReader {
     }
 
     public EmbeddedEntity deserializeEmbeddedEntity() throws IOException {
-        jsonReader.beginObject();
-        EmbeddedEntity entity = new EmbeddedEntity();
-        skipToName("key");
-        Key key = deserializeKey();
-        entity.setKey(key);
-        skipToName("properties");
-        deserializeProperties(entity);
-        skipToObjectEnd();
-        jsonReader.endObject();
-        return entity;
+        final EntityBuilder builder = new EntityBuilder(null);
+        builder.startProperty(null, false);
+        visitValue(EmbeddedEntity.class.getSimpleName(), builder);
+        return (EmbeddedEntity) builder.values.pop().values.get(0);
     }
 
-    private void deserializeProperties(PropertyContainer container) throws IOException {
+    private void visitKeyAndProperties(EntityVisitor visitor, Set<String> propertyNames) throws IOException {
+        skipToName(JsonFormat.STANDARD.entityKey, JsonFormat.COMPACT.entityKey);
+        visitor.key(readKeyString());
+        skipToName(JsonFormat.STANDARD.entityProperties, JsonFormat.COMPACT.entityProperties);
         jsonReader.beginArray();
         while (jsonReader.hasNext()) {
-            deserializeProperty(container);
+            visitProperty(visitor, propertyNames);
         }
         jsonReader.endArray();
     }
 
-    private void deserializeProperty(PropertyContainer container) throws IOException {
+    private void visitProperty(EntityVisitor visitor, Set<String> propertyNames) throws IOException {
         jsonReader.beginObject();
         String key = null;
-        Object value = null;
         boolean unindexed = false;
         String valueClass = null;
         boolean foundValue = false;
         while (jsonReader.hasNext()) {
             String name = jsonReader.nextName();
-            if ("key".equals(name)) {
+            if (foundValue && (isName(name, JsonFormat.STANDARD.propertyName, JsonFormat.COMPACT.propertyName)
+                || isName(name, JsonFormat.STANDARD.unindexed, JsonFormat.COMPACT.unindexed)
+                || isName(name, JsonFormat.STANDARD.valueClass, JsonFormat.COMPACT.valueClass))) {
+                //The property was already passed on, fields after the value would be lost
+                throw new IllegalArgumentException("Property field " + name + " after the value" + (key == null ? "" : " of " + key));
+            }
+            if (isName(name, JsonFormat.STANDARD.propertyName, JsonFormat.COMPACT.propertyName)) {
                 key = jsonReader.nextString();
-            } else if ("unindexed".equals(name)) {
+            } else if (isName(name, JsonFormat.STANDARD.unindexed, JsonFormat.COMPACT.unindexed)) {
                 unindexed = jsonReader.nextBoolean();
-            } else if ("class".equals(name)) {
-                valueClass = jsonReader.nextString();
-            } else if ("value".equals(name)) {
-                value = deserializeValue(valueClass);
+            } else if (isName(name, JsonFormat.STANDARD.valueClass, JsonFormat.COMPACT.valueClass)) {
+                valueClass = JsonFormat.className(jsonReader.nextString());
+            } else if (isName(name, JsonFormat.STANDARD.value, JsonFormat.COMPACT.value)) {
+                //The writer puts the name and indexing before the value, the property starts once the value is reached
+                if (key == null) {
+                    throw new IllegalArgumentException("Missing key before the value");
+                }
+                if (propertyNames != null && !propertyNames.contains(key)) {
+                    jsonReader.skipValue();
+                    skipToObjectEnd();
+                    jsonReader.endObject();
+                    return;
+                }
+                visitor.startProperty(key, unindexed);
+                visitValue(valueClass, visitor);
                 foundValue = true;
             } else {
                 jsonReader.skipValue();
@@ -192,31 +414,72 @@ public class EntityJsonReader {
         if (key == null) {
             throw new IllegalArgumentException("Missing key");
         }
-        if (!foundValue && valueClass != null && !"null".equals(valueClass)) {
-            throw new IllegalArgumentException("Missing value");
+        if (!foundValue) {
+            if (valueClass != null && !JsonFormat.NULL_CLASS.equals(valueClass)) {
+                throw new IllegalArgumentException("Missing value");
+            }
+            if (propertyNames != null && !propertyNames.contains(key)) {
+                jsonReader.endObject();
+                return;
+            }
+            visitor.startProperty(key, unindexed);
+            visitMissingValue(visitor);
         }
-        setEntityProperty(container, key, unindexed, value);
         jsonReader.endObject();
+        visitor.endProperty();
     }
 
-    private Object deserializePropertyValue() throws IOException {
+    private void visitCollectionElement(EntityVisitor visitor) throws IOException {
         jsonReader.beginObject();
         String valueClass = null;
-        Object value = null;
+        boolean foundValue = false;
         while (jsonReader.hasNext()) {
             String name = jsonReader.nextName();
-            if ("class".equals(name)) {
-                valueClass = jsonReader.nextString();
-            } else if ("value".equals(name)) {
-                value = deserializeValue(valueClass);
+            if (isName(name, JsonFormat.STANDARD.valueClass, JsonFormat.COMPACT.valueClass)) {
+                valueClass = JsonFormat.className(jsonReader.nextString());
+            } else if (isName(name, JsonFormat.STANDARD.value, JsonFormat.COMPACT.value)) {
+                visitValue(valueClass, visitor);
+                foundValue = true;
                 break;
             } else {
                 throw new IllegalArgumentException("Unknown property " + name);
             }
         }
+        if (!foundValue) {
+            visitMissingValue(visitor);
+        }
         skipToObjectEnd();
         jsonReader.endObject();
-        return value;
+    }
+
+    private void visitValue(String valueClass, EntityVisitor visitor) throws IOException {
+        if (Collection.class.getSimpleName().equals(valueClass)) {
+            visitor.startCollection();
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                visitCollectionElement(visitor);
+            }
+            jsonReader.endArray();
+            visitor.endCollection();
+        } else if (EmbeddedEntity.class.getSimpleName().equals(valueClass)) {
+            jsonReader.beginObject();
+            visitor.startEmbeddedEntity();
+            visitKeyAndProperties(visitor, null);
+            skipToObjectEnd();
+            jsonReader.endObject();
+            visitor.endEmbeddedEntity();
+        } else {
+            currentValue.start(valueClass == null ? JsonFormat.NULL_CLASS : valueClass, false);
+            visitor.value(currentValue);
+            currentValue.finish();
+        }
+    }
+
+    //A property or collection element without a value field is null
+    private void visitMissingValue(EntityVisitor visitor) throws IOException {
+        currentValue.start(JsonFormat.NULL_CLASS, true);
+        visitor.value(currentValue);
+        currentValue.finish();
     }
 
     private void setEntityProperty(PropertyContainer container, String key, boolean unindexed, Object value) {
@@ -228,31 +491,28 @@ public class EntityJsonReader {
     }
 
     public Key deserializeKey() throws IOException {
+        final String keyString = readKeyString();
+        return keyString == null ? null : keyCache.toFixedKey(keyString);
+    }
+
+    private String readKeyString() throws IOException {
         if (jsonReader.peek() == JsonToken.NULL) {
             jsonReader.nextNull();
             return null;
         }
+        if (jsonReader.peek() == JsonToken.STRING) { //Compact format
+            return jsonReader.nextString();
+        }
         jsonReader.beginObject();
         skipToName("keyString");
         String keyString = jsonReader.nextString();
-        Key key = KeyFactory.stringToKey(keyString);
-        Key fixedKey = fixKey(key);
         skipToObjectEnd();
         jsonReader.endObject();
-        return fixedKey;
+        return keyString;
     }
 
-    //This should fix issues with non-matching namespaces
-    private Key fixKey(Key key) {
-        if (key == null) {
-            return null;
-        }
-        Key parent = fixKey(key.getParent());
-        if (key.getName() != null) {
-            return KeyFactory.createKey(parent, key.getKind(), key.getName());
-        } else {
-            return KeyFactory.createKey(parent, key.getKind(), key.getId());
-        }
+    private static boolean isName(String name, String standardName, String compactName) {
+        return standardName.equals(name) || compactName.equals(name);
     }
 
     private void skipToObjectEnd() throws IOException {
@@ -261,4 +521,151 @@ public class EntityJsonReader {
             jsonReader.skipValue();
         }
     }
+
+    //The value passed to the visitor, reads from the JsonReader
+    private final class Value implements EntityValue {
+        private String valueClass;
+        //A property without a value field, which is null
+        private boolean missing;
+        private boolean consumed;
+
+        private Value() {
+        }
+
+        @Override
+        public String getValueClass() {
+            return valueClass;
+        }
+
+        @Override
+        public Object read() throws IOException {
+            consume();
+            return missing ? null : deserializeValue(valueClass);
+        }
+
+        //Without parsing the key
+        @Override
+        public String readKeyString() throws IOException {
+            if (!Key.class.getSimpleName().equals(valueClass)) {
+                throw new IllegalStateException("Value of class " + valueClass + " is not a key");
+            }
+            consume();
+            return EntityJsonReader.this.readKeyString();
+        }
+
+        @Override
+        public void skip() throws IOException {
+            consume();
+            if (!missing) {
+                jsonReader.skipValue();
+            }
+        }
+
+        private void consume() {
+            if (consumed) {
+                throw new IllegalStateException("Value has already been read");
+            }
+            consumed = true;
+        }
+
+        private void start(String valueClass, boolean missing) {
+            this.valueClass = valueClass;
+            this.missing = missing;
+            this.consumed = false;
+        }
+
+        private void finish() throws IOException {
+            if (!consumed) {
+                skip();
+            }
+        }
+    }
+
+    //Builds entities from the events, this is what deserializeEntity and the other deserialize methods use
+    private class EntityBuilder implements EntityVisitor {
+        private final Consumer<Entity> consumer;
+        //Entity and embedded entities whose properties are being read, innermost first
+        private final Deque<PropertyContainer> containers = new ArrayDeque<>();
+        //Properties and collections whose values are being read, innermost first
+        private final Deque<OpenValues> values = new ArrayDeque<>();
+        //The entity is created once its key has been read
+        private boolean entityStarted;
+        private Entity entity;
+
+        private EntityBuilder(Consumer<Entity> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void startEntity() {
+            entityStarted = true;
+        }
+
+        @Override
+        public void key(String keyString) {
+            final Key key = keyString == null ? null : keyCache.toFixedKey(keyString);
+            if (entityStarted) {
+                entityStarted = false;
+                containers.push(new Entity(key));
+            } else {
+                ((EmbeddedEntity) containers.peek()).setKey(key);
+            }
+        }
+
+        @Override
+        public void startProperty(String name, boolean unindexed) {
+            values.push(new OpenValues(name, unindexed));
+        }
+
+        @Override
+        public void value(EntityValue value) throws IOException {
+            values.peek().values.add(value.read());
+        }
+
+        @Override
+        public void startCollection() {
+            values.push(new OpenValues(null, false));
+        }
+
+        @Override
+        public void endCollection() {
+            final List<Object> collection = values.pop().values;
+            values.peek().values.add(collection);
+        }
+
+        @Override
+        public void startEmbeddedEntity() {
+            containers.push(new EmbeddedEntity());
+        }
+
+        @Override
+        public void endEmbeddedEntity() {
+            values.peek().values.add(containers.pop());
+        }
+
+        @Override
+        public void endProperty() {
+            final OpenValues property = values.pop();
+            setEntityProperty(containers.peek(), property.name, property.unindexed, property.values.get(0));
+        }
+
+        @Override
+        public void endEntity() {
+            entity = (Entity) containers.pop();
+            if (consumer != null) {
+                consumer.accept(entity);
+            }
+        }
+    }
+
+    private static class OpenValues {
+        private final String name;
+        private final boolean unindexed;
+        private final List<Object> values = new ArrayList<>();
+
+        private OpenValues(String name, boolean unindexed) {
+            this.name = name;
+            this.unindexed = unindexed;
+        }
+    }
 }
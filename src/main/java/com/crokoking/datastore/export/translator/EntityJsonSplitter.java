@@ -0,0 +1,181 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a JSON array of entities or newline delimited entities into chunks of whole entity objects without
+ * parsing them. Only strings, escapes and nesting are tracked to find where an entity object ends, the objects
+ * themselves are left to a strict JsonReader each. Newline delimited entities must be on a line of their own.
+ */
+final class EntityJsonSplitter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader;
+    private final int maxEntities;
+    private final int maxChars;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLength;
+    //Characters before the buffer, for error messages
+    private long bufferOffset;
+    private boolean started;
+    private boolean array;
+    private boolean finished;
+    //In an array, entities after the first are preceded by a comma
+    private boolean afterEntity;
+    //Without an array, entities after the first are preceded by a new line
+    private boolean lineStart = true;
+
+    /**
+     * @param maxEntities entities after which a chunk ends
+     * @param maxChars characters after which a chunk ends, the last entity of a chunk is never split
+     */
+    public EntityJsonSplitter(Reader reader, int maxEntities, int maxChars) {
+        this.reader = reader;
+        this.maxEntities = maxEntities;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return true if the input is a JSON array, false if it is newline delimited
+     */
+    public boolean isArray() throws IOException {
+        start();
+        return array;
+    }
+
+    /**
+     * @return the JSON of the next entity objects, or null at the end of the input
+     */
+    public List<String> nextChunk() throws IOException {
+        start();
+        final List<String> chunk = new ArrayList<>();
+        final StringBuilder entity = new StringBuilder();
+        int chars = 0;
+        while (!finished && chunk.size() < maxEntities && chars < maxChars) {
+            final int c = nextToken();
+            if (c == -1) {
+                if (array) {
+                    throw malformed("Unterminated array");
+                }
+                finished = true;
+            } else if (array && c == ']') {
+                bufferPosition++;
+                if (nextToken() != -1) {
+                    throw malformed("Unexpected content after the array");
+                }
+                finished = true;
+            } else if (c == '{') {
+                if (afterEntity) {
+                    throw malformed("Expected ',' or ']'");
+                }
+                if (!lineStart) {
+                    throw malformed("Expected a new line between entities");
+                }
+                entity.setLength(0);
+                readObject(entity);
+                chunk.add(entity.toString());
+                chars += entity.length();
+                afterEntity = array;
+                lineStart = array;
+            } else if (array && c == ',' && afterEntity) {
+                bufferPosition++;
+                afterEntity = false;
+            } else {
+                throw malformed("Expected entity object");
+            }
+        }
+        return chunk.isEmpty() ? null : chunk;
+    }
+
+    private void start() throws IOException {
+        if (started) {
+            return;
+        }
+        started = true;
+        if (nextToken() == '[') {
+            array = true;
+            bufferPosition++;
+        }
+    }
+
+    //Returns the next character that is not whitespace without consuming it, -1 at the end of the input
+    private int nextToken() throws IOException {
+        while (true) {
+            if (bufferPosition == bufferLength && !fill()) {
+                return -1;
+            }
+            final char c = buffer[bufferPosition];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            if (c == '\n' || c == '\r') {
+                lineStart = true;
+            }
+            bufferPosition++;
+        }
+    }
+
+    //Appends the object starting at the current position, copying the buffer in ranges
+    private void readObject(StringBuilder entity) throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        while (true) {
+            if (bufferPosition == bufferLength && !fill()) {
+                throw malformed("Unterminated entity object");
+            }
+            final int start = bufferPosition;
+            int position = start;
+            while (position < bufferLength) {
+                final char c = buffer[position++];
+                if (!array && (c == '\n' || c == '\r')) {
+                    bufferPosition = position - 1;
+                    throw malformed("Entity object not terminated on its line");
+                }
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        entity.append(buffer, start, position - start);
+                        bufferPosition = position;
+                        return;
+                    }
+                }
+            }
+            entity.append(buffer, start, position - start);
+            bufferPosition = position;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        bufferOffset += bufferLength;
+        bufferPosition = 0;
+        bufferLength = 0;
+        final int read = reader.read(buffer);
+        if (read <= 0) {
+            return false;
+        }
+        bufferLength = read;
+        return true;
+    }
+
+    private MalformedJsonException malformed(String message) {
+        return new MalformedJsonException(message + " at offset " + (bufferOffset + bufferPosition));
+    }
+}
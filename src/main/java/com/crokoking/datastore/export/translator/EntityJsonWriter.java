@@ -11,88 +11,175 @@ import com.google.appengine.api.datastore.Text;
 import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 @SuppressWarnings("rawtypes")
 public class EntityJsonWriter {
+    //Depth of values written through the public methods, which may be called at any depth
+    private static final int UNKNOWN_DEPTH = -1;
+
     private final JsonWriter jsonWriter;
+    //Only set when writing newline delimited JSON
+    private final Writer lineWriter;
+    private JsonFormat format = JsonFormat.STANDARD;
+    //Both null while key caching is disabled
+    private LruCache<Key, String> keyStringCache;
+    private LruCache<DepthKey, String> keyJsonCache;
+    //Null if the JsonWriter does not indent
+    private String indent;
 
     public EntityJsonWriter(JsonWriter jsonWriter) {
+        this(jsonWriter, null);
+    }
+
+    private EntityJsonWriter(JsonWriter jsonWriter, Writer lineWriter) {
         this.jsonWriter = jsonWriter;
+        this.lineWriter = lineWriter;
+    }
+
+    /**
+     * Creates a writer for newline delimited JSON, every serialized entity is written on its own line
+     */
+    public static EntityJsonWriter newlineDelimited(Writer writer) {
+        final JsonWriter jsonWriter = new JsonWriter(writer);
+        //Allows writing one top level value after the other
+        jsonWriter.setLenient(true);
+        return new EntityJsonWriter(jsonWriter, writer);
+    }
+
+    /**
+     * Switches to the compact format, which should be combined with a JsonWriter that does not indent
+     */
+    public void setCompact(boolean compact) {
+        this.format = compact ? JsonFormat.COMPACT : JsonFormat.STANDARD;
+    }
+
+    /**
+     * Caches the key strings and the complete JSON of up to the given number of keys, including parents. A cached key
+     * is written again with a single append. The indentation of a key depends on its depth, so with an indenting
+     * JsonWriter the JSON is cached per depth, for keys of entities written at the top level or through
+     * {@link #serializeEntities(List)} only.
+     *
+     * @param maxSize number of cached keys, 0 disables caching
+     * @param indent the indent set on the JsonWriter, null if it does not indent
+     */
+    public void setKeyCache(int maxSize, String indent) {
+        keyStringCache = maxSize > 0 ? new LruCache<>(maxSize) : null;
+        keyJsonCache = maxSize > 0 ? new LruCache<>(maxSize) : null;
+        this.indent = indent == null || indent.isEmpty() ? null : indent;
+    }
+
+    /**
+     * @return number of keys whose key string or JSON was taken from the cache
+     */
+    public long getKeyCacheHits() {
+        return (keyStringCache != null ? keyStringCache.getHits() : 0) + (keyJsonCache != null ? keyJsonCache.getHits() : 0);
     }
 
     public void serializeEntity(Entity entity) throws IOException {
+        serializeEntity(entity, 0);
+    }
+
+    private void serializeEntity(Entity entity, int depth) throws IOException {
         jsonWriter.beginObject();
-        jsonWriter.name("key");
-        serializeKey(entity.getKey());
-        jsonWriter.name("properties");
-        serializeProperties(entity);
+        jsonWriter.name(format.entityKey);
+        serializeKey(entity.getKey(), depth + 1);
+        jsonWriter.name(format.entityProperties);
+        serializeProperties(entity, depth + 1);
         jsonWriter.endObject();
+        if (lineWriter != null) {
+            jsonWriter.flush();
+            lineWriter.write('\n');
+        }
     }
 
     public void serializeEntities(List<Entity> entities) throws IOException {
+        if (lineWriter != null) {
+            for (Entity entity : entities) {
+                serializeEntity(entity);
+            }
+            return;
+        }
         jsonWriter.beginArray();
         for (Entity entity : entities) {
-            serializeEntity(entity);
+            serializeEntity(entity, 1);
         }
         jsonWriter.endArray();
     }
 
     public void serializeEmbeddedEntity(EmbeddedEntity entity) throws IOException {
+        serializeEmbeddedEntity(entity, UNKNOWN_DEPTH);
+    }
+
+    private void serializeEmbeddedEntity(EmbeddedEntity entity, int depth) throws IOException {
         jsonWriter.beginObject();
-        jsonWriter.name("key");
-        serializeKey(entity.getKey());
-        jsonWriter.name("properties");
-        serializeProperties(entity);
+        jsonWriter.name(format.entityKey);
+        serializeKey(entity.getKey(), nested(depth));
+        jsonWriter.name(format.entityProperties);
+        serializeProperties(entity, nested(depth));
         jsonWriter.endObject();
     }
 
-    private void serializeProperties(PropertyContainer container) throws IOException {
+    private void serializeProperties(PropertyContainer container, int depth) throws IOException {
         jsonWriter.beginArray();
         for (Map.Entry<String, Object> entry : container.getProperties().entrySet()) {
-            serializeProperty(container, entry.getKey(), entry.getValue());
+            serializeProperty(container, entry.getKey(), entry.getValue(), nested(depth));
         }
         jsonWriter.endArray();
     }
 
     public void serializeProperty(PropertyContainer entity, String key, Object value) throws IOException {
+        serializeProperty(entity, key, value, UNKNOWN_DEPTH);
+    }
+
+    private void serializeProperty(PropertyContainer entity, String key, Object value, int depth) throws IOException {
         jsonWriter.beginObject();
-        jsonWriter.name("key").value(key);
+        jsonWriter.name(format.propertyName).value(key);
         if (entity.isUnindexedProperty(key)) {
-            jsonWriter.name("unindexed").value(true);
+            jsonWriter.name(format.unindexed).value(true);
         }
-        serializePropertyValue(value);
+        serializePropertyValue(value, nested(depth));
         jsonWriter.endObject();
     }
 
-    private void serializePropertyValue(Object value) throws IOException {
+    private void serializePropertyValue(Object value, int depth) throws IOException {
         if (value != null) {
             if (value instanceof Collection) {
-                jsonWriter.name("class").value(Collection.class.getSimpleName());
-                jsonWriter.name("value");
+                jsonWriter.name(format.valueClass).value(format.typeTag(Collection.class.getSimpleName()));
+                jsonWriter.name(format.value);
                 jsonWriter.beginArray();
                 for (Object element : (Collection) value) {
                     jsonWriter.beginObject();
-                    serializePropertyValue(element);
+                    serializePropertyValue(element, nested(nested(depth)));
                     jsonWriter.endObject();
                 }
                 jsonWriter.endArray();
             } else {
-                jsonWriter.name("class").value(value.getClass().getSimpleName());
-                jsonWriter.name("value");
-                serializeValue(value);
+                jsonWriter.name(format.valueClass).value(format.typeTag(value.getClass().getSimpleName()));
+                jsonWriter.name(format.value);
+                serializeValue(value, depth);
             }
         } else {
-            jsonWriter.name("class").value("null");
-            jsonWriter.name("value").nullValue();
+            jsonWriter.name(format.valueClass).value(format.typeTag(JsonFormat.NULL_CLASS));
+            jsonWriter.name(format.value).nullValue();
         }
     }
 
     public void serializeValue(Object value) throws IOException {
+        serializeValue(value, UNKNOWN_DEPTH);
+    }
+
+    /**
+     * @param depth number of arrays and objects enclosing the value
+     */
+    void serializeValue(Object value, int depth) throws IOException {
         if (value == null) {
             jsonWriter.nullValue();
         } else if (value instanceof Boolean) {
@@ -109,15 +196,22 @@ public class EntityJsonWriter {
         } else if (value instanceof Date) {
             jsonWriter.value(((Date) value).getTime());
         } else if (value instanceof Key) {
-            serializeKey((Key) value);
+            serializeKey((Key) value, depth);
         } else if (value instanceof EmbeddedEntity) {
-            serializeEmbeddedEntity((EmbeddedEntity) value);
+            serializeEmbeddedEntity((EmbeddedEntity) value, depth);
         } else if (value instanceof Blob) {
             String base64 = Base64.getUrlEncoder().encodeToString(((Blob) value).getBytes());
             jsonWriter.value(base64);
         } else if (value instanceof GeoPt) {
             float latitude = ((GeoPt) value).getLatitude();
             float longitude = ((GeoPt) value).getLongitude();
+            if (format == JsonFormat.COMPACT) {
+                jsonWriter.beginArray();
+                jsonWriter.value(Double.doubleToLongBits(latitude));
+                jsonWriter.value(Double.doubleToLongBits(longitude));
+                jsonWriter.endArray();
+                return;
+            }
             jsonWriter.beginObject();
             jsonWriter.name("latitude").value(Double.doubleToLongBits(latitude));
             jsonWriter.name("longitude").value(Double.doubleToLongBits(longitude));
@@ -128,23 +222,121 @@ public class EntityJsonWriter {
     }
 
     public void serializeKey(Key key) throws IOException {
+        serializeKey(key, UNKNOWN_DEPTH);
+    }
+
+    /**
+     * @param depth number of arrays and objects enclosing the key
+     */
+    void serializeKey(Key key, int depth) throws IOException {
         if (key == null) {
             jsonWriter.nullValue();
             return;
         }
-        jsonWriter.beginObject();
-        jsonWriter.name("keyString").value(KeyFactory.keyToString(key));
-        jsonWriter.name("namespace").value(key.getNamespace());
-        jsonWriter.name("kind").value(key.getKind());
+        if (format == JsonFormat.COMPACT) {
+            //Everything else can be derived from the key string
+            jsonWriter.value(keyToString(key));
+            return;
+        }
+        if (isKeyJsonCached(depth)) {
+            jsonWriter.jsonValue(keyJson(key, depth));
+        } else {
+            writeKeyObject(jsonWriter, key, depth);
+        }
+    }
+
+    private void writeKeyObject(JsonWriter writer, Key key, int depth) throws IOException {
+        writer.beginObject();
+        writer.name("keyString").value(keyToString(key));
+        writer.name("namespace").value(key.getNamespace());
+        writer.name("kind").value(key.getKind());
         if (key.getName() != null) {
-            jsonWriter.name("name").value(key.getName());
+            writer.name("name").value(key.getName());
         } else {
-            jsonWriter.name("id").value(key.getId());
+            writer.name("id").value(key.getId());
         }
         if (key.getParent() != null) {
-            jsonWriter.name("parent");
-            serializeKey(key.getParent());
+            writer.name("parent");
+            if (isKeyJsonCached(nested(depth))) {
+                writer.jsonValue(keyJson(key.getParent(), nested(depth)));
+            } else {
+                writeKeyObject(writer, key.getParent(), nested(depth));
+            }
+        }
+        writer.endObject();
+    }
+
+    //Indented JSON can only be cached if the depth of the key is known
+    private boolean isKeyJsonCached(int depth) {
+        return keyJsonCache != null && (indent == null || depth != UNKNOWN_DEPTH);
+    }
+
+    //Renders the JSON of a key at the given depth, parents are taken from the cache as well
+    private String keyJson(Key key, int depth) throws IOException {
+        //Without indentation the JSON is the same at every depth
+        final DepthKey cacheKey = new DepthKey(key, indent != null ? depth : 0);
+        String json = keyJsonCache.get(cacheKey);
+        if (json == null) {
+            final StringWriter buffer = new StringWriter();
+            final JsonWriter bufferWriter = new JsonWriter(buffer);
+            bufferWriter.setHtmlSafe(jsonWriter.isHtmlSafe());
+            bufferWriter.setSerializeNulls(jsonWriter.getSerializeNulls());
+            if (indent != null) {
+                bufferWriter.setIndent(indent);
+            }
+            writeKeyObject(bufferWriter, key, 0);
+            bufferWriter.flush();
+            json = buffer.toString();
+            if (indent != null && depth > 0) {
+                //The buffer starts at depth 0, JsonWriter only writes line breaks for indentation and escapes them in strings
+                final StringBuilder lineStart = new StringBuilder("\n");
+                for (int i = 0; i < depth; i++) {
+                    lineStart.append(indent);
+                }
+                json = json.replace("\n", lineStart);
+            }
+            keyJsonCache.put(cacheKey, json);
+        }
+        return json;
+    }
+
+    private static int nested(int depth) {
+        return depth == UNKNOWN_DEPTH ? UNKNOWN_DEPTH : depth + 1;
+    }
+
+    String keyToString(Key key) {
+        if (keyStringCache == null) {
+            return KeyFactory.keyToString(key);
+        }
+        String keyString = keyStringCache.get(key);
+        if (keyString == null) {
+            keyString = KeyFactory.keyToString(key);
+            keyStringCache.put(key, keyString);
+        }
+        return keyString;
+    }
+
+    private static final class DepthKey {
+        private final Key key;
+        private final int depth;
+
+        private DepthKey(Key key, int depth) {
+            this.key = key;
+            this.depth = depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DepthKey)) {
+                return false;
+            }
+            final DepthKey other = (DepthKey) o;
+            return depth == other.depth && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, depth);
         }
-        jsonWriter.endObject();
     }
 }
@@ -0,0 +1,14 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of entities that are already encoded to JSON
+ */
+interface EntityOutput extends Closeable {
+    /**
+     * @param keyString key string of the entity, used for the index of the output
+     */
+    void write(String kind, String keyString, String json) throws IOException;
+}
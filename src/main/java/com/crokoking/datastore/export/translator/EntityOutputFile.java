@@ -0,0 +1,154 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes encoded entities to a single file, either as one JSON array formatted like {@code JsonWriter} with an indent
+ * of one space at the array level, or as newline delimited JSON with one entity per line. The file is written as UTF-8
+ * by an {@link AsyncChannelOutputStream}, so the calling thread does not wait for the disk.
+ */
+class EntityOutputFile implements EntityOutput {
+    private final Path path;
+    private final boolean newlineDelimited;
+    private final FileChannel channel;
+    private final AsyncChannelOutputStream fileStream;
+    //The file stream itself if the file is not compressed
+    private final OutputStream outputStream;
+    private long entityCount;
+    private long byteCount;
+    private EntityIndexWriter indexWriter;
+
+    public EntityOutputFile(Path path) throws IOException {
+        this(path, false, null, 0, AsyncChannelOutputStream.DEFAULT_BUFFER_SIZE, AsyncChannelOutputStream.DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param newlineDelimited if true, every entity must be encoded without line breaks
+     * @param compressionExecutor if not null, the file is gzip compressed in parallel on this executor
+     * @param maxPendingBlocks number of blocks that may be compressed at the same time
+     * @param bufferSize size of the buffers handed to the I/O thread
+     * @param bufferCount maximum number of buffers
+     */
+    public EntityOutputFile(Path path, boolean newlineDelimited, ExecutorService compressionExecutor, int maxPendingBlocks,
+                            int bufferSize, int bufferCount) throws IOException {
+        this(path, newlineDelimited, compressionExecutor, maxPendingBlocks, FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), bufferSize, bufferCount);
+        if (!newlineDelimited) {
+            writeString("[");
+        }
+    }
+
+    private EntityOutputFile(Path path, boolean newlineDelimited, ExecutorService compressionExecutor, int maxPendingBlocks,
+                             FileChannel channel, int bufferSize, int bufferCount) {
+        this.path = path;
+        this.newlineDelimited = newlineDelimited;
+        this.channel = channel;
+        this.fileStream = new AsyncChannelOutputStream(channel, bufferSize, bufferCount);
+        if (compressionExecutor != null) {
+            this.outputStream = new ParallelGzipOutputStream(fileStream, compressionExecutor,
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, maxPendingBlocks);
+        } else {
+            this.outputStream = fileStream;
+        }
+    }
+
+    /**
+     * Continues an uncompressed file of an earlier run, see {@link TranslationCheckpoint}. Everything after the given
+     * number of bytes is discarded.
+     *
+     * @param byteCount size of the file after the last entity that is kept
+     * @param entityCount number of entities that are kept
+     */
+    public static EntityOutputFile resume(Path path, boolean newlineDelimited, long byteCount, long entityCount,
+                                          int bufferSize, int bufferCount) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < byteCount) {
+            channel.close();
+            throw new IOException("Output " + path + " is shorter than the checkpoint: " + channel.size() + " < " + byteCount);
+        }
+        channel.truncate(byteCount);
+        channel.position(byteCount);
+        final EntityOutputFile file = new EntityOutputFile(path, newlineDelimited, null, 0, channel, bufferSize, bufferCount);
+        file.byteCount = byteCount;
+        file.entityCount = entityCount;
+        return file;
+    }
+
+    /**
+     * Writes an index of the entities by key string next to the file when it is closed. The offsets in the index are
+     * positions in the uncompressed file, so the file must not be compressed.
+     */
+    public void setIndexWriter(EntityIndexWriter indexWriter) {
+        this.indexWriter = indexWriter;
+    }
+
+    @Override
+    public void write(String kind, String keyString, String json) throws IOException {
+        if (!newlineDelimited) {
+            writeString(entityCount == 0 ? "\n " : ",\n ");
+        }
+        final long offset = byteCount;
+        writeString(json);
+        if (indexWriter != null) {
+            indexWriter.add(keyString, kind, offset, (int) (byteCount - offset));
+        }
+        if (newlineDelimited) {
+            writeString("\n");
+        }
+        entityCount++;
+    }
+
+    /**
+     * Writes the buffered output and forces it to disk. Only for uncompressed files, compressed blocks that are still
+     * pending are not written.
+     */
+    public void sync() throws IOException {
+        outputStream.flush();
+        channel.force(false);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getEntityCount() {
+        return entityCount;
+    }
+
+    /**
+     * @return number of bytes written so far, before compression
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!newlineDelimited) {
+                writeString(entityCount == 0 ? "]" : "\n]");
+            }
+        } finally {
+            outputStream.close();
+        }
+        if (indexWriter != null) {
+            indexWriter.close();
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        if (outputStream == fileStream) {
+            byteCount += fileStream.writeUtf8(string);
+        } else {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            outputStream.write(bytes);
+            byteCount += bytes.length;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DataTypeTranslator;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.gson.stream.JsonWriter;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an {@link OnestoreEntity.EntityProto} as JSON without decoding it into an {@link Entity} first. The output
+ * is the same as {@link EntityJsonWriter#serializeEntity(Entity)} for the entity {@link EntityTranslator} decodes
+ * from the proto. Common values are written straight from the proto, other values are converted the same way
+ * the entity decoding converts them.
+ */
+class EntityProtoJsonWriter {
+    private static final int NO_MEANING = OnestoreEntity.Property.Meaning.NO_MEANING.getValue();
+    private static final int GD_WHEN = OnestoreEntity.Property.Meaning.GD_WHEN.getValue();
+    private static final int TEXT = OnestoreEntity.Property.Meaning.TEXT.getValue();
+    private static final int BLOB = OnestoreEntity.Property.Meaning.BLOB.getValue();
+    private static final int GEORSS_POINT = OnestoreEntity.Property.Meaning.GEORSS_POINT.getValue();
+    private static final int ENTITY_PROTO = OnestoreEntity.Property.Meaning.ENTITY_PROTO.getValue();
+    private static final int EMPTY_LIST = OnestoreEntity.Property.Meaning.EMPTY_LIST.getValue();
+
+    private final JsonWriter jsonWriter;
+    //Writes keys and the values that are converted like the entity decoding does
+    private final EntityJsonWriter entityJsonWriter;
+    private JsonFormat format = JsonFormat.STANDARD;
+
+    public EntityProtoJsonWriter(JsonWriter jsonWriter) {
+        this.jsonWriter = jsonWriter;
+        this.entityJsonWriter = new EntityJsonWriter(jsonWriter);
+    }
+
+    /**
+     * Switches to the compact format, see {@link EntityJsonWriter#setCompact(boolean)}
+     */
+    public void setCompact(boolean compact) {
+        this.format = compact ? JsonFormat.COMPACT : JsonFormat.STANDARD;
+        entityJsonWriter.setCompact(compact);
+    }
+
+    /**
+     * Caches the JSON of keys, see {@link EntityJsonWriter#setKeyCache(int, String)}. Entities are always written at the
+     * top level.
+     */
+    public void setKeyCache(int maxSize, String indent) {
+        entityJsonWriter.setKeyCache(maxSize, indent);
+    }
+
+    /**
+     * @return the kind of the entity, the type of the last element of its key path
+     */
+    public static String getKind(OnestoreEntity.EntityProto entityProto) {
+        final List<OnestoreEntity.Path.Element> elements = entityProto.getKey().getPath().elements();
+        return elements.isEmpty() ? null : elements.get(elements.size() - 1).getType();
+    }
+
+    public void serializeEntity(OnestoreEntity.EntityProto entityProto) throws IOException {
+        serializeEntity(entityProto, decodeKey(entityProto.getKey()));
+    }
+
+    /**
+     * @param key the key of the entity, as returned by {@link DecodeContext#toKey(OnestoreEntity.Reference)}
+     */
+    public void serializeEntity(OnestoreEntity.EntityProto entityProto, Key key) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name(format.entityKey);
+        entityJsonWriter.serializeKey(key, 1);
+        jsonWriter.name(format.entityProperties);
+        jsonWriter.beginArray();
+        for (Map.Entry<String, PropertyValues> entry : collectProperties(entityProto).entrySet()) {
+            serializeProperty(entry.getKey(), entry.getValue(), 2);
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+    }
+
+    /**
+     * @return the key string written for the key, from the key cache if it is enabled
+     */
+    public String keyToString(Key key) {
+        return entityJsonWriter.keyToString(key);
+    }
+
+    //Key has no public constructor that takes the app of a reference, so a proto holding only the key is decoded
+    static Key decodeKey(OnestoreEntity.Reference reference) {
+        final OnestoreEntity.EntityProto keyProto = new OnestoreEntity.EntityProto();
+        keyProto.setKey(reference);
+        return EntityTranslator.createFromPb(keyProto).getKey();
+    }
+
+    /**
+     * Groups the properties by name in the order an entity decoded from the proto returns them from
+     * {@link Entity#getProperties()}. The entity fills a HashMap with the indexed and then the unindexed properties,
+     * getProperties() copies it into a second HashMap sized to the number of properties.
+     */
+    private static Map<String, PropertyValues> collectProperties(OnestoreEntity.EntityProto entityProto) {
+        final Map<String, PropertyValues> propertyMap = new HashMap<>();
+        for (OnestoreEntity.Property property : entityProto.propertys()) {
+            addProperty(propertyMap, property, true);
+        }
+        for (OnestoreEntity.Property property : entityProto.rawPropertys()) {
+            addProperty(propertyMap, property, false);
+        }
+        final Map<String, PropertyValues> properties = new HashMap<>(propertyMap.size());
+        for (Map.Entry<String, PropertyValues> entry : propertyMap.entrySet()) {
+            properties.put(entry.getKey(), entry.getValue());
+        }
+        return properties;
+    }
+
+    //Follows the rules of the entity decoding for repeated names, lists and their indexing
+    private static void addProperty(Map<String, PropertyValues> propertyMap, OnestoreEntity.Property property, boolean indexed) {
+        final String name = property.getName();
+        if (property.getMeaning() == EMPTY_LIST) {
+            final List<OnestoreEntity.Property> values = DatastoreServiceConfig.getEmptyListSupport() ? new ArrayList<>() : null;
+            propertyMap.put(name, new PropertyValues(null, values, !indexed));
+        } else if (property.isMultiple()) {
+            PropertyValues list = propertyMap.get(name);
+            if (list == null || (list.values == null && isNull(list.single))) {
+                list = new PropertyValues(null, new ArrayList<>(), !indexed);
+                propertyMap.put(name, list);
+            } else if (list.values == null) {
+                throw new IllegalArgumentException("Property " + name + " has a single value and a list value");
+            }
+            if (indexed && property.getMeaning() == ENTITY_PROTO && property.getValue().hasStringValue()) {
+                list.unindexed = false;
+            }
+            list.values.add(property);
+        } else {
+            propertyMap.put(name, new PropertyValues(property, null, !indexed));
+        }
+    }
+
+    private static boolean isNull(OnestoreEntity.Property property) {
+        return property == null || DataTypeTranslator.getPropertyValue(property) == null;
+    }
+
+    //The depth is the number of arrays and objects enclosing the property object
+    private void serializeProperty(String name, PropertyValues property, int depth) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name(format.propertyName).value(name);
+        if (property.unindexed) {
+            jsonWriter.name(format.unindexed).value(true);
+        }
+        if (property.values != null) {
+            jsonWriter.name(format.valueClass).value(format.typeTag(Collection.class.getSimpleName()));
+            jsonWriter.name(format.value);
+            jsonWriter.beginArray();
+            for (OnestoreEntity.Property value : property.values) {
+                jsonWriter.beginObject();
+                serializePropertyValue(value, depth + 3);
+                jsonWriter.endObject();
+            }
+            jsonWriter.endArray();
+        } else if (property.single == null) {
+            writeNull();
+        } else {
+            serializePropertyValue(property.single, depth + 1);
+        }
+        jsonWriter.endObject();
+    }
+
+    private void serializePropertyValue(OnestoreEntity.Property property, int depth) throws IOException {
+        final OnestoreEntity.PropertyValue value = property.getValue();
+        final int meaning = property.getMeaning();
+        if (meaning == NO_MEANING && hasSinglePrimitive(value)) {
+            if (value.hasStringValue()) {
+                writeClass(String.class).value(value.getStringValue());
+            } else if (value.hasInt64Value()) {
+                writeClass(Long.class).value(value.getInt64Value());
+            } else if (value.hasBooleanValue()) {
+                writeClass(Boolean.class).value(value.isBooleanValue());
+            } else {
+                writeClass(Double.class).value(Double.doubleToLongBits(value.getDoubleValue()));
+            }
+        } else if (meaning == GD_WHEN && value.hasInt64Value()) {
+            //Stored in microseconds, decoded to a Date with millisecond precision
+            writeClass(Date.class).value(value.getInt64Value() / 1000L);
+        } else if (meaning == TEXT && value.hasStringValue()) {
+            writeClass(Text.class).value(value.getStringValue());
+        } else if (meaning == BLOB && value.hasStringValue()) {
+            writeClass(Blob.class).value(Base64.getUrlEncoder().encodeToString(value.getStringValueAsBytes()));
+        } else if (meaning == GEORSS_POINT && value.hasPointValue()) {
+            writeClass(GeoPt.class);
+            entityJsonWriter.serializeValue(new GeoPt((float) value.getPointValue().getX(), (float) value.getPointValue().getY()), depth);
+        } else {
+            final Object decoded = DataTypeTranslator.getPropertyValue(property);
+            if (decoded == null) {
+                writeNull();
+            } else {
+                jsonWriter.name(format.valueClass).value(format.typeTag(decoded.getClass().getSimpleName()));
+                jsonWriter.name(format.value);
+                entityJsonWriter.serializeValue(decoded, depth);
+            }
+        }
+    }
+
+    //Without a meaning the decoded type depends on which fields are set, anything but a single primitive is decoded
+    private static boolean hasSinglePrimitive(OnestoreEntity.PropertyValue value) {
+        if (value.hasPointValue() || value.hasUserValue() || value.hasReferenceValue()) {
+            return false;
+        }
+        final int fields = (value.hasStringValue() ? 1 : 0) + (value.hasInt64Value() ? 1 : 0)
+            + (value.hasBooleanValue() ? 1 : 0) + (value.hasDoubleValue() ? 1 : 0);
+        return fields == 1;
+    }
+
+    private JsonWriter writeClass(Class<?> valueClass) throws IOException {
+        jsonWriter.name(format.valueClass).value(format.typeTag(valueClass.getSimpleName()));
+        return jsonWriter.name(format.value);
+    }
+
+    private void writeNull() throws IOException {
+        jsonWriter.name(format.valueClass).value(format.typeTag(JsonFormat.NULL_CLASS));
+        jsonWriter.name(format.value).nullValue();
+    }
+
+    //The values of one property name, either a single value or a list
+    private static class PropertyValues {
+        private final OnestoreEntity.Property single;
+        private final List<OnestoreEntity.Property> values;
+        private boolean unindexed;
+
+        private PropertyValues(OnestoreEntity.Property single, List<OnestoreEntity.Property> values, boolean unindexed) {
+            this.single = single;
+            this.values = values;
+            this.unindexed = unindexed;
+        }
+    }
+}
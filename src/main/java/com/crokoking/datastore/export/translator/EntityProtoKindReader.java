@@ -0,0 +1,166 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the kind of an entity straight from a serialized {@link OnestoreEntity.EntityProto} without decoding the
+ * properties. Only the key path is walked, the kind is the type of its last element.
+ */
+final class EntityProtoKindReader {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_START_GROUP = 3;
+    private static final int WIRE_END_GROUP = 4;
+    private static final int WIRE_FIXED32 = 5;
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int position;
+
+    private EntityProtoKindReader(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.limit = offset + length;
+        this.position = offset;
+    }
+
+    /**
+     * @return the kind, or null if the bytes do not contain a readable key
+     */
+    public static String readKind(byte[] bytes) {
+        return readKind(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Reads the record in the given range of the buffer, the buffer itself is not modified.
+     *
+     * @return the kind, or null if the record does not contain a readable key
+     */
+    public static String readKind(ByteBuffer buffer, int offset, int length) {
+        try {
+            return new EntityProtoKindReader(buffer, offset, length).readEntityKind();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String readEntityKind() {
+        final int keyEnd = findField(limit, OnestoreEntity.EntityProto.kkey);
+        if (keyEnd < 0) {
+            return null;
+        }
+        final int pathEnd = findField(keyEnd, OnestoreEntity.Reference.kpath);
+        if (pathEnd < 0) {
+            return null;
+        }
+        String kind = null;
+        while (position < pathEnd) {
+            final int tag = readVarInt();
+            if (tag >>> 3 == OnestoreEntity.Path.kElementGroup && (tag & 7) == WIRE_START_GROUP) {
+                kind = readElementType();
+            } else {
+                skipField(tag);
+            }
+        }
+        return kind;
+    }
+
+    //Positions the reader at the start of a length delimited field and returns its end, or -1 if it is missing
+    private int findField(int end, int fieldNumber) {
+        while (position < end) {
+            final int tag = readVarInt();
+            if (tag >>> 3 == fieldNumber && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                final int length = readVarInt();
+                return checkedEnd(length);
+            }
+            skipField(tag);
+        }
+        return -1;
+    }
+
+    private String readElementType() {
+        String type = null;
+        while (true) {
+            final int tag = readVarInt();
+            if ((tag & 7) == WIRE_END_GROUP) {
+                return type;
+            }
+            if (tag >>> 3 == OnestoreEntity.Path.kElementtype && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                final int end = checkedEnd(readVarInt());
+                type = readString(end);
+            } else {
+                skipField(tag);
+            }
+        }
+    }
+
+    private String readString(int end) {
+        final int length = end - position;
+        final String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        } else {
+            final byte[] bytes = new byte[length];
+            final ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        position = end;
+        return value;
+    }
+
+    private void skipField(int tag) {
+        switch (tag & 7) {
+            case WIRE_VARINT:
+                readVarLong();
+                break;
+            case WIRE_FIXED64:
+                position = checkedEnd(8);
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                position = checkedEnd(readVarInt());
+                break;
+            case WIRE_START_GROUP:
+                int nextTag;
+                while (((nextTag = readVarInt()) & 7) != WIRE_END_GROUP) {
+                    skipField(nextTag);
+                }
+                break;
+            case WIRE_FIXED32:
+                position = checkedEnd(4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown wire type in tag " + tag);
+        }
+    }
+
+    private int checkedEnd(int length) {
+        if (length < 0 || position + length > limit) {
+            throw new IllegalArgumentException("Field exceeds record");
+        }
+        return position + length;
+    }
+
+    private int readVarInt() {
+        return (int) readVarLong();
+    }
+
+    private long readVarLong() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) {
+                throw new IndexOutOfBoundsException("Varint exceeds record");
+            }
+            final byte b = buffer.get(position++);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -0,0 +1,26 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.IOException;
+
+/**
+ * A single value passed to {@link EntityVisitor#value(EntityValue)}. It can be read once until the visitor
+ * returns, a value that is not read is skipped without being decoded.
+ */
+public interface EntityValue {
+    /**
+     * @return simple class name of the value, {@value JsonFormat#NULL_CLASS} for null
+     */
+    String getValueClass();
+
+    /**
+     * Decodes the value the same way the entities are deserialized
+     */
+    Object read() throws IOException;
+
+    /**
+     * @return the key string of a key value
+     */
+    String readKeyString() throws IOException;
+
+    void skip() throws IOException;
+}
@@ -0,0 +1,51 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.IOException;
+
+/**
+ * Receives the content of entities from {@link EntityJsonReader} as a stream of events, without the entities being
+ * built. The events of one entity are:
+ * <pre>
+ * startEntity key (startProperty value endProperty)* endEntity
+ * </pre>
+ * A value is either a single value, a collection of values framed by startCollection and endCollection, or an
+ * embedded entity framed by startEmbeddedEntity and endEmbeddedEntity, which has a key and properties as well.
+ * Every event does nothing by default.
+ */
+public interface EntityVisitor {
+    default void startEntity() throws IOException {
+    }
+
+    /**
+     * @param keyString key string of the entity, null if the embedded entity has no key
+     */
+    default void key(String keyString) throws IOException {
+    }
+
+    default void startProperty(String name, boolean unindexed) throws IOException {
+    }
+
+    /**
+     * A single value. The visitor may read the value, if it does not the value is skipped without being decoded.
+     */
+    default void value(EntityValue value) throws IOException {
+    }
+
+    default void startCollection() throws IOException {
+    }
+
+    default void endCollection() throws IOException {
+    }
+
+    default void startEmbeddedEntity() throws IOException {
+    }
+
+    default void endEmbeddedEntity() throws IOException {
+    }
+
+    default void endProperty() throws IOException {
+    }
+
+    default void endEntity() throws IOException {
+    }
+}
@@ -0,0 +1,306 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.storage.onestore.v3.OnestoreEntity;
+import org.iq80.leveldb.impl.LogWriter;
+import org.iq80.leveldb.impl.Logs;
+import org.iq80.leveldb.util.Slice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic export in the layout of a Datastore export: an overall metadata file, one {@code kind_<Name>}
+ * directory per kind with a metadata file and LevelDB log {@code output-<N>} files of entity protos. The metadata
+ * files are empty, only their presence is used by the parser. The same settings and seed write the same export.
+ * Keys are created for the configured app, so no App Engine environment is needed.
+ */
+public class ExportGenerator {
+    public static final String DEFAULT_APP_ID = "s~generated-app";
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    public enum Shape {
+        //Many scalar properties of every common type
+        WIDE,
+        //Long ancestor paths in the key and in key properties
+        DEEP_ANCESTOR,
+        //Large blobs and texts
+        BLOB_HEAVY,
+        //Long lists of values, keys and embedded entities
+        COLLECTION_HEAVY
+    }
+
+    private final List<KindMix> kinds = new ArrayList<>();
+    private String appId = DEFAULT_APP_ID;
+    private long entityCount;
+    private long targetBytes;
+    private long maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private long seed = 42;
+
+    /**
+     * Adds a kind to the mix. Each entity is of a kind chosen with a probability proportional to its weight.
+     * Without any kinds, a mix of one kind per shape is written.
+     */
+    public void addKind(String kind, Shape shape, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight of kind " + kind + " must be positive");
+        }
+        kinds.add(new KindMix(kind, shape, weight));
+    }
+
+    public void setAppId(String appId) {
+        this.appId = appId;
+    }
+
+    /**
+     * Stops after this many entities, 0 for no limit
+     */
+    public void setEntityCount(long entityCount) {
+        this.entityCount = entityCount;
+    }
+
+    /**
+     * Stops once the records of the export have this many bytes, 0 for no limit
+     */
+    public void setTargetBytes(long targetBytes) {
+        this.targetBytes = targetBytes;
+    }
+
+    /**
+     * Starts a new output file of a kind after this many bytes of records
+     */
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return number of entities that were written
+     */
+    public long generate(Path directory) throws IOException {
+        if (entityCount <= 0 && targetBytes <= 0) {
+            throw new IllegalStateException("Either an entity count or a target size is required");
+        }
+        final List<KindMix> mix = kinds.isEmpty() ? defaultMix() : kinds;
+        final Path namespaceDirectory = Files.createDirectories(directory.resolve("all_namespaces"));
+        final Path directoryName = directory.toAbsolutePath().getFileName();
+        Files.write(directory.resolve((directoryName == null ? "export" : directoryName.toString()) + ".overall_export_metadata"), new byte[0]);
+        final List<KindWriter> writers = new ArrayList<>();
+        int totalWeight = 0;
+        for (KindMix kindMix : mix) {
+            final Path kindDirectory = Files.createDirectories(namespaceDirectory.resolve("kind_" + kindMix.kind));
+            Files.write(kindDirectory.resolve("all_namespaces_kind_" + kindMix.kind + ".export_metadata"), new byte[0]);
+            writers.add(new KindWriter(kindMix, kindDirectory));
+            totalWeight += kindMix.weight;
+        }
+
+        final Random random = new Random(seed);
+        long entities = 0;
+        long bytes = 0;
+        try {
+            while ((entityCount <= 0 || entities < entityCount) && (targetBytes <= 0 || bytes < targetBytes)) {
+                int choice = random.nextInt(totalWeight);
+                int kindIndex = 0;
+                while (choice >= writers.get(kindIndex).kindMix.weight) {
+                    choice -= writers.get(kindIndex).kindMix.weight;
+                    kindIndex++;
+                }
+                final KindWriter writer = writers.get(kindIndex);
+                final byte[] record = EntityTranslator.convertToPb(writer.nextEntity(random)).toByteArray();
+                writer.write(record);
+                entities++;
+                bytes += record.length;
+            }
+        } finally {
+            for (KindWriter writer : writers) {
+                writer.close();
+            }
+        }
+        return entities;
+    }
+
+    private static List<KindMix> defaultMix() {
+        final List<KindMix> mix = new ArrayList<>();
+        mix.add(new KindMix("Wide", Shape.WIDE, 8));
+        mix.add(new KindMix("Ancestor", Shape.DEEP_ANCESTOR, 4));
+        mix.add(new KindMix("Collection", Shape.COLLECTION_HEAVY, 2));
+        mix.add(new KindMix("Blob", Shape.BLOB_HEAVY, 1));
+        return mix;
+    }
+
+    private static class KindMix {
+        private final String kind;
+        private final Shape shape;
+        private final int weight;
+
+        private KindMix(String kind, Shape shape, int weight) {
+            this.kind = kind;
+            this.shape = shape;
+            this.weight = weight;
+        }
+    }
+
+    //Writes the output files of one kind and numbers its entities
+    private class KindWriter {
+        private final KindMix kindMix;
+        private final Path directory;
+        private LogWriter logWriter;
+        private int fileNumber;
+        private long fileBytes;
+        private long nextId = 1;
+
+        private KindWriter(KindMix kindMix, Path directory) {
+            this.kindMix = kindMix;
+            this.directory = directory;
+        }
+
+        private void write(byte[] record) throws IOException {
+            if (logWriter != null && fileBytes >= maxFileBytes) {
+                logWriter.close();
+                logWriter = null;
+                fileNumber++;
+            }
+            if (logWriter == null) {
+                logWriter = Logs.createLogWriter(directory.resolve("output-" + fileNumber).toFile(), fileNumber);
+                fileBytes = 0;
+            }
+            logWriter.addRecord(new Slice(record), false);
+            fileBytes += record.length;
+        }
+
+        private void close() throws IOException {
+            if (logWriter != null) {
+                logWriter.close();
+                logWriter = null;
+            }
+        }
+
+        private Entity nextEntity(Random random) {
+            return createEntity(appId, kindMix.kind, kindMix.shape, nextId++, random);
+        }
+    }
+
+    /**
+     * Creates an entity of the shape with the given id, the same as in a generated export
+     *
+     * @param random source of the values, the entity depends on its state
+     */
+    public static Entity createEntity(String appId, String kind, Shape shape, long id, Random random) {
+        switch (shape) {
+            case WIDE:
+                return wide(random, rootKey(appId, kind, id));
+            case DEEP_ANCESTOR:
+                return deepAncestor(random, appId, kind, id);
+            case BLOB_HEAVY:
+                return blobHeavy(random, rootKey(appId, kind, id));
+            case COLLECTION_HEAVY:
+                return collectionHeavy(random, KeyFactory.createKey(rootKey(appId, "Parent", id % 16 + 1), kind, id));
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private static Entity deepAncestor(Random random, String appId, String kind, long id) {
+        final Entity entity = new Entity(KeyFactory.createKey(ancestorPath(random, appId, kind, 2 + random.nextInt(8)), kind, id));
+        entity.setProperty("owner", ancestorPath(random, appId, kind, 2 + random.nextInt(8)));
+        entity.setProperty("name", randomString(random, 16));
+        entity.setProperty("count", id);
+        return entity;
+    }
+
+    private static Key ancestorPath(Random random, String appId, String kind, int depth) {
+        Key key = rootKey(appId, kind + "Root", random.nextInt(1000) + 1L);
+        for (int level = 1; level < depth; level++) {
+            final String levelKind = kind + "Level" + level;
+            key = level % 2 == 0
+                ? KeyFactory.createKey(key, levelKind, "n" + randomString(random, 6))
+                : KeyFactory.createKey(key, levelKind, random.nextInt(1000) + 1L);
+        }
+        return key;
+    }
+
+    //Keys are built from a reference, so no App Engine environment is needed
+    private static Key rootKey(String appId, String kind, long id) {
+        final OnestoreEntity.Reference reference = new OnestoreEntity.Reference();
+        reference.setApp(appId);
+        reference.getMutablePath().addElement().setType(kind).setId(id);
+        return EntityProtoJsonWriter.decodeKey(reference);
+    }
+
+    private static Entity wide(Random random, Key key) {
+        final Entity entity = new Entity(key);
+        for (int i = 0; i < 20; i++) {
+            entity.setProperty("string" + i, randomString(random, 8 + random.nextInt(24)));
+            entity.setProperty("long" + i, random.nextLong());
+            entity.setProperty("double" + i, random.nextDouble());
+            entity.setProperty("boolean" + i, random.nextBoolean());
+            entity.setUnindexedProperty("date" + i, new Date(1_500_000_000_000L + random.nextInt()));
+        }
+        entity.setProperty("location", new GeoPt(random.nextFloat() * 90, random.nextFloat() * 180));
+        entity.setProperty("nothing", null);
+        return entity;
+    }
+
+    private static Entity blobHeavy(Random random, Key key) {
+        final Entity entity = new Entity(key);
+        final int blobs = 1 + random.nextInt(4);
+        long size = 0;
+        for (int i = 0; i < blobs; i++) {
+            final byte[] bytes = new byte[4096 + random.nextInt(28 * 1024)];
+            random.nextBytes(bytes);
+            entity.setUnindexedProperty("blob" + i, new Blob(bytes));
+            size += bytes.length;
+        }
+        entity.setUnindexedProperty("text", new Text(randomString(random, 2048 + random.nextInt(6 * 1024))));
+        entity.setProperty("size", size);
+        return entity;
+    }
+
+    private static Entity collectionHeavy(Random random, Key key) {
+        final Entity entity = new Entity(key);
+        final int count = 20 + random.nextInt(80);
+        final List<Long> longs = new ArrayList<>(count);
+        final List<String> strings = new ArrayList<>(count);
+        final List<Key> keys = new ArrayList<>(count);
+        final List<EmbeddedEntity> embeddedEntities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            longs.add(random.nextLong());
+            strings.add(randomString(random, 12));
+            keys.add(KeyFactory.createKey(key.getParent(), "Reference", random.nextInt(10_000) + 1L));
+            if (i % 10 == 0) {
+                final EmbeddedEntity embeddedEntity = new EmbeddedEntity();
+                embeddedEntity.setProperty("name", randomString(random, 8));
+                embeddedEntity.setProperty("value", random.nextLong());
+                embeddedEntities.add(embeddedEntity);
+            }
+        }
+        entity.setProperty("longs", longs);
+        entity.setProperty("strings", strings);
+        entity.setProperty("keys", keys);
+        entity.setUnindexedProperty("embedded", embeddedEntities);
+        return entity;
+    }
+
+    private static String randomString(Random random, int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
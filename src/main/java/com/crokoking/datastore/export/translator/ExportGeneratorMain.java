@@ -0,0 +1,132 @@
+package com.crokoking.datastore.export.translator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Writes a synthetic export with {@link ExportGenerator}, for testing and benchmarking without a real export
+ */
+public class ExportGeneratorMain {
+    public static void main(String[] args) {
+        final Option help = Option.builder().option("help").desc("Print help").build();
+        final Option output = Option.builder().option("output").hasArg().desc("Export directory, must not exist yet").required().build();
+        final Option entities = Option.builder().option("entities").hasArg().desc("Number of entities").build();
+        final Option size = Option.builder().option("size").hasArg().desc("Size of the records of the export, e.g. 500m or 10g").build();
+        final Option kinds = Option.builder().option("kinds").hasArgs().desc("Kinds as name:shape:weight, shape one of WIDE, DEEP_ANCESTOR, BLOB_HEAVY, COLLECTION_HEAVY. Defaults to one kind per shape").build();
+        final Option maxFileSize = Option.builder().option("maxFileSize").hasArg().desc("Size after which a kind starts a new output file. Defaults to 64m").build();
+        final Option seed = Option.builder().option("seed").hasArg().desc("Seed of the generated values. Defaults to 42").build();
+        final Option appId = Option.builder().option("appId").hasArg().desc("App of the keys. Defaults to " + ExportGenerator.DEFAULT_APP_ID).build();
+
+        final Options options = new Options();
+        options.addOption(help);
+        options.addOption(output);
+        options.addOption(entities);
+        options.addOption(size);
+        options.addOption(kinds);
+        options.addOption(maxFileSize);
+        options.addOption(seed);
+        options.addOption(appId);
+
+        final CommandLine commandLine;
+        try {
+            final DefaultParser parser = new DefaultParser();
+            commandLine = parser.parse(options, args);
+        } catch (ParseException e) {
+            printHelp(options);
+            return;
+        }
+
+        if (commandLine.hasOption(help)) {
+            printHelp(options);
+            return;
+        }
+        if (!commandLine.hasOption(entities) && !commandLine.hasOption(size)) {
+            System.err.println("Either entities or size is required");
+            return;
+        }
+
+        final Path outputPath = Paths.get(commandLine.getOptionValue(output));
+        if (Files.exists(outputPath)) {
+            System.err.println("Export directory already exists: " + outputPath);
+            return;
+        }
+
+        final ExportGenerator generator = new ExportGenerator();
+        try {
+            if (commandLine.hasOption(entities)) {
+                generator.setEntityCount(Long.parseLong(commandLine.getOptionValue(entities)));
+            }
+            if (commandLine.hasOption(size)) {
+                generator.setTargetBytes(parseSize(commandLine.getOptionValue(size)));
+            }
+            if (commandLine.hasOption(maxFileSize)) {
+                generator.setMaxFileBytes(parseSize(commandLine.getOptionValue(maxFileSize)));
+            }
+            if (commandLine.hasOption(seed)) {
+                generator.setSeed(Long.parseLong(commandLine.getOptionValue(seed)));
+            }
+            if (commandLine.hasOption(kinds)) {
+                for (String kind : commandLine.getOptionValues(kinds)) {
+                    addKind(generator, kind);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value: " + e.getMessage());
+            return;
+        }
+        if (commandLine.hasOption(appId)) {
+            generator.setAppId(commandLine.getOptionValue(appId));
+        }
+
+        try {
+            final long generated = generator.generate(outputPath);
+            System.out.println("Generated " + generated + " entities");
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    //Parses name:shape:weight, shape and weight are optional
+    private static void addKind(ExportGenerator generator, String spec) {
+        final String[] parts = spec.split(":");
+        if (parts.length > 3 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Kind must be name:shape:weight: " + spec);
+        }
+        final ExportGenerator.Shape shape = parts.length > 1 ? ExportGenerator.Shape.valueOf(parts[1].toUpperCase(Locale.ROOT)) : ExportGenerator.Shape.WIDE;
+        final int weight = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+        generator.addKind(parts[0], shape, weight);
+    }
+
+    /**
+     * Parses a number of bytes with an optional k, m or g suffix
+     */
+    static long parseSize(String value) {
+        final String lower = value.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        String number = lower;
+        if (lower.endsWith("k") || lower.endsWith("m") || lower.endsWith("g")) {
+            multiplier = lower.endsWith("k") ? 1024L : lower.endsWith("m") ? 1024L * 1024 : 1024L * 1024 * 1024;
+            number = lower.substring(0, lower.length() - 1);
+        }
+        final long size = Long.parseLong(number) * multiplier;
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + value);
+        }
+        return size;
+    }
+
+    private static void printHelp(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("ExportGenerator", options, true);
+    }
+}
@@ -0,0 +1,46 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Knows the layout of a Datastore export. An export has a {@code *.overall_export_metadata} file at its root and
+ * stores the output files of each kind in a {@code kind_<Name>} directory next to a {@code *.export_metadata} file.
+ */
+final class ExportMetadata {
+    private static final String OVERALL_METADATA_SUFFIX = ".overall_export_metadata";
+    private static final String KIND_METADATA_SUFFIX = ".export_metadata";
+    private static final String KIND_DIRECTORY_PREFIX = "kind_";
+
+    private ExportMetadata() {
+    }
+
+    /**
+     * @return true if the directory is the root of an export with metadata
+     */
+    public static boolean isPresent(Path exportDirectory) throws IOException {
+        return containsFileEndingWith(exportDirectory, OVERALL_METADATA_SUFFIX);
+    }
+
+    /**
+     * @return the kind whose output files are in the directory, or null if it is not a kind directory
+     */
+    public static String getKind(Path directory) throws IOException {
+        final Path fileName = directory.getFileName();
+        if (fileName == null || !fileName.toString().startsWith(KIND_DIRECTORY_PREFIX)) {
+            return null;
+        }
+        if (!containsFileEndingWith(directory, KIND_METADATA_SUFFIX)) {
+            return null;
+        }
+        return fileName.toString().substring(KIND_DIRECTORY_PREFIX.length());
+    }
+
+    private static boolean containsFileEndingWith(Path directory, String suffix) throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.anyMatch(path -> path.getFileName().toString().endsWith(suffix) && Files.isRegularFile(path));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Field names and type tags of the JSON entity format. The compact format writes keys as their key string only,
+ * uses one letter field names and type tags, and stores a GeoPt as a two element array.
+ */
+enum JsonFormat {
+    STANDARD("key", "properties", "key", "unindexed", "class", "value"),
+    COMPACT("k", "p", "n", "u", "t", "v");
+
+    public static final String NULL_CLASS = "null";
+
+    private static final Map<String, String> COMPACT_TAGS = new HashMap<>();
+    private static final Map<String, String> CLASS_NAMES = new HashMap<>();
+
+    static {
+        addCompactTag(NULL_CLASS, "0");
+        addCompactTag(String.class.getSimpleName(), "s");
+        addCompactTag(Boolean.class.getSimpleName(), "b");
+        addCompactTag(Integer.class.getSimpleName(), "i");
+        addCompactTag(Long.class.getSimpleName(), "l");
+        addCompactTag(Float.class.getSimpleName(), "f");
+        addCompactTag(Double.class.getSimpleName(), "d");
+        addCompactTag(Text.class.getSimpleName(), "t");
+        addCompactTag(Date.class.getSimpleName(), "D");
+        addCompactTag(Key.class.getSimpleName(), "k");
+        addCompactTag(GeoPt.class.getSimpleName(), "g");
+        addCompactTag(EmbeddedEntity.class.getSimpleName(), "e");
+        addCompactTag(Collection.class.getSimpleName(), "c");
+        addCompactTag(Blob.class.getSimpleName(), "B");
+    }
+
+    final String entityKey;
+    final String entityProperties;
+    final String propertyName;
+    final String unindexed;
+    final String valueClass;
+    final String value;
+
+    JsonFormat(String entityKey, String entityProperties, String propertyName, String unindexed, String valueClass, String value) {
+        this.entityKey = entityKey;
+        this.entityProperties = entityProperties;
+        this.propertyName = propertyName;
+        this.unindexed = unindexed;
+        this.valueClass = valueClass;
+        this.value = value;
+    }
+
+    /**
+     * @return the tag written for values of the class with the given simple name
+     */
+    public String typeTag(String className) {
+        if (this == STANDARD) {
+            return className;
+        }
+        final String tag = COMPACT_TAGS.get(className);
+        if (tag == null) {
+            throw new IllegalArgumentException("No compact tag for class " + className);
+        }
+        return tag;
+    }
+
+    /**
+     * @return the simple class name for a type tag of either format
+     */
+    public static String className(String typeTag) {
+        final String className = CLASS_NAMES.get(typeTag);
+        return className != null ? className : typeTag;
+    }
+
+    private static void addCompactTag(String className, String tag) {
+        COMPACT_TAGS.put(className, tag);
+        CLASS_NAMES.put(tag, className);
+    }
+}
@@ -0,0 +1,71 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Parses key strings and recreates the keys for the current app and namespace, keeping the most recently used keys
+ * and parents. Not thread safe, readers on the same thread may share one.
+ */
+class KeyCache {
+    //Fixed keys by key string, most keys share a few ancestors and reference the same entities
+    private final LruCache<String, Key> keys;
+    //Fixed keys by the parsed key, for the parents of keys that are not cached themselves
+    private final LruCache<Key, Key> parents;
+
+    /**
+     * @param maxSize number of keys whose parsed and fixed form is kept, 0 disables caching
+     */
+    public KeyCache(int maxSize) {
+        this.keys = new LruCache<>(maxSize);
+        this.parents = new LruCache<>(maxSize);
+    }
+
+    public Key toFixedKey(String keyString) {
+        Key fixedKey = keys.get(keyString);
+        if (fixedKey == null) {
+            fixedKey = fixKey(KeyFactory.stringToKey(keyString));
+            keys.put(keyString, fixedKey);
+        }
+        return fixedKey;
+    }
+
+    /**
+     * @return number of keys read from the cache
+     */
+    public long getHits() {
+        return keys.getHits();
+    }
+
+    /**
+     * @return number of keys that had to be parsed and fixed
+     */
+    public long getMisses() {
+        return keys.getMisses();
+    }
+
+    //This should fix issues with non-matching namespaces
+    private Key fixKey(Key key) {
+        if (key == null) {
+            return null;
+        }
+        Key parent = fixParent(key.getParent());
+        if (key.getName() != null) {
+            return KeyFactory.createKey(parent, key.getKind(), key.getName());
+        } else {
+            return KeyFactory.createKey(parent, key.getKind(), key.getId());
+        }
+    }
+
+    private Key fixParent(Key parent) {
+        if (parent == null) {
+            return null;
+        }
+        Key fixedParent = parents.get(parent);
+        if (fixedParent == null) {
+            fixedParent = fixKey(parent);
+            parents.put(parent, fixedParent);
+        }
+        return fixedParent;
+    }
+}
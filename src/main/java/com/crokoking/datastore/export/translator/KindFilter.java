@@ -0,0 +1,46 @@
+package com.crokoking.datastore.export.translator;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which kinds are exported based on the include and exclude lists
+ */
+class KindFilter {
+    private final Set<String> includeKinds;
+    private final Set<String> excludeKinds;
+
+    public KindFilter(Collection<String> includeKinds, Collection<String> excludeKinds) {
+        this.includeKinds = new HashSet<>(includeKinds);
+        this.excludeKinds = new HashSet<>(excludeKinds);
+    }
+
+    /**
+     * @return true if every kind is accepted
+     */
+    public boolean acceptsAll() {
+        return includeKinds.isEmpty() && excludeKinds.isEmpty();
+    }
+
+    public boolean accepts(String kind) {
+        if (!includeKinds.isEmpty() && !includeKinds.contains(kind)) {
+            return false;
+        }
+        return !excludeKinds.contains(kind);
+    }
+
+    /**
+     * Checks the kind stored in a serialized entity without decoding it.
+     *
+     * @return false only if the record is known to be of a rejected kind
+     */
+    public boolean mayAccept(ByteBuffer buffer, int offset, int length) {
+        if (acceptsAll()) {
+            return true;
+        }
+        final String kind = EntityProtoKindReader.readKind(buffer, offset, length);
+        return kind == null || accepts(kind);
+    }
+}
@@ -1,66 +1,328 @@
 package com.crokoking.datastore.export.translator;
 
-import org.iq80.leveldb.impl.LogMonitor;
-import org.iq80.leveldb.impl.LogReader;
-import org.iq80.leveldb.util.Slice;
-
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
-import java.util.function.Consumer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 class LevelDBLogParser {
+    private static final int QUEUE_CAPACITY = 1024;
+    //Marks the end of a file in the merge queues, compared by identity
+    private static final Record END_OF_FILE = new Record(ByteBuffer.allocate(0), 0, 0);
+
     private final Path directoryPath;
-    private final Consumer<byte[]> recordConsumer;
+    private final RecordConsumer recordConsumer;
+    private final int threads;
+    private final boolean ordered;
+    private Predicate<String> kindFilter = kind -> true;
+    private FileListener fileListener;
+    private MappedLogReader.CorruptionListener corruptionListener;
+    private MappedLogReader.ProgressListener progressListener;
+    private boolean stopOnFileError;
+    private Set<Path> finishedFiles = Collections.emptySet();
+    private Path resumeFile;
+    private long resumeRecords;
+
+    public interface FileListener {
+        /**
+         * @param skippedRecords number of records at the start of the file that are skipped when resuming
+         */
+        void fileStarted(Path file, long skippedRecords);
+    }
 
-    public LevelDBLogParser(Path directoryPath, Consumer<byte[]> recordConsumer) {
+    public LevelDBLogParser(Path directoryPath, RecordConsumer recordConsumer) {
+        this(directoryPath, recordConsumer, 1, true);
+    }
+
+    /**
+     * @param threads number of files that are read at the same time
+     * @param ordered if true, records are handed to the consumer in file order, otherwise as soon as they are read
+     */
+    public LevelDBLogParser(Path directoryPath, RecordConsumer recordConsumer, int threads, boolean ordered) {
         this.directoryPath = directoryPath;
         this.recordConsumer = recordConsumer;
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Skips the directories of kinds that are not accepted by the filter. Only used if the export has metadata files,
+     * otherwise every output file is read.
+     */
+    public void setKindFilter(Predicate<String> kindFilter) {
+        this.kindFilter = kindFilter;
+    }
+
+    /**
+     * Sets the listener that is called on the consuming thread before the records of every file. Not called if
+     * records of several files are consumed unordered.
+     */
+    public void setFileListener(FileListener fileListener) {
+        this.fileListener = fileListener;
+    }
+
+    /**
+     * Sets the listener that is called for every corrupted block or record, on the thread reading the file
+     */
+    public void setCorruptionListener(MappedLogReader.CorruptionListener corruptionListener) {
+        this.corruptionListener = corruptionListener;
+    }
+
+    /**
+     * Sets the listener that is called with the bytes of every block that was read, on the thread reading the file.
+     * Measured in the same unit as {@link #getInputSize()}.
+     */
+    public void setProgressListener(MappedLogReader.ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * If set, a file that cannot be read stops the parsing with the error instead of being reported and skipped.
+     * Needed with checkpoints, where the next file would mark the skipped one as finished.
+     */
+    public void setStopOnFileError(boolean stopOnFileError) {
+        this.stopOnFileError = stopOnFileError;
+    }
+
+    /**
+     * Continues an earlier run. Finished files are not read at all, the first records of the current file are skipped.
+     *
+     * @param currentFile file that was partially read, null if none
+     */
+    public void setResumePosition(Collection<Path> finishedFiles, Path currentFile, long currentFileRecords) {
+        this.finishedFiles = new HashSet<>(finishedFiles);
+        this.resumeFile = currentFile;
+        this.resumeRecords = currentFileRecords;
+    }
+
+    /**
+     * @return the size of the files that {@link #parse()} reads
+     */
+    public long getInputSize() throws IOException {
+        long size = 0;
+        for (Path file : findFiles()) {
+            if (!finishedFiles.contains(file)) {
+                size += Files.size(file);
+            }
+        }
+        return size;
     }
 
     public void parse() throws IOException {
-        try(final Stream<Path> stream = Files.walk(directoryPath)) {
-            stream.filter(path -> path.getFileName().toString().startsWith("output-")).forEach(this::parseFile);
+        final List<Path> files = findFiles();
+        files.removeAll(finishedFiles);
+        if (threads <= 1 || files.size() <= 1) {
+            for (Path path : files) {
+                fireFileStarted(path);
+                parseFile(path, recordConsumer);
+            }
+        } else if (ordered) {
+            parseOrdered(files);
+        } else {
+            parseUnordered(files);
         }
     }
 
-    private void parseFile(Path path) {
+    private List<Path> findFiles() throws IOException {
+        if (!ExportMetadata.isPresent(directoryPath)) {
+            try(final Stream<Path> stream = Files.walk(directoryPath)) {
+                return stream.filter(LevelDBLogParser::isOutputFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+            }
+        }
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(directoryPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final String kind = ExportMetadata.getKind(dir);
+                if (kind != null && !kindFilter.test(kind)) {
+                    System.out.println("Skipping kind directory " + dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (isOutputFile(file)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    private static boolean isOutputFile(Path path) {
+        return path.getFileName().toString().startsWith("output-");
+    }
+
+    //Every file gets its own queue, the files are drained one after the other
+    private void parseOrdered(List<Path> files) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            doParseFile(path);
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
+            final List<BlockingQueue<Record>> queues = new ArrayList<>();
+            for (Path file : files) {
+                final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+                queues.add(queue);
+                executor.execute(() -> readIntoQueue(file, queue));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                final BlockingQueue<Record> queue = queues.get(i);
+                fireFileStarted(files.get(i));
+                Record record;
+                while ((record = queue.take()) != END_OF_FILE) {
+                    if (record.failure != null) {
+                        throw record.failure;
+                    }
+                    recordConsumer.accept(record.buffer, record.offset, record.length);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + directoryPath);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private void doParseFile(Path path) {
-        System.out.println("Importing from file " + path);
-        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
-            final LogReader logReader = new LogReader(fileChannel, new LogMonitor() {
-                @Override
-                public void corruption(long bytes, String reason) {
-                    System.err.println("corruption: " + reason);
+    //All files share one queue, records are consumed in the order they are read
+    private void parseUnordered(List<Path> files) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+            for (Path file : files) {
+                executor.execute(() -> readIntoQueue(file, queue));
+            }
+            int finishedFiles = 0;
+            while (finishedFiles < files.size()) {
+                final Record record = queue.take();
+                if (record.failure != null) {
+                    throw record.failure;
+                } else if (record == END_OF_FILE) {
+                    finishedFiles++;
+                } else {
+                    recordConsumer.accept(record.buffer, record.offset, record.length);
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + directoryPath);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                @Override
-                public void corruption(long bytes, Throwable reason) {
-                    System.err.println("corruption: ");
-                    reason.printStackTrace(System.err);
+    private void readIntoQueue(Path path, BlockingQueue<Record> queue) {
+        Record end = END_OF_FILE;
+        try {
+            parseFile(path, (buffer, offset, length) -> {
+                try {
+                    queue.put(new Record(buffer, offset, length));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reading " + path);
                 }
-            }, true, 0);
-            do {
-                while(true) {
-                    Slice slice = logReader.readRecord();
-                    if(slice == null) {
-                        break;
-                    }
-                    recordConsumer.accept(slice.getBytes());
+            });
+        } catch (IOException e) {
+            //Thrown by the consuming thread instead of ending the file
+            end = new Record(e);
+        } finally {
+            if (!Thread.currentThread().isInterrupted()) {
+                try {
+                    queue.put(end);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            } while (logReader.readNextBlock());
+            }
+        }
+    }
+
+    private void parseFile(Path path, RecordConsumer consumer) throws IOException {
+        try {
+            doParseFile(path, consumer);
+        } catch (UncheckedIOException e) {
+            //Thrown by the consumer, e.g. after the output failed, stops the parsing instead of going on with the next file
+            throw e;
         } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (stopOnFileError) {
+                throw new IOException("Could not read " + path, e);
+            }
             e.printStackTrace(System.err);
         }
     }
-}
+
+    private void doParseFile(Path path, RecordConsumer consumer) throws IOException {
+        System.out.println("Importing from file " + path);
+        final long skippedRecords = path.equals(resumeFile) ? resumeRecords : 0;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedLogReader reader = new MappedLogReader(fileChannel);
+            reader.setCorruptionListener(corruptionListener);
+            reader.setProgressListener(progressListener);
+            if (skippedRecords == 0) {
+                reader.read(consumer);
+            } else {
+                final long[] records = new long[1];
+                reader.read((buffer, offset, length) -> {
+                    if (records[0]++ >= skippedRecords) {
+                        consumer.accept(buffer, offset, length);
+                    }
+                });
+            }
+        }
+    }
+
+    private void fireFileStarted(Path path) {
+        if (fileListener != null) {
+            fileListener.fileStarted(path, path.equals(resumeFile) ? resumeRecords : 0);
+        }
+    }
+
+    //A record waiting in a merge queue
+    private static class Record {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        //Ends a file that could not be read, with stopOnFileError only
+        private final IOException failure;
+
+        private Record(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.failure = null;
+        }
+
+        private Record(IOException failure) {
+            this.buffer = null;
+            this.offset = 0;
+            this.length = 0;
+            this.failure = failure;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.crokoking.datastore.export.translator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map of limited size that evicts the least recently used entry and counts hits and misses. Not thread safe.
+ */
+class LruCache<K, V> {
+    private final int maxSize;
+    private final EntryMap<K, V> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize number of entries that are kept, 0 disables the cache
+     */
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new EntryMap<>(maxSize);
+    }
+
+    /**
+     * @return the cached value, or null if the key is not cached
+     */
+    public V get(K key) {
+        final V value = entries.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (maxSize > 0) {
+            entries.put(key, value);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    //Access ordered, so the eldest entry is the least recently used one
+    private static class EntryMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private EntryMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
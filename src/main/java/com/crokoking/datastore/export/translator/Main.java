@@ -22,6 +22,28 @@ public class Main {
         final Option output = Option.builder().option("output").hasArgs().desc("Output file").required().build();
         final Option include = Option.builder().option("include").hasArgs().desc("Include kind. If any are specified, only included kinds are exported").build();
         final Option exclude = Option.builder().option("exclude").hasArgs().desc("Exclude kind").build();
+        final Option threads = Option.builder().option("threads").hasArg().desc("Number of export files read in parallel. Defaults to 1").build();
+        final Option unordered = Option.builder().option("unordered").desc("Write entities as they are read instead of in export file order. Only has an effect with more than one thread").build();
+        final Option decoders = Option.builder().option("decoders").hasArg().desc("Number of threads decoding entities and encoding them to JSON. Defaults to 1").build();
+        final Option queueSize = Option.builder().option("queueSize").hasArg().desc("Maximum number of entities between reading and writing. Defaults to 1024").build();
+        final Option shardByKind = Option.builder().option("shardByKind").desc("Write one series of files per kind. The output is a directory with a manifest").build();
+        final Option maxEntitiesPerFile = Option.builder().option("maxEntitiesPerFile").hasArg().desc("Start a new output file after this many entities. The output is a directory with a manifest").build();
+        final Option maxBytesPerFile = Option.builder().option("maxBytesPerFile").hasArg().desc("Start a new output file after this many bytes. The output is a directory with a manifest").build();
+        final Option maxOpenFiles = Option.builder().option("maxOpenFiles").hasArg().desc("Number of output files that are open at the same time. A series of files that is written least recently continues in a new file when another one is needed. Defaults to " + ShardedOutput.DEFAULT_MAX_OPEN_FILES).build();
+        final Option ndjson = Option.builder().option("ndjson").desc("Write newline delimited JSON with one entity per line instead of a JSON array").build();
+        final Option gzip = Option.builder().option("gzip").optionalArg(true).argName("threads")
+            .desc("Gzip compress the output in parallel blocks. Optionally sets the number of compression threads, defaults to the number of processors").build();
+        final Option compact = Option.builder().option("compact").desc("Write entities without indentation, keys as key strings only and with short type tags").build();
+        final Option where = Option.builder().option("where").hasArg().desc("Only export entities matching the expression, e.g. \"count > 10 AND (state = 'open' OR __key__ HAS ANCESTOR KEY('Parent', 'p1'))\"").build();
+        final Option index = Option.builder().option("index").desc("Write an index of the entities by key string next to the output file, for looking up single entities. Only for a single uncompressed output file").build();
+        final Option columnar = Option.builder().option("columnar").desc("Write a directory with the properties of every kind in columns and the inferred schema instead of JSON").build();
+        final Option checkpoint = Option.builder().option("checkpoint").desc("Keep a checkpoint next to the output file, so that an interrupted run can be resumed. Only for a single uncompressed output file").build();
+        final Option resume = Option.builder().option("resume").desc("Continue an interrupted run from the checkpoint next to the output file, or start one with a checkpoint if there is none").build();
+        final Option progressInterval = Option.builder().option("progressInterval").hasArg().desc("Seconds between progress lines, 0 disables them. Defaults to " + Translator.DEFAULT_PROGRESS_INTERVAL_MILLIS / 1000).build();
+        final Option summary = Option.builder().option("summary").hasArg().desc("Write the metrics of the run as JSON to this file").build();
+        final Option outputBufferSize = Option.builder().option("outputBufferSize").hasArg().desc("Size in bytes of the buffers the output is encoded into before a separate thread writes them. Defaults to " + AsyncChannelOutputStream.DEFAULT_BUFFER_SIZE).build();
+        final Option outputBuffers = Option.builder().option("outputBuffers").hasArg().desc("Number of output buffers of each output file, at least 2. Defaults to " + AsyncChannelOutputStream.DEFAULT_BUFFER_COUNT).build();
+        final Option keyCacheSize = Option.builder().option("keyCacheSize").hasArg().desc("Number of keys whose JSON is cached by each decoder thread, 0 disables the cache. Defaults to " + Translator.DEFAULT_KEY_CACHE_SIZE).build();
 
         final Options options = new Options();
         options.addOption(help);
@@ -29,6 +51,27 @@ public class Main {
         options.addOption(output);
         options.addOption(include);
         options.addOption(exclude);
+        options.addOption(where);
+        options.addOption(threads);
+        options.addOption(unordered);
+        options.addOption(decoders);
+        options.addOption(queueSize);
+        options.addOption(shardByKind);
+        options.addOption(maxEntitiesPerFile);
+        options.addOption(maxBytesPerFile);
+        options.addOption(maxOpenFiles);
+        options.addOption(ndjson);
+        options.addOption(compact);
+        options.addOption(gzip);
+        options.addOption(index);
+        options.addOption(columnar);
+        options.addOption(checkpoint);
+        options.addOption(resume);
+        options.addOption(progressInterval);
+        options.addOption(summary);
+        options.addOption(outputBufferSize);
+        options.addOption(outputBuffers);
+        options.addOption(keyCacheSize);
 
         final CommandLine commandLine;
         try {
@@ -54,13 +97,104 @@ public class Main {
             System.err.println("Input directory is not a directory: " + inputPathString);
             return;
         }
+
+        final Integer threadCount = getPositiveInt(commandLine, threads, 1);
+        final Integer decoderCount = getPositiveInt(commandLine, decoders, 1);
+        final Integer queueCapacity = getPositiveInt(commandLine, queueSize, 1024);
+        final Long maxEntities = getPositiveLong(commandLine, maxEntitiesPerFile, 0);
+        final Long maxBytes = getPositiveLong(commandLine, maxBytesPerFile, 0);
+        final Integer openFiles = getPositiveInt(commandLine, maxOpenFiles, ShardedOutput.DEFAULT_MAX_OPEN_FILES);
+        final Integer compressionThreads = commandLine.hasOption(gzip)
+            ? getPositiveInt(commandLine, gzip, Runtime.getRuntime().availableProcessors())
+            : Integer.valueOf(0);
+        final Integer keyCacheEntries = getNonNegativeInt(commandLine, keyCacheSize, Translator.DEFAULT_KEY_CACHE_SIZE);
+        final Integer bufferSize = getPositiveInt(commandLine, outputBufferSize, AsyncChannelOutputStream.DEFAULT_BUFFER_SIZE);
+        final Integer bufferCount = getPositiveInt(commandLine, outputBuffers, AsyncChannelOutputStream.DEFAULT_BUFFER_COUNT);
+        if (threadCount == null || decoderCount == null || queueCapacity == null || maxEntities == null || maxBytes == null
+            || openFiles == null || compressionThreads == null || keyCacheEntries == null || bufferSize == null || bufferCount == null) {
+            return;
+        }
+        if (bufferSize < 1024 || bufferCount < 2) {
+            System.err.println("Output buffers must be at least 1024 bytes and at least 2 are needed");
+            return;
+        }
+
+        long progressIntervalMillis = Translator.DEFAULT_PROGRESS_INTERVAL_MILLIS;
+        if (commandLine.hasOption(progressInterval)) {
+            try {
+                progressIntervalMillis = Long.parseLong(commandLine.getOptionValue(progressInterval)) * 1000;
+            } catch (NumberFormatException e) {
+                progressIntervalMillis = -1;
+            }
+            if (progressIntervalMillis < 0) {
+                System.err.println("Invalid value for progressInterval: " + commandLine.getOptionValue(progressInterval));
+                return;
+            }
+        }
+
+        EntityFilter whereFilter = null;
+        if (commandLine.hasOption(where)) {
+            try {
+                whereFilter = EntityFilter.parse(commandLine.getOptionValue(where));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid value for where: " + e.getMessage());
+                return;
+            }
+        }
+
+        final Translator translator = new Translator();
+        translator.setThreads(threadCount);
+        translator.setOrdered(!commandLine.hasOption(unordered));
+        translator.setDecoders(decoderCount);
+        translator.setQueueCapacity(queueCapacity);
+        translator.setShardByKind(commandLine.hasOption(shardByKind));
+        translator.setMaxEntitiesPerFile(maxEntities);
+        translator.setMaxBytesPerFile(maxBytes);
+        translator.setMaxOpenFiles(openFiles);
+        translator.setNewlineDelimited(commandLine.hasOption(ndjson));
+        translator.setCompact(commandLine.hasOption(compact));
+        translator.setCompressionThreads(compressionThreads);
+        translator.setKeyCacheSize(keyCacheEntries);
+        translator.setWhere(whereFilter);
+        translator.setIndexed(commandLine.hasOption(index));
+        translator.setColumnar(commandLine.hasOption(columnar));
+        translator.setCheckpointed(commandLine.hasOption(checkpoint));
+        translator.setResume(commandLine.hasOption(resume));
+        translator.setProgressInterval(progressIntervalMillis);
+        translator.setOutputBufferSize(bufferSize);
+        translator.setOutputBufferCount(bufferCount);
+        if (commandLine.hasOption(summary)) {
+            translator.setSummaryPath(Paths.get(commandLine.getOptionValue(summary)));
+        }
+        if (commandLine.hasOption(index) && (translator.isSharded() || compressionThreads > 0)) {
+            System.err.println("The index is only written for a single uncompressed output file");
+            return;
+        }
+        if (commandLine.hasOption(columnar) && (translator.isSharded() || compressionThreads > 0 || commandLine.hasOption(index))) {
+            System.err.println("Columnar output cannot be sharded, compressed or indexed");
+            return;
+        }
+        if ((commandLine.hasOption(checkpoint) || commandLine.hasOption(resume))
+            && (translator.isSharded() || compressionThreads > 0 || commandLine.hasOption(index) || commandLine.hasOption(columnar))) {
+            System.err.println("Checkpoints are only written for a single uncompressed output file without an index");
+            return;
+        }
+        if ((commandLine.hasOption(checkpoint) || commandLine.hasOption(resume)) && commandLine.hasOption(unordered) && threadCount > 1) {
+            System.err.println("Checkpoints need the export files to be read in order");
+            return;
+        }
+
         final String outputFileString = commandLine.getOptionValue(output);
         final Path outputPath = Paths.get(outputFileString);
-        if (Files.exists(outputPath) && !Files.isRegularFile(outputPath)) {
+        if (translator.isSharded() || commandLine.hasOption(columnar)) {
+            if (Files.exists(outputPath) && !Files.isDirectory(outputPath)) {
+                System.err.println("Output is not a directory: " + outputFileString);
+                return;
+            }
+        } else if (Files.exists(outputPath) && !Files.isRegularFile(outputPath)) {
             System.err.println("Output file is not a file: " + outputFileString);
             return;
-        }
-        if (Files.exists(outputPath.getParent())) {
+        } else if (Files.exists(outputPath.getParent())) {
             if(!Files.isDirectory(outputPath.getParent())) {
                 System.err.println("Output file parent is not a directory: " + outputFileString);
                 return;
@@ -85,12 +219,57 @@ public class Main {
             Collections.addAll(excludeKinds, values);
         }
 
-        final Translator translator = new Translator();
         try {
             translator.translate(inputPath, outputPath, includeKinds, excludeKinds);
         } catch (IOException e) {
             System.err.println("Error while parsing: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            //E.g. a checkpoint of a run with other settings
+            System.err.println(e.getMessage());
+        }
+    }
+
+    //Returns null and prints an error if the value is not a positive number
+    private static Integer getPositiveInt(CommandLine commandLine, Option option, int defaultValue) {
+        return getInt(commandLine, option, defaultValue, 1);
+    }
+
+    //Returns null and prints an error if the value is not a number or negative
+    private static Integer getNonNegativeInt(CommandLine commandLine, Option option, int defaultValue) {
+        return getInt(commandLine, option, defaultValue, 0);
+    }
+
+    private static Integer getInt(CommandLine commandLine, Option option, int defaultValue, long minValue) {
+        final Long value = getLong(commandLine, option, defaultValue, minValue);
+        if (value == null) {
+            return null;
+        }
+        if (value > Integer.MAX_VALUE) {
+            System.err.println("Value for " + option.getOpt() + " is too large: " + value);
+            return null;
+        }
+        return value.intValue();
+    }
+
+    //Returns null and prints an error if the value is not a positive number
+    private static Long getPositiveLong(CommandLine commandLine, Option option, long defaultValue) {
+        return getLong(commandLine, option, defaultValue, 1);
+    }
+
+    private static Long getLong(CommandLine commandLine, Option option, long defaultValue, long minValue) {
+        final String valueString = commandLine.getOptionValue(option);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        try {
+            final long value = Long.parseLong(valueString);
+            if (value >= minValue) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
         }
+        System.err.println("Invalid value for " + option.getOpt() + ": " + valueString);
+        return null;
     }
 
     private static void printHelp(Options options) {
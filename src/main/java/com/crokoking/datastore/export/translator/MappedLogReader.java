@@ -0,0 +1,227 @@
+package com.crokoking.datastore.export.translator;
+
+import org.iq80.leveldb.util.PureJavaCrc32C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a LevelDB log file through memory mapped windows. The file is a sequence of 32 KiB blocks,
+ * every record is stored as one or more fragments, each with a 7 byte header of masked CRC32C, little endian length
+ * and fragment type. Records that fit into a single block are passed on as ranges of the mapping without copying,
+ * only records split over several blocks are assembled into a new array.
+ * <p>
+ * Record buffers stay valid after the file is closed, the mapping is released once no buffer references it anymore.
+ */
+final class MappedLogReader {
+    static final int BLOCK_SIZE = 32 * 1024;
+    static final int HEADER_SIZE = 7;
+    //Mapped at once, must be a multiple of the block size
+    static final int DEFAULT_WINDOW_SIZE = 2048 * BLOCK_SIZE;
+
+    private static final int ZERO_TYPE = 0;
+    private static final int FULL_TYPE = 1;
+    private static final int FIRST_TYPE = 2;
+    private static final int MIDDLE_TYPE = 3;
+    private static final int LAST_TYPE = 4;
+
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+    private static final int[][] CRC_TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? CRC32C_POLYNOMIAL : 0);
+            }
+            CRC_TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int table = 1; table < 8; table++) {
+                final int previous = CRC_TABLES[table - 1][i];
+                CRC_TABLES[table][i] = (previous >>> 8) ^ CRC_TABLES[0][previous & 0xFF];
+            }
+        }
+    }
+
+    public interface CorruptionListener {
+        void corruption(long offset, String reason);
+    }
+
+    public interface ProgressListener {
+        /**
+         * @param bytes bytes of the file that were consumed, including headers and padding
+         */
+        void bytesRead(long bytes);
+    }
+
+    private final FileChannel channel;
+    private final int windowSize;
+    private final boolean verifyChecksums;
+    private CorruptionListener corruptionListener;
+    private ProgressListener progressListener;
+    //Fragments of a record that spans blocks, null outside of such a record
+    private byte[] fragments;
+    private int fragmentsLength;
+
+    public MappedLogReader(FileChannel channel) {
+        this(channel, DEFAULT_WINDOW_SIZE, true);
+    }
+
+    MappedLogReader(FileChannel channel, int windowSize, boolean verifyChecksums) {
+        if (windowSize <= 0 || windowSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Window size must be a multiple of the block size: " + windowSize);
+        }
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * Sets the listener that is called for every corruption, in addition to reporting it
+     */
+    public void setCorruptionListener(CorruptionListener corruptionListener) {
+        this.corruptionListener = corruptionListener;
+    }
+
+    /**
+     * Sets the listener that is called after every block
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Passes every record to the consumer, corrupted blocks are reported and skipped
+     */
+    public void read(RecordConsumer consumer) throws IOException {
+        final long size = channel.size();
+        for (long windowStart = 0; windowStart < size; windowStart += windowSize) {
+            final int windowLength = (int) Math.min(windowSize, size - windowStart);
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            for (int blockStart = 0; blockStart < windowLength; blockStart += BLOCK_SIZE) {
+                final int blockEnd = Math.min(blockStart + BLOCK_SIZE, windowLength);
+                readBlock(window, windowStart, blockStart, blockEnd, consumer);
+                if (progressListener != null) {
+                    progressListener.bytesRead(blockEnd - blockStart);
+                }
+            }
+        }
+        if (fragments != null) {
+            dropRecord(size, "partial record at end of file");
+        }
+    }
+
+    private void readBlock(ByteBuffer window, long windowStart, int blockStart, int blockEnd, RecordConsumer consumer) {
+        int position = blockStart;
+        //A trailer shorter than a header is zero padding
+        while (blockEnd - position >= HEADER_SIZE) {
+            final int checksum = window.getInt(position);
+            final int length = window.getShort(position + 4) & 0xFFFF;
+            final int type = window.get(position + 6) & 0xFF;
+            final int dataStart = position + HEADER_SIZE;
+            if (type == ZERO_TYPE && length == 0) {
+                //Preallocated space, the rest of the block is empty
+                return;
+            }
+            if (length > blockEnd - dataStart) {
+                dropRecord(windowStart + position, "record length " + length + " exceeds block");
+                return;
+            }
+            if (verifyChecksums && checksum != chunkChecksum(type, window, dataStart, length)) {
+                dropRecord(windowStart + position, "checksum mismatch");
+                return;
+            }
+            switch (type) {
+                case FULL_TYPE:
+                    if (fragments != null) {
+                        dropRecord(windowStart + position, "partial record without end");
+                    }
+                    consumer.accept(window, dataStart, length);
+                    break;
+                case FIRST_TYPE:
+                    if (fragments != null) {
+                        dropRecord(windowStart + position, "partial record without end");
+                    }
+                    fragments = new byte[Math.max(length * 2, 256)];
+                    fragmentsLength = 0;
+                    appendFragment(window, dataStart, length);
+                    break;
+                case MIDDLE_TYPE:
+                    if (fragments == null) {
+                        corruption(windowStart + position, "missing start of fragmented record");
+                    } else {
+                        appendFragment(window, dataStart, length);
+                    }
+                    break;
+                case LAST_TYPE:
+                    if (fragments == null) {
+                        corruption(windowStart + position, "missing start of fragmented record");
+                    } else {
+                        appendFragment(window, dataStart, length);
+                        consumer.accept(ByteBuffer.wrap(fragments), 0, fragmentsLength);
+                        fragments = null;
+                    }
+                    break;
+                default:
+                    dropRecord(windowStart + position, "unknown record type " + type);
+                    return;
+            }
+            position = dataStart + length;
+        }
+    }
+
+    private void appendFragment(ByteBuffer window, int offset, int length) {
+        if (fragmentsLength + length > fragments.length) {
+            fragments = Arrays.copyOf(fragments, Math.max(fragments.length * 2, fragmentsLength + length));
+        }
+        final ByteBuffer fragment = window.duplicate();
+        fragment.position(offset);
+        fragment.get(fragments, fragmentsLength, length);
+        fragmentsLength += length;
+    }
+
+    //Drops the fragments of the record read so far
+    private void dropRecord(long offset, String reason) {
+        corruption(offset, reason);
+        fragments = null;
+    }
+
+    private void corruption(long offset, String reason) {
+        System.err.println("corruption at offset " + offset + ": " + reason);
+        if (corruptionListener != null) {
+            corruptionListener.corruption(offset, reason);
+        }
+    }
+
+    /**
+     * @return the masked CRC32C of the fragment type followed by the data, as stored in a fragment header
+     */
+    static int chunkChecksum(int type, ByteBuffer buffer, int offset, int length) {
+        int crc = ~0;
+        crc = (crc >>> 8) ^ CRC_TABLES[0][(crc ^ type) & 0xFF];
+        final boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        final int end = offset + length;
+        int position = offset;
+        //Slicing by 8, processes one long per step
+        while (end - position >= 8) {
+            final long word = littleEndian ? buffer.getLong(position) : Long.reverseBytes(buffer.getLong(position));
+            final int low = (int) word ^ crc;
+            final int high = (int) (word >>> 32);
+            crc = CRC_TABLES[7][low & 0xFF] ^ CRC_TABLES[6][(low >>> 8) & 0xFF]
+                ^ CRC_TABLES[5][(low >>> 16) & 0xFF] ^ CRC_TABLES[4][low >>> 24]
+                ^ CRC_TABLES[3][high & 0xFF] ^ CRC_TABLES[2][(high >>> 8) & 0xFF]
+                ^ CRC_TABLES[1][(high >>> 16) & 0xFF] ^ CRC_TABLES[0][high >>> 24];
+            position += 8;
+        }
+        while (position < end) {
+            crc = (crc >>> 8) ^ CRC_TABLES[0][(crc ^ buffer.get(position++)) & 0xFF];
+        }
+        return PureJavaCrc32C.mask(~crc);
+    }
+}
@@ -0,0 +1,182 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reads a large JSON export on several threads. An {@link EntityJsonSplitter} cuts the input into chunks of whole
+ * entity objects on the calling thread, the entities of a chunk are parsed by a strict {@link EntityJsonReader} each
+ * on a pool of worker threads. Entities are passed on in the order of the input.
+ */
+public class ParallelEntityJsonReader {
+    public static final int DEFAULT_CHUNK_ENTITIES = 1000;
+    private static final int MAX_CHUNK_CHARS = 1 << 22;
+
+    private final Reader reader;
+    private final int threads;
+    private final int keyCacheSize;
+    private int chunkEntities = DEFAULT_CHUNK_ENTITIES;
+    private Set<String> projection;
+    //The key caches of every worker thread
+    private final List<KeyCache> threadKeyCaches = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param keyCacheSize number of keys cached by each worker thread, see {@link EntityJsonReader#EntityJsonReader(JsonReader, int)}
+     */
+    public ParallelEntityJsonReader(Reader reader, int threads, int keyCacheSize) {
+        this.reader = reader;
+        this.threads = threads;
+        this.keyCacheSize = keyCacheSize;
+    }
+
+    /**
+     * Sets the number of entities parsed together by one worker thread
+     */
+    public void setChunkEntities(int chunkEntities) {
+        this.chunkEntities = chunkEntities;
+    }
+
+    /**
+     * See {@link EntityJsonReader#setProjection(Set)}
+     */
+    public void setProjection(Set<String> propertyNames) {
+        this.projection = propertyNames == null ? null : new HashSet<>(propertyNames);
+    }
+
+    /**
+     * @return number of keys read from the key caches of all worker threads
+     */
+    public long getKeyCacheHits() {
+        synchronized (threadKeyCaches) {
+            return threadKeyCaches.stream().mapToLong(KeyCache::getHits).sum();
+        }
+    }
+
+    /**
+     * @return number of keys that had to be parsed and fixed on all worker threads
+     */
+    public long getKeyCacheMisses() {
+        synchronized (threadKeyCaches) {
+            return threadKeyCaches.stream().mapToLong(KeyCache::getMisses).sum();
+        }
+    }
+
+    public void deserializeEntityArray(Consumer<Entity> consumer) throws IOException {
+        deserialize(true, consumer);
+    }
+
+    /**
+     * Reads either a JSON array of entities or newline delimited JSON, depending on the first token
+     */
+    public void deserializeEntities(Consumer<Entity> consumer) throws IOException {
+        deserialize(false, consumer);
+    }
+
+    /**
+     * Visits the entities on the worker threads. Every worker thread gets a visitor of its own from the supplier,
+     * the events of one entity go to the same visitor, but the entities of different visitors are interleaved.
+     */
+    public void visitEntities(Supplier<? extends EntityVisitor> visitors) throws IOException {
+        final ThreadLocal<EntityVisitor> threadVisitors = ThreadLocal.withInitial(visitors);
+        run(false, (chunk, keyCache) -> {
+            final EntityVisitor visitor = threadVisitors.get();
+            for (String entityJson : chunk) {
+                entityReader(entityJson, keyCache).visitOnlyEntity(visitor);
+            }
+            return null;
+        }, result -> {
+        });
+    }
+
+    private void deserialize(boolean requireArray, Consumer<Entity> consumer) throws IOException {
+        run(requireArray, (chunk, keyCache) -> {
+            final List<Entity> entities = new ArrayList<>(chunk.size());
+            for (String entityJson : chunk) {
+                entities.add(entityReader(entityJson, keyCache).deserializeOnlyEntity());
+            }
+            return entities;
+        }, entities -> entities.forEach(consumer));
+    }
+
+    private EntityJsonReader entityReader(String entityJson, KeyCache keyCache) {
+        return new EntityJsonReader(new JsonReader(new StringReader(entityJson)), keyCache, projection);
+    }
+
+    private interface ChunkParser<T> {
+        T parse(List<String> chunk, KeyCache keyCache) throws IOException;
+    }
+
+    private <T> void run(boolean requireArray, ChunkParser<T> parser, Consumer<T> resultConsumer) throws IOException {
+        final EntityJsonSplitter splitter = new EntityJsonSplitter(reader, chunkEntities, MAX_CHUNK_CHARS);
+        if (requireArray && !splitter.isArray()) {
+            throw new MalformedJsonException("Expected a JSON array of entities");
+        }
+        final ThreadLocal<KeyCache> keyCaches = ThreadLocal.withInitial(() -> {
+            final KeyCache keyCache = new KeyCache(keyCacheSize);
+            threadKeyCaches.add(keyCache);
+            return keyCache;
+        });
+        //Keys without a parent are created for the app of the environment, which is registered per thread
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> new Thread(() -> {
+            if (environment != null) {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+            }
+            runnable.run();
+        }, "json-parser"));
+        //Limits the chunks held in memory, results are taken in the order the chunks were read
+        final Queue<Future<T>> pendingChunks = new ArrayDeque<>();
+        try {
+            List<String> chunk;
+            while ((chunk = splitter.nextChunk()) != null) {
+                while (pendingChunks.size() >= threads * 2) {
+                    resultConsumer.accept(takeOldest(pendingChunks));
+                }
+                final List<String> entities = chunk;
+                pendingChunks.add(executor.submit(() -> parser.parse(entities, keyCaches.get())));
+            }
+            while (!pendingChunks.isEmpty()) {
+                resultConsumer.accept(takeOldest(pendingChunks));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T takeOldest(Queue<Future<T>> pendingChunks) throws IOException {
+        try {
+            return pendingChunks.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Parsing chunk failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses data in independent blocks on an executor, similar to pigz. Every block becomes a complete gzip
+ * member, the members are written in order. Concatenated members are a valid gzip file that gzip, zcat and
+ * {@link java.util.zip.GZIPInputStream} read as one stream.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final Queue<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength;
+    private boolean closed;
+
+    /**
+     * @param executor compresses the blocks, it is not shut down by this stream
+     * @param maxPendingBlocks number of blocks that may be compressed at the same time before writing blocks
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPendingBlocks) {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+            final int count = Math.min(length, blockSize - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Compresses the data written so far as its own block and writes every pending block
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            for (Future<byte[]> pendingBlock : pendingBlocks) {
+                pendingBlock.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeOldestBlock();
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        pendingBlocks.add(executor.submit(() -> compress(data, length)));
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            out.write(pendingBlocks.remove().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compressing block failed", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 1 << 16)) {
+            gzip.write(data, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,13 @@
+package com.crokoking.datastore.export.translator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives serialized records without copying them into arrays of their own. The record is the given range of the
+ * buffer, independent of its position and limit. The buffer may be a read only view of a mapped file and may hold
+ * other records as well, it must not be modified. The content of the range does not change, so the consumer may
+ * hand it on to other threads.
+ */
+interface RecordConsumer {
+    void accept(ByteBuffer buffer, int offset, int length);
+}
@@ -0,0 +1,190 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Times the translation of generated exports of several sizes and the validation of the output, and appends the
+ * throughput to a results file with one JSON object per line, for comparing versions. Generated exports are kept in
+ * the work directory and reused by later runs, they are the same for the same size.
+ */
+public class ScaleTestMain {
+    private static final String RESULTS_FILE_NAME = "scale-results.jsonl";
+
+    public static void main(String[] args) {
+        final Option help = Option.builder().option("help").desc("Print help").build();
+        final Option directory = Option.builder().option("directory").hasArg().desc("Work directory for the exports and outputs").required().build();
+        final Option scales = Option.builder().option("scales").hasArgs().desc("Export sizes, e.g. 1g 10g 100g. Defaults to 1g").build();
+        final Option label = Option.builder().option("label").hasArg().desc("Label of the results, e.g. the version that is tested. Defaults to the time of the run").build();
+        final Option results = Option.builder().option("results").hasArg().desc("File the results are appended to. Defaults to " + RESULTS_FILE_NAME + " in the work directory").build();
+        final Option threads = Option.builder().option("threads").hasArg().desc("Number of export files read in parallel. Defaults to 1").build();
+        final Option decoders = Option.builder().option("decoders").hasArg().desc("Number of decoder threads. Defaults to 1").build();
+        final Option keepOutput = Option.builder().option("keepOutput").desc("Keep the translated output instead of deleting it after the validation").build();
+
+        final Options options = new Options();
+        options.addOption(help);
+        options.addOption(directory);
+        options.addOption(scales);
+        options.addOption(label);
+        options.addOption(results);
+        options.addOption(threads);
+        options.addOption(decoders);
+        options.addOption(keepOutput);
+
+        final CommandLine commandLine;
+        try {
+            final DefaultParser parser = new DefaultParser();
+            commandLine = parser.parse(options, args);
+        } catch (ParseException e) {
+            printHelp(options);
+            return;
+        }
+
+        if (commandLine.hasOption(help)) {
+            printHelp(options);
+            return;
+        }
+
+        final Path workDirectory = Paths.get(commandLine.getOptionValue(directory));
+        final Path resultsPath = commandLine.hasOption(results)
+            ? Paths.get(commandLine.getOptionValue(results))
+            : workDirectory.resolve(RESULTS_FILE_NAME);
+        final String runLabel = commandLine.getOptionValue(label, new Date().toString());
+        final String[] scaleValues = commandLine.hasOption(scales) ? commandLine.getOptionValues(scales) : new String[]{"1g"};
+        final int threadCount;
+        final int decoderCount;
+        try {
+            threadCount = Integer.parseInt(commandLine.getOptionValue(threads, "1"));
+            decoderCount = Integer.parseInt(commandLine.getOptionValue(decoders, "1"));
+            for (String scale : scaleValues) {
+                ExportGeneratorMain.parseSize(scale);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value: " + e.getMessage());
+            return;
+        }
+        if (threadCount <= 0 || decoderCount <= 0) {
+            System.err.println("Threads and decoders must be positive");
+            return;
+        }
+
+        try {
+            Files.createDirectories(workDirectory);
+            for (String scale : scaleValues) {
+                final String scaleName = scale.trim().toLowerCase(Locale.ROOT);
+                final Path exportPath = workDirectory.resolve("export-" + scaleName);
+                if (!Files.isDirectory(exportPath)) {
+                    //Generated next to the final directory, so an interrupted generation is not mistaken for an export
+                    final Path generatingPath = workDirectory.resolve("export-" + scaleName + ".generating");
+                    if (Files.exists(generatingPath)) {
+                        System.err.println("Remove the export of an interrupted run first: " + generatingPath);
+                        return;
+                    }
+                    System.out.println("Generating " + scaleName + " export in " + exportPath);
+                    final ExportGenerator generator = new ExportGenerator();
+                    generator.setTargetBytes(ExportGeneratorMain.parseSize(scaleName));
+                    generator.generate(generatingPath);
+                    Files.move(generatingPath, exportPath);
+                }
+                final Path outputPath = workDirectory.resolve("output-" + scaleName + ".json");
+                final String result = run(exportPath, outputPath, runLabel, scaleName, threadCount, decoderCount);
+                if (!commandLine.hasOption(keepOutput)) {
+                    Files.deleteIfExists(outputPath);
+                }
+                System.out.println(result);
+                Files.write(resultsPath, Collections.singletonList(result), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    //Returns the results as a line of JSON
+    private static String run(Path exportPath, Path outputPath, String label, String scale, int threads, int decoders) throws IOException {
+        final long exportBytes = directorySize(exportPath);
+
+        final Translator translator = new Translator();
+        translator.setThreads(threads);
+        translator.setDecoders(decoders);
+        Files.deleteIfExists(outputPath);
+        final long translateStart = System.nanoTime();
+        translator.translate(exportPath, outputPath, Collections.emptyList(), Collections.emptyList());
+        final long translateNanos = System.nanoTime() - translateStart;
+        final long outputBytes = Files.size(outputPath);
+
+        //Walks the structure like the validator does with -structureOnly
+        final AtomicLong validated = new AtomicLong();
+        final long validateStart = System.nanoTime();
+        try (BufferedReader reader = CompressedFiles.newReader(outputPath)) {
+            new EntityJsonReader(reader).visitEntities(new EntityVisitor() {
+                @Override
+                public void endEntity() {
+                    validated.incrementAndGet();
+                }
+            });
+        }
+        final long validateNanos = System.nanoTime() - validateStart;
+
+        final StringWriter line = new StringWriter();
+        try (JsonWriter jsonWriter = new JsonWriter(line)) {
+            jsonWriter.beginObject();
+            jsonWriter.name("label").value(label);
+            jsonWriter.name("scale").value(scale);
+            jsonWriter.name("javaVersion").value(System.getProperty("java.version"));
+            jsonWriter.name("threads").value(threads);
+            jsonWriter.name("decoders").value(decoders);
+            jsonWriter.name("entities").value(validated.get());
+            jsonWriter.name("exportBytes").value(exportBytes);
+            jsonWriter.name("outputBytes").value(outputBytes);
+            writeTimes(jsonWriter, "translate", translateNanos, exportBytes, validated.get());
+            writeTimes(jsonWriter, "validate", validateNanos, outputBytes, validated.get());
+            jsonWriter.endObject();
+        }
+        return line.toString();
+    }
+
+    private static void writeTimes(JsonWriter jsonWriter, String name, long nanos, long bytes, long entities) throws IOException {
+        final double seconds = nanos / 1e9;
+        jsonWriter.name(name);
+        jsonWriter.beginObject();
+        jsonWriter.name("seconds").value(seconds);
+        jsonWriter.name("megabytesPerSecond").value(bytes / (1024.0 * 1024) / seconds);
+        jsonWriter.name("entitiesPerSecond").value(entities / seconds);
+        jsonWriter.endObject();
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> stream = Files.walk(directory)) {
+            long size = 0;
+            for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                size += Files.size(path);
+            }
+            return size;
+        }
+    }
+
+    private static void printHelp(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("ScaleTest", options, true);
+    }
+}
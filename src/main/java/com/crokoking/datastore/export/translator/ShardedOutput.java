@@ -0,0 +1,300 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes entities to a directory of JSON files, optionally one series of files per kind. A series rolls over
+ * to a new file once the current one reaches the entity or byte limit, counted before compression. The series are
+ * written by a few writer threads, and only a limited number of files is open at the same time. When another file is
+ * needed, the series that was written least recently closes its file and continues in a new one once it gets more
+ * entities. When closed, a {@value #MANIFEST_FILE_NAME} listing all files is written next to them.
+ */
+class ShardedOutput implements EntityOutput {
+    public static final String MANIFEST_FILE_NAME = "manifest.json";
+    public static final int DEFAULT_MAX_OPEN_FILES = 16;
+    private static final int MAX_WRITER_THREADS = 4;
+    private static final int QUEUE_CAPACITY = 1024;
+    //Marks the end of the input in the writer queues, compared by identity
+    private static final Pending END = new Pending(null, null);
+
+    public interface FileOpener {
+        EntityOutputFile open(Path path) throws IOException;
+    }
+
+    private final Path directory;
+    private final boolean byKind;
+    private final String fileExtension;
+    private final FileOpener fileOpener;
+    private final long maxEntitiesPerFile;
+    private final long maxBytesPerFile;
+    private final Map<String, Series> series = new HashMap<>();
+    private final Set<String> usedPrefixes = new HashSet<>();
+    //Started with the first entity
+    private final List<ShardWriter> writers = new ArrayList<>();
+    private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+    /**
+     * @param maxEntitiesPerFile entities after which a new file is started, 0 for no limit
+     * @param maxBytesPerFile bytes after which a new file is started, 0 for no limit
+     * @param fileExtension extension of the files, without the leading dot
+     * @param fileOpener creates the output file for a path
+     */
+    public ShardedOutput(Path directory, boolean byKind, long maxEntitiesPerFile, long maxBytesPerFile,
+                         String fileExtension, FileOpener fileOpener) {
+        this.directory = directory;
+        this.byKind = byKind;
+        this.fileExtension = fileExtension;
+        this.fileOpener = fileOpener;
+        this.maxEntitiesPerFile = maxEntitiesPerFile;
+        this.maxBytesPerFile = maxBytesPerFile;
+    }
+
+    /**
+     * Sets the number of files that are open at the same time, each has its own output buffers and compression.
+     * Must be set before the first entity is written.
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("At least one file must be open");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    @Override
+    public void write(String kind, String keyString, String json) throws IOException {
+        //The files of a sharded output are not indexed
+        final String seriesKind = byKind ? kind : null;
+        Series kindSeries = series.get(seriesKind);
+        if (kindSeries == null) {
+            if (writers.isEmpty()) {
+                startWriters();
+            }
+            kindSeries = new Series(seriesKind, uniquePrefix(seriesKind));
+            series.put(seriesKind, kindSeries);
+        }
+        //Every series stays on the same writer, so that its entities are written in order
+        writers.get(kindSeries.writer).enqueue(kindSeries, json);
+    }
+
+    //The open files are split between the writers
+    private void startWriters() {
+        final int threads = Math.min(MAX_WRITER_THREADS, maxOpenFiles);
+        for (int i = 0; i < threads; i++) {
+            writers.add(new ShardWriter(i, (maxOpenFiles + threads - 1 - i) / threads));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ShardWriter writer : writers) {
+            try {
+                writer.finish();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        final List<Shard> shards = new ArrayList<>();
+        for (Series kindSeries : series.values()) {
+            shards.addAll(kindSeries.shards);
+        }
+        shards.sort(Comparator.comparing(shard -> shard.fileName));
+        writeManifest(shards);
+    }
+
+    private void writeManifest(List<Shard> shards) throws IOException {
+        long totalEntities = 0;
+        try (Writer writer = Files.newBufferedWriter(directory.resolve(MANIFEST_FILE_NAME), StandardCharsets.UTF_8);
+             JsonWriter jsonWriter = new JsonWriter(writer)) {
+            jsonWriter.setIndent(" ");
+            jsonWriter.beginObject();
+            jsonWriter.name("shards");
+            jsonWriter.beginArray();
+            for (Shard shard : shards) {
+                jsonWriter.beginObject();
+                jsonWriter.name("file").value(shard.fileName);
+                if (shard.kind != null) {
+                    jsonWriter.name("kind").value(shard.kind);
+                }
+                jsonWriter.name("entities").value(shard.entities);
+                jsonWriter.name("bytes").value(shard.bytes);
+                jsonWriter.endObject();
+                totalEntities += shard.entities;
+            }
+            jsonWriter.endArray();
+            jsonWriter.name("entities").value(totalEntities);
+            jsonWriter.endObject();
+        }
+    }
+
+    //Kinds may contain characters that are not allowed in file names
+    private String uniquePrefix(String kind) {
+        final String base = kind == null ? "entities" : kind.replaceAll("[^A-Za-z0-9_.-]", "_");
+        String prefix = base;
+        for (int i = 1; !usedPrefixes.add(prefix); i++) {
+            prefix = base + "_" + i;
+        }
+        return prefix;
+    }
+
+    private static class Shard {
+        private final String fileName;
+        private final String kind;
+        private final long entities;
+        private final long bytes;
+
+        private Shard(String fileName, String kind, long entities, long bytes) {
+            this.fileName = fileName;
+            this.kind = kind;
+            this.entities = entities;
+            this.bytes = bytes;
+        }
+    }
+
+    //The files of one kind, or of all entities. Only used by its writer thread until the writers are finished.
+    private class Series {
+        private final String kind;
+        private final String prefix;
+        private final int writer;
+        private final List<Shard> shards = new ArrayList<>();
+        private EntityOutputFile current;
+
+        private Series(String kind, String prefix) {
+            this.kind = kind;
+            this.prefix = prefix;
+            this.writer = series.size() % writers.size();
+        }
+    }
+
+    private static class Pending {
+        private final Series series;
+        private final String json;
+
+        private Pending(Series series, String json) {
+            this.series = series;
+            this.json = json;
+        }
+    }
+
+    private class ShardWriter {
+        private final int maxOpenFiles;
+        private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        //Series with an open file, the least recently written one first
+        private final Set<Series> openSeries = new LinkedHashSet<>();
+        private volatile IOException failure;
+
+        private ShardWriter(int index, int maxOpenFiles) {
+            this.maxOpenFiles = maxOpenFiles;
+            this.thread = new Thread(this::run, "shard-writer-" + index);
+            this.thread.start();
+        }
+
+        private void enqueue(Series series, String json) throws IOException {
+            if (failure != null) {
+                throw new IOException("Writing shard " + series.prefix + " failed", failure);
+            }
+            try {
+                queue.put(new Pending(series, json));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing entity for shard " + series.prefix);
+            }
+        }
+
+        private void finish() throws IOException {
+            try {
+                queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while finishing shards");
+            }
+            if (failure != null) {
+                throw new IOException("Writing shards failed", failure);
+            }
+        }
+
+        private void run() {
+            try {
+                Pending pending;
+                while ((pending = queue.take()) != END) {
+                    //After a failure the queue is still drained so that producers do not block
+                    if (failure == null) {
+                        write(pending.series, pending.json);
+                    }
+                }
+                for (Series series : new ArrayList<>(openSeries)) {
+                    try {
+                        closeFile(series);
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(Series series, String json) {
+            try {
+                if (series.current != null && isFull(series.current)) {
+                    closeFile(series);
+                }
+                if (series.current == null) {
+                    if (openSeries.size() >= maxOpenFiles) {
+                        closeFile(openSeries.iterator().next());
+                    }
+                    final String fileName = String.format("%s-%05d.%s", series.prefix, series.shards.size(), fileExtension);
+                    series.current = fileOpener.open(directory.resolve(fileName));
+                }
+                //Moves the series to the end, the most recently written
+                openSeries.remove(series);
+                openSeries.add(series);
+                series.current.write(series.kind, null, json);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private boolean isFull(EntityOutputFile file) {
+            return (maxEntitiesPerFile > 0 && file.getEntityCount() >= maxEntitiesPerFile)
+                || (maxBytesPerFile > 0 && file.getByteCount() >= maxBytesPerFile);
+        }
+
+        private void closeFile(Series series) throws IOException {
+            final EntityOutputFile file = series.current;
+            openSeries.remove(series);
+            series.current = null;
+            file.close();
+            series.shards.add(new Shard(file.getPath().getFileName().toString(), series.kind, file.getEntityCount(), Files.size(file.getPath())));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Journal of a translation run, written next to the output file. It records the export files that are finished, the
+ * number of records of the current file whose entities are in the output, and the size of the output at that point.
+ * The output is synced to disk before the journal is replaced, so a run can be resumed by truncating the output to
+ * the recorded size and skipping the recorded records.
+ */
+final class TranslationCheckpoint {
+    public static final String FILE_SUFFIX = ".checkpoint";
+
+    private final String settings;
+    private final List<String> finishedFiles;
+    private final String currentFile;
+    private final long currentFileRecords;
+    private final long outputBytes;
+    private final long outputEntities;
+    private final boolean complete;
+
+    /**
+     * @param settings description of the translation settings, a run is only resumed with the same settings
+     * @param finishedFiles paths of the finished export files, relative to the export directory
+     * @param currentFile export file that is partially translated, null if none
+     */
+    TranslationCheckpoint(String settings, List<String> finishedFiles, String currentFile, long currentFileRecords,
+                          long outputBytes, long outputEntities, boolean complete) {
+        this.settings = settings;
+        this.finishedFiles = finishedFiles;
+        this.currentFile = currentFile;
+        this.currentFileRecords = currentFileRecords;
+        this.outputBytes = outputBytes;
+        this.outputEntities = outputEntities;
+        this.complete = complete;
+    }
+
+    public static Path checkpointPath(Path outputPath) {
+        return Paths.get(outputPath.toString() + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the checkpoint, null if there is none
+     */
+    public static TranslationCheckpoint read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        final JsonObject object;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            object = JsonParser.parseReader(reader).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid checkpoint " + path, e);
+        }
+        final List<String> finishedFiles = new ArrayList<>();
+        for (JsonElement file : object.getAsJsonArray("finishedFiles")) {
+            finishedFiles.add(file.getAsString());
+        }
+        final JsonElement currentFile = object.get("currentFile");
+        return new TranslationCheckpoint(object.get("settings").getAsString(), finishedFiles,
+            currentFile == null || currentFile.isJsonNull() ? null : currentFile.getAsString(),
+            object.get("currentFileRecords").getAsLong(), object.get("outputBytes").getAsLong(),
+            object.get("outputEntities").getAsLong(), object.get("complete").getAsBoolean());
+    }
+
+    /**
+     * Replaces the checkpoint atomically, a crash leaves either the old or the new one. The new journal is forced to
+     * disk before it replaces the old one, so a power loss cannot leave an empty journal behind.
+     */
+    public void write(Path path) throws IOException {
+        final Path temporary = Paths.get(path.toString() + ".tmp");
+        final StringWriter writer = new StringWriter();
+        try (JsonWriter jsonWriter = new JsonWriter(writer)) {
+            jsonWriter.setIndent(" ");
+            jsonWriter.beginObject();
+            jsonWriter.name("settings").value(settings);
+            jsonWriter.name("finishedFiles");
+            jsonWriter.beginArray();
+            for (String file : finishedFiles) {
+                jsonWriter.value(file);
+            }
+            jsonWriter.endArray();
+            jsonWriter.name("currentFile").value(currentFile);
+            jsonWriter.name("currentFileRecords").value(currentFileRecords);
+            jsonWriter.name("outputBytes").value(outputBytes);
+            jsonWriter.name("outputEntities").value(outputEntities);
+            jsonWriter.name("complete").value(complete);
+            jsonWriter.endObject();
+        }
+        final ByteBuffer bytes = ByteBuffer.wrap(writer.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getSettings() {
+        return settings;
+    }
+
+    public List<String> getFinishedFiles() {
+        return Collections.unmodifiableList(finishedFiles);
+    }
+
+    public String getCurrentFile() {
+        return currentFile;
+    }
+
+    public long getCurrentFileRecords() {
+        return currentFileRecords;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public long getOutputEntities() {
+        return outputEntities;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,289 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.gson.stream.JsonWriter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and timers of the stages of a translation. The stages update them from their own threads with
+ * {@link LongAdder}s, so counting a record costs a few uncontended additions. Progress is printed by a separate thread
+ * at a fixed interval instead of by the stages.
+ */
+final class TranslationMetrics implements TranslationMetricsMXBean {
+    private static final String OBJECT_NAME_PREFIX = "com.crokoking.datastore.export.translator:type=Translation,id=";
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+    private volatile long totalInputBytes;
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder recordsRead = new LongAdder();
+    private final LongAdder recordsDecoded = new LongAdder();
+    private final LongAdder recordsSkipped = new LongAdder();
+    private final LongAdder entitiesWritten = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder serializeNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder corruptionEvents = new LongAdder();
+    private final Map<String, KindCounters> kinds = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+    private ScheduledExecutorService progressExecutor;
+    //Progress thread
+    private long lastProgressNanos = startNanos;
+    private long lastProgressBytes;
+    private long lastProgressEntities;
+
+    /**
+     * Sets the size of the input that the progress is measured against
+     */
+    public void setTotalInputBytes(long totalInputBytes) {
+        this.totalInputBytes = totalInputBytes;
+    }
+
+    public void recordRead() {
+        recordsRead.increment();
+    }
+
+    /**
+     * @param bytes bytes of the input files, in the unit of the total input size
+     */
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void recordSkipped(long decodeNanos) {
+        recordsSkipped.increment();
+        this.decodeNanos.add(decodeNanos);
+    }
+
+    public void recordDecoded(String kind, int length, long decodeNanos, long serializeNanos) {
+        recordsDecoded.increment();
+        this.decodeNanos.add(decodeNanos);
+        this.serializeNanos.add(serializeNanos);
+        //computeIfAbsent locks the bin even when the kind is present on Java 8
+        KindCounters counters = kinds.get(kind);
+        if (counters == null) {
+            counters = kinds.computeIfAbsent(kind, k -> new KindCounters());
+        }
+        counters.entities.increment();
+        counters.bytes.add(length);
+    }
+
+    public void entityWritten(long writeNanos) {
+        entitiesWritten.increment();
+        this.writeNanos.add(writeNanos);
+    }
+
+    public void corruption(long offset, String reason) {
+        corruptionEvents.increment();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. A failed registration is reported but does not stop the
+     * translation.
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + NEXT_ID.incrementAndGet());
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("Could not register translation metrics: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.err.println("Could not unregister translation metrics: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Prints a progress line every interval until {@link #stopProgress()} is called
+     *
+     * @param details appended to the line, e.g. queue depths
+     */
+    public void startProgress(long intervalMillis, Supplier<String> details) {
+        progressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "translation-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressExecutor.scheduleAtFixedRate(() -> System.out.println(progressLine() + details.get()),
+            intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopProgress() {
+        if (progressExecutor != null) {
+            progressExecutor.shutdownNow();
+            progressExecutor = null;
+        }
+    }
+
+    /**
+     * Rates are those since the previous line, the ETA uses the average rate of the whole run
+     */
+    String progressLine() {
+        final long now = System.nanoTime();
+        final long totalInputBytes = this.totalInputBytes;
+        final long bytes = bytesRead.sum();
+        final long entities = entitiesWritten.sum();
+        final double intervalSeconds = Math.max(now - lastProgressNanos, 1) / 1e9;
+        final StringBuilder line = new StringBuilder("Translated ").append(entities).append(" entities, ")
+            .append(megabytes(bytes)).append(" of ").append(megabytes(totalInputBytes)).append(" MB");
+        if (totalInputBytes > 0) {
+            line.append(" (").append(Math.min(100, bytes * 100 / totalInputBytes)).append("%)");
+        }
+        line.append(", ").append(Math.round((entities - lastProgressEntities) / intervalSeconds)).append(" entities/s, ")
+            .append(String.format("%.1f", (bytes - lastProgressBytes) / (1024.0 * 1024) / intervalSeconds)).append(" MB/s");
+        if (bytes > 0 && totalInputBytes > bytes) {
+            final double elapsedSeconds = (now - startNanos) / 1e9;
+            line.append(", ETA ").append(formatDuration((long) ((totalInputBytes - bytes) * elapsedSeconds / bytes)));
+        }
+        lastProgressNanos = now;
+        lastProgressBytes = bytes;
+        lastProgressEntities = entities;
+        return line.toString();
+    }
+
+    /**
+     * Writes the final counters, rates and the counts per kind as JSON
+     */
+    public void writeSummary(Path path) throws IOException {
+        final double elapsedSeconds = getElapsedMillis() / 1000.0;
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+             JsonWriter jsonWriter = new JsonWriter(writer)) {
+            jsonWriter.setIndent(" ");
+            jsonWriter.beginObject();
+            jsonWriter.name("elapsedSeconds").value(elapsedSeconds);
+            jsonWriter.name("totalInputBytes").value(totalInputBytes);
+            jsonWriter.name("bytesRead").value(getBytesRead());
+            jsonWriter.name("recordsRead").value(getRecordsRead());
+            jsonWriter.name("recordsDecoded").value(getRecordsDecoded());
+            jsonWriter.name("recordsSkipped").value(getRecordsSkipped());
+            jsonWriter.name("entitiesWritten").value(getEntitiesWritten());
+            jsonWriter.name("corruptionEvents").value(getCorruptionEvents());
+            jsonWriter.name("decodeSeconds").value(decodeNanos.sum() / 1e9);
+            jsonWriter.name("serializeSeconds").value(serializeNanos.sum() / 1e9);
+            jsonWriter.name("writeSeconds").value(writeNanos.sum() / 1e9);
+            jsonWriter.name("megabytesPerSecond").value(elapsedSeconds > 0 ? getBytesRead() / (1024.0 * 1024) / elapsedSeconds : 0);
+            jsonWriter.name("entitiesPerSecond").value(elapsedSeconds > 0 ? getEntitiesWritten() / elapsedSeconds : 0);
+            jsonWriter.name("kinds");
+            jsonWriter.beginObject();
+            for (Map.Entry<String, KindCounters> entry : new TreeMap<>(kinds).entrySet()) {
+                jsonWriter.name(entry.getKey());
+                jsonWriter.beginObject();
+                jsonWriter.name("entities").value(entry.getValue().entities.sum());
+                jsonWriter.name("bytes").value(entry.getValue().bytes.sum());
+                jsonWriter.endObject();
+            }
+            jsonWriter.endObject();
+            jsonWriter.endObject();
+        }
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getTotalInputBytes() {
+        return totalInputBytes;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getRecordsRead() {
+        return recordsRead.sum();
+    }
+
+    @Override
+    public long getRecordsDecoded() {
+        return recordsDecoded.sum();
+    }
+
+    @Override
+    public long getRecordsSkipped() {
+        return recordsSkipped.sum();
+    }
+
+    @Override
+    public long getEntitiesWritten() {
+        return entitiesWritten.sum();
+    }
+
+    @Override
+    public long getDecodeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decodeNanos.sum());
+    }
+
+    @Override
+    public long getSerializeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(serializeNanos.sum());
+    }
+
+    @Override
+    public long getWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+
+    @Override
+    public long getCorruptionEvents() {
+        return corruptionEvents.sum();
+    }
+
+    @Override
+    public Map<String, Long> getEntitiesPerKind() {
+        final Map<String, Long> result = new TreeMap<>();
+        kinds.forEach((kind, counters) -> result.put(kind, counters.entities.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getBytesPerKind() {
+        final Map<String, Long> result = new TreeMap<>();
+        kinds.forEach((kind, counters) -> result.put(kind, counters.bytes.sum()));
+        return result;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024));
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static class KindCounters {
+        private final LongAdder entities = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+}
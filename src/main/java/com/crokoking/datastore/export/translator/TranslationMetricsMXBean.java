@@ -0,0 +1,45 @@
+package com.crokoking.datastore.export.translator;
+
+import java.util.Map;
+
+/**
+ * Counters of a running translation, registered with the platform MBean server while it runs. Times are summed over
+ * all threads of a stage, so with several decoders they can exceed the elapsed time.
+ */
+public interface TranslationMetricsMXBean {
+    long getElapsedMillis();
+
+    /**
+     * @return size of the export files that are read, the progress is measured against it
+     */
+    long getTotalInputBytes();
+
+    /**
+     * @return bytes of the export files that were read, including record headers, block padding and records that are
+     * skipped when resuming
+     */
+    long getBytesRead();
+
+    long getRecordsRead();
+
+    long getRecordsDecoded();
+
+    /**
+     * @return records that were dropped by the kind filter or the where expression
+     */
+    long getRecordsSkipped();
+
+    long getEntitiesWritten();
+
+    long getDecodeMillis();
+
+    long getSerializeMillis();
+
+    long getWriteMillis();
+
+    long getCorruptionEvents();
+
+    Map<String, Long> getEntitiesPerKind();
+
+    Map<String, Long> getBytesPerKind();
+}
@@ -0,0 +1,168 @@
+package com.crokoking.datastore.export.translator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes records on a pool of workers and hands the encoded results to a single writer thread in submission order.
+ * The queue between the stages is bounded, so a slow writer blocks {@link #submit(ByteBuffer, int, int)} instead of buffering
+ * the whole export in memory.
+ * <p>
+ * The first failure of the sink stops the pipeline: later records are dropped without being written, submitting
+ * throws, and {@link #finish()} rethrows the failure. Records that fail to decode are skipped and counted.
+ */
+class TranslationPipeline<T> implements Closeable {
+    //Marks the end of the input in the write queue, compared by identity
+    private static final Future<?> END = CompletableFuture.completedFuture(null);
+
+    public interface Encoder<T> {
+        /**
+         * @return the encoded record, or null if the record should be skipped
+         */
+        T encode(ByteBuffer buffer, int offset, int length) throws Exception;
+    }
+
+    public interface Sink<T> {
+        void write(T encoded) throws IOException;
+
+        /**
+         * Called instead of {@link #write(Object)} for a record that was skipped or failed to encode
+         */
+        default void skip() throws IOException {
+        }
+    }
+
+    private final Encoder<T> encoder;
+    private final ThreadPoolExecutor decodePool;
+    private final BlockingQueue<Future<?>> writeQueue;
+    private final AtomicLong decodeFailures = new AtomicLong();
+    private volatile Exception failure;
+    private Thread writerThread;
+
+    public TranslationPipeline(int decoders, int queueCapacity, Encoder<T> encoder) {
+        this.encoder = encoder;
+        //The write queue bounds the number of submitted tasks, so the decode queue does not need a bound of its own
+        this.decodePool = new ThreadPoolExecutor(decoders, decoders, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Starts the writer thread, must be called before records are submitted
+     */
+    public void start(Sink<T> sink) {
+        writerThread = new Thread(() -> runWriter(sink), "translation-writer");
+        writerThread.start();
+    }
+
+    /**
+     * Queues a record for decoding, blocks while the pipeline is full
+     *
+     * @throws UncheckedIOException if the sink has failed, the failure itself is thrown by {@link #finish()}
+     */
+    public void submit(ByteBuffer buffer, int offset, int length) {
+        if (failure != null) {
+            throw new UncheckedIOException(new IOException("Writing failed, no more records are accepted", failure));
+        }
+        final Future<T> future = decodePool.submit(() -> encoder.encode(buffer, offset, length));
+        try {
+            writeQueue.put(future);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing record");
+        }
+    }
+
+    /**
+     * Waits until every submitted record has been written
+     *
+     * @throws IOException the first failure of the sink
+     */
+    public void finish() throws IOException {
+        try {
+            writeQueue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * @return number of records whose encoder threw, they were skipped
+     */
+    public long getDecodeFailures() {
+        return decodeFailures.get();
+    }
+
+    /**
+     * @return number of records waiting for a decoder
+     */
+    public int getDecodeQueueDepth() {
+        return decodePool.getQueue().size();
+    }
+
+    /**
+     * @return number of records submitted but not written yet, including those waiting for a decoder
+     */
+    public int getWriteQueueDepth() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public void close() {
+        decodePool.shutdownNow();
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runWriter(Sink<T> sink) {
+        try {
+            Future<?> future;
+            while ((future = writeQueue.take()) != END) {
+                //After a failure the queue is still drained so that the submitting thread does not block
+                if (failure != null) {
+                    future.cancel(true);
+                    continue;
+                }
+                try {
+                    T encoded = null;
+                    try {
+                        encoded = (T) future.get();
+                    } catch (ExecutionException e) {
+                        decodeFailures.incrementAndGet();
+                        System.err.println("Could not decode record: " + e.getCause());
+                    }
+                    if (encoded != null) {
+                        sink.write(encoded);
+                    } else {
+                        sink.skip();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
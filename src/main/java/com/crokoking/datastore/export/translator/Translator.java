@@ -2,62 +2,566 @@ package com.crokoking.datastore.export.translator;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityTranslator;
-import com.google.appengine.repackaged.com.google.io.protocol.ProtocolSource;
+import com.google.appengine.api.datastore.Key;
 import com.google.gson.stream.JsonWriter;
 import com.google.storage.onestore.v3.OnestoreEntity;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Translator {
-    public void translate(Path directoryPath, Path outputPath, List<String> includeKinds, List<String> excludeKinds) throws IOException {
+    public static final int DEFAULT_KEY_CACHE_SIZE = 10_000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 10_000;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 10_000;
+
+    private int threads = 1;
+    private boolean ordered = true;
+    private int decoders = 1;
+    private int queueCapacity = 1024;
+    private boolean shardByKind = false;
+    private long maxEntitiesPerFile = 0;
+    private long maxBytesPerFile = 0;
+    private int maxOpenFiles = ShardedOutput.DEFAULT_MAX_OPEN_FILES;
+    private boolean newlineDelimited = false;
+    private boolean compact = false;
+    private int compressionThreads = 0;
+    private int keyCacheSize = DEFAULT_KEY_CACHE_SIZE;
+    private EntityFilter where;
+    private boolean indexed = false;
+    private boolean columnar = false;
+    private boolean checkpointed = false;
+    private boolean resume = false;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+    private Path summaryPath;
+    private int outputBufferSize = AsyncChannelOutputStream.DEFAULT_BUFFER_SIZE;
+    private int outputBufferCount = AsyncChannelOutputStream.DEFAULT_BUFFER_COUNT;
+
+    /**
+     * Sets the number of export files that are read at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * If false, entities from different export files are interleaved in the output as they are read
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Sets the number of threads that decode records and encode them to JSON
+     */
+    public void setDecoders(int decoders) {
+        this.decoders = decoders;
+    }
+
+    /**
+     * Sets the number of records that may be in flight between reading and writing
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Writes one series of output files per kind instead of a single file
+     */
+    public void setShardByKind(boolean shardByKind) {
+        this.shardByKind = shardByKind;
+    }
+
+    /**
+     * Starts a new output file after the given number of entities, 0 for no limit
+     */
+    public void setMaxEntitiesPerFile(long maxEntitiesPerFile) {
+        this.maxEntitiesPerFile = maxEntitiesPerFile;
+    }
+
+    /**
+     * Starts a new output file once the current one has reached the given size, 0 for no limit
+     */
+    public void setMaxBytesPerFile(long maxBytesPerFile) {
+        this.maxBytesPerFile = maxBytesPerFile;
+    }
+
+    /**
+     * Limits the files of a sharded output that are open at the same time, see {@link ShardedOutput#setMaxOpenFiles(int)}
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Writes newline delimited JSON with one entity per line instead of a JSON array
+     */
+    public void setNewlineDelimited(boolean newlineDelimited) {
+        this.newlineDelimited = newlineDelimited;
+    }
+
+    /**
+     * Writes entities without indentation, keys as key strings only and with short type tags
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Gzip compresses the output in blocks on the given number of threads, 0 for uncompressed output
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Sets the number of keys whose JSON each decoder thread caches, 0 disables the cache
+     */
+    public void setKeyCacheSize(int keyCacheSize) {
+        this.keyCacheSize = keyCacheSize;
+    }
+
+    /**
+     * Only translates entities the filter accepts, null translates all entities of the included kinds
+     */
+    public void setWhere(EntityFilter where) {
+        this.where = where;
+    }
+
+    /**
+     * Writes an index of the entities by key string next to the output file, see {@link EntityIndex}.
+     * Only supported for a single uncompressed output file.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
 
-        try (final FileWriter fileWriter = new FileWriter(outputPath.toFile())) {
-            try(final BufferedWriter writer = new BufferedWriter(fileWriter)) {
-                try(final JsonWriter jsonWriter = new JsonWriter(writer)) {
-                    jsonWriter.setIndent(" ");
-                    translate(directoryPath, includeKinds, excludeKinds, jsonWriter);
+    /**
+     * Writes a directory with the properties of every kind in columns and their inferred schema instead of JSON,
+     * see {@link ColumnarOutput}. Not supported together with sharding, compression or an index.
+     */
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    /**
+     * Keeps a {@link TranslationCheckpoint} next to the output file, so that an interrupted run can be resumed.
+     * Only supported for a single uncompressed output file without an index, read in order.
+     */
+    public void setCheckpointed(boolean checkpointed) {
+        this.checkpointed = checkpointed;
+    }
+
+    /**
+     * Continues the run recorded in the checkpoint next to the output file instead of starting over, if there is one.
+     * Implies {@link #setCheckpointed(boolean)}.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Sets the number of records after which the output is synced and the checkpoint is written
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Sets the interval of the progress line, 0 disables it
+     */
+    public void setProgressInterval(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Writes the final metrics of the run as JSON to this file, null for none
+     */
+    public void setSummaryPath(Path summaryPath) {
+        this.summaryPath = summaryPath;
+    }
+
+    /**
+     * Sets the size of the buffers that output files are encoded into before an I/O thread writes them
+     */
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of buffers of each output file, at least 2
+     */
+    public void setOutputBufferCount(int outputBufferCount) {
+        this.outputBufferCount = outputBufferCount;
+    }
+
+    /**
+     * @return true if the output path is a directory of shards and a manifest instead of a single file
+     */
+    public boolean isSharded() {
+        return shardByKind || maxEntitiesPerFile > 0 || maxBytesPerFile > 0;
+    }
+
+    public void translate(Path directoryPath, Path outputPath, List<String> includeKinds, List<String> excludeKinds) throws IOException {
+        if (indexed && (isSharded() || compressionThreads > 0)) {
+            throw new IllegalStateException("Only a single uncompressed output file can be indexed");
+        }
+        if (columnar && (isSharded() || compressionThreads > 0 || indexed)) {
+            throw new IllegalStateException("Columnar output cannot be sharded, compressed or indexed");
+        }
+        final boolean checkpointing = checkpointed || resume;
+        if (checkpointing && (isSharded() || compressionThreads > 0 || indexed || columnar)) {
+            throw new IllegalStateException("Checkpoints are only written for a single uncompressed output file without an index");
+        }
+        if (checkpointing && threads > 1 && !ordered) {
+            throw new IllegalStateException("Checkpoints need the export files to be read in order");
+        }
+        if (columnar) {
+            Files.createDirectories(outputPath);
+            try (final ColumnarOutput output = new ColumnarOutput(outputPath)) {
+                translate(directoryPath, includeKinds, excludeKinds, encoded -> output.write(encoded.kind, encoded.entity), null);
+            }
+            return;
+        }
+        if (checkpointing) {
+            translateCheckpointed(directoryPath, outputPath, includeKinds, excludeKinds);
+            return;
+        }
+        final ExecutorService compressionExecutor = compressionThreads > 0 ? Executors.newFixedThreadPool(compressionThreads) : null;
+        try {
+            final ShardedOutput.FileOpener fileOpener = path -> new EntityOutputFile(path, newlineDelimited,
+                compressionExecutor, compressionThreads * 2, outputBufferSize, outputBufferCount);
+            if (isSharded()) {
+                Files.createDirectories(outputPath);
+                final String fileExtension = (newlineDelimited ? "ndjson" : "json") + (compressionExecutor != null ? ".gz" : "");
+                try (final ShardedOutput output = new ShardedOutput(outputPath, shardByKind, maxEntitiesPerFile, maxBytesPerFile,
+                    fileExtension, fileOpener)) {
+                    output.setMaxOpenFiles(maxOpenFiles);
+                    translate(directoryPath, includeKinds, excludeKinds, encoded -> output.write(encoded.kind, encoded.keyString, encoded.json), null);
                 }
+            } else {
+                try (final EntityOutputFile output = fileOpener.open(outputPath)) {
+                    if (indexed) {
+                        output.setIndexWriter(new EntityIndexWriter(EntityIndex.indexPath(outputPath)));
+                    }
+                    translate(directoryPath, includeKinds, excludeKinds, encoded -> output.write(encoded.kind, encoded.keyString, encoded.json), null);
+                }
+            }
+        } finally {
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdownNow();
             }
         }
     }
 
-    private void translate(Path directoryPath, List<String> includeKinds, List<String> excludeKinds, JsonWriter jsonWriter) throws IOException {
-        final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
-        jsonWriter.beginArray();
-        final AtomicLong counter = new AtomicLong();
-        System.out.println("Translating backup from " + directoryPath);
-        LevelDBLogParser parser = new LevelDBLogParser(directoryPath, bytes -> {
-            Entity entity = toEntity(bytes);
-            if (!includeKinds.isEmpty() && !includeKinds.contains(entity.getKind())) {
-                return;
+    private void translateCheckpointed(Path directoryPath, Path outputPath, List<String> includeKinds, List<String> excludeKinds) throws IOException {
+        final Path checkpointPath = TranslationCheckpoint.checkpointPath(outputPath);
+        //A run is only continued with the settings that affect the output
+        final String settings = "input=" + directoryPath.toAbsolutePath().normalize() + ", newlineDelimited=" + newlineDelimited
+            + ", compact=" + compact + ", include=" + includeKinds + ", exclude=" + excludeKinds + ", where=" + where;
+        final TranslationCheckpoint resumed = resume ? TranslationCheckpoint.read(checkpointPath) : null;
+        if (resumed != null) {
+            if (!settings.equals(resumed.getSettings())) {
+                throw new IllegalStateException("The checkpoint was written with different settings: " + resumed.getSettings());
             }
-            if (excludeKinds.contains(entity.getKind())) {
+            if (resumed.isComplete()) {
+                System.out.println("Translation to " + outputPath + " is already complete");
                 return;
             }
+            System.out.println("Resuming after " + resumed.getOutputEntities() + " entities");
+        }
+        final EntityOutputFile output = resumed != null
+            ? EntityOutputFile.resume(outputPath, newlineDelimited, resumed.getOutputBytes(), resumed.getOutputEntities(),
+                outputBufferSize, outputBufferCount)
+            : new EntityOutputFile(outputPath, newlineDelimited, null, 0, outputBufferSize, outputBufferCount);
+        final Checkpointer checkpointer = new Checkpointer(directoryPath, checkpointPath, settings, output, resumed);
+        try {
+            checkpointer.write(false);
+            translate(directoryPath, includeKinds, excludeKinds, new TranslationPipeline.Sink<EncodedEntity>() {
+                @Override
+                public void write(EncodedEntity encoded) throws IOException {
+                    boolean written = false;
+                    try {
+                        output.write(encoded.kind, encoded.keyString, encoded.json);
+                        written = true;
+                    } finally {
+                        checkpointer.recordDone(written);
+                    }
+                }
+
+                @Override
+                public void skip() throws IOException {
+                    checkpointer.recordDone(true);
+                }
+            }, checkpointer);
+        } finally {
+            output.close();
+        }
+        checkpointer.write(true);
+    }
+
+    /**
+     * @param checkpointer tracks the position of the records for the checkpoint, null without checkpoints
+     */
+    private void translate(Path directoryPath, List<String> includeKinds, List<String> excludeKinds,
+                           TranslationPipeline.Sink<EncodedEntity> output, Checkpointer checkpointer) throws IOException {
+        System.out.println("Translating backup from " + directoryPath);
+        final ThreadLocal<DecodeContext> decodeContexts = ThreadLocal.withInitial(DecodeContext::new);
+        final ThreadLocal<EntityEncoder> encoders = ThreadLocal.withInitial(() -> new EntityEncoder(!newlineDelimited && !compact, compact, keyCacheSize));
+        final KindFilter kindFilter = new KindFilter(includeKinds, excludeKinds);
+        final TranslationMetrics metrics = new TranslationMetrics();
+        long decodeFailures = 0;
+        final TranslationPipeline.Encoder<EncodedEntity> encoder = (buffer, offset, length) -> {
+            final long decodeStart = System.nanoTime();
+            final DecodeContext decodeContext = decodeContexts.get();
+            final OnestoreEntity.EntityProto entityProto = decodeContext.decode(buffer, offset, length);
+            final String kind = EntityProtoJsonWriter.getKind(entityProto);
+            if (!kindFilter.accepts(kind) || (where != null && !where.test(entityProto))) {
+                metrics.recordSkipped(System.nanoTime() - decodeStart);
+                return null;
+            }
+            if (columnar) {
+                final Entity entity = EntityTranslator.createFromPb(entityProto);
+                metrics.recordDecoded(kind, length, System.nanoTime() - decodeStart, 0);
+                return new EncodedEntity(kind, null, null, entity);
+            }
+            final EntityEncoder entityEncoder = encoders.get();
+            final Key key = decodeContext.toKey(entityProto.getKey());
+            final long serializeStart = System.nanoTime();
+            final String json = entityEncoder.encode(entityProto, key);
+            final String keyString = indexed ? entityEncoder.keyToString(key) : null;
+            metrics.recordDecoded(kind, length, serializeStart - decodeStart, System.nanoTime() - serializeStart);
+            return new EncodedEntity(kind, keyString, json, null);
+        };
+        metrics.register();
+        try (final TranslationPipeline<EncodedEntity> pipeline = new TranslationPipeline<>(decoders, queueCapacity, encoder)) {
+            pipeline.start(new TranslationPipeline.Sink<EncodedEntity>() {
+                @Override
+                public void write(EncodedEntity encoded) throws IOException {
+                    final long writeStart = System.nanoTime();
+                    output.write(encoded);
+                    metrics.entityWritten(System.nanoTime() - writeStart);
+                }
+
+                @Override
+                public void skip() throws IOException {
+                    output.skip();
+                }
+            });
+            LevelDBLogParser parser = new LevelDBLogParser(directoryPath, (buffer, offset, length) -> {
+                metrics.recordRead();
+                if (checkpointer != null) {
+                    checkpointer.recordRead();
+                }
+                //Records of filtered kinds are dropped before they are fully decoded
+                if (kindFilter.mayAccept(buffer, offset, length)) {
+                    if (checkpointer != null) {
+                        checkpointer.recordSubmitted();
+                    }
+                    pipeline.submit(buffer, offset, length);
+                }
+            }, threads, ordered);
+            parser.setKindFilter(kindFilter::accepts);
+            parser.setCorruptionListener(metrics::corruption);
+            parser.setProgressListener(metrics::bytesRead);
+            if (checkpointer != null) {
+                checkpointer.configure(parser);
+            }
+            metrics.setTotalInputBytes(parser.getInputSize());
+            if (progressIntervalMillis > 0) {
+                metrics.startProgress(progressIntervalMillis, () -> " (decode queue " + pipeline.getDecodeQueueDepth()
+                    + ", write queue " + pipeline.getWriteQueueDepth() + ")");
+            }
             try {
-                entityJsonWriter.serializeEntity(entity);
+                parser.parse();
+            } catch (UncheckedIOException e) {
+                //The pipeline stopped taking records, finish() throws the failure of the output
+                pipeline.finish();
+                throw e.getCause();
             } catch (IOException e) {
-                e.printStackTrace(System.err);
+                //An export file could not be read, the records read before it are still written
+                pipeline.finish();
+                throw e;
+            }
+            pipeline.finish();
+            decodeFailures = pipeline.getDecodeFailures();
+        } finally {
+            metrics.stopProgress();
+            metrics.unregister();
+        }
+        System.out.println("Translated " + metrics.getEntitiesWritten() + " entities");
+        if (decodeFailures > 0) {
+            System.err.println("Skipped " + decodeFailures + " records that could not be decoded");
+        }
+        if (metrics.getCorruptionEvents() > 0) {
+            System.out.println("Skipped " + metrics.getCorruptionEvents() + " corrupted blocks or records");
+        }
+        if (summaryPath != null) {
+            metrics.writeSummary(summaryPath);
+        }
+    }
+
+    /**
+     * Follows the position of the records from the reading thread to the writer thread and writes the checkpoints.
+     * Records are written in the order they are read, so the positions of submitted records are queued in the same order.
+     */
+    private class Checkpointer {
+        private final Path directoryPath;
+        private final Path checkpointPath;
+        private final String settings;
+        private final EntityOutputFile output;
+        private final List<String> resumedFiles;
+        //Files in the order they were started, accessed by both threads
+        private final List<Path> startedFiles = Collections.synchronizedList(new ArrayList<>());
+        private final Queue<RecordPosition> positions = new ConcurrentLinkedQueue<>();
+        private final TranslationCheckpoint resumed;
+        //Reading thread
+        private int currentFile = -1;
+        private long currentFileRecords;
+        //Writer thread
+        private RecordPosition lastPosition;
+        private long recordsSinceCheckpoint;
+        private boolean failed;
+
+        private Checkpointer(Path directoryPath, Path checkpointPath, String settings, EntityOutputFile output,
+                             TranslationCheckpoint resumed) {
+            this.directoryPath = directoryPath;
+            this.checkpointPath = checkpointPath;
+            this.settings = settings;
+            this.output = output;
+            this.resumed = resumed;
+            this.resumedFiles = resumed != null ? resumed.getFinishedFiles() : Collections.emptyList();
+        }
+
+        private void configure(LevelDBLogParser parser) {
+            //A skipped file would be journaled as finished once the next one is read, and never be read on resume
+            parser.setStopOnFileError(true);
+            parser.setFileListener((file, skippedRecords) -> {
+                startedFiles.add(file);
+                currentFile = startedFiles.size() - 1;
+                currentFileRecords = skippedRecords;
+            });
+            if (resumed != null) {
+                final List<Path> finishedFiles = new ArrayList<>();
+                for (String file : resumed.getFinishedFiles()) {
+                    finishedFiles.add(directoryPath.resolve(file));
+                }
+                parser.setResumePosition(finishedFiles,
+                    resumed.getCurrentFile() == null ? null : directoryPath.resolve(resumed.getCurrentFile()),
+                    resumed.getCurrentFileRecords());
             }
-            final long counterValue = counter.incrementAndGet();
-            if (counterValue % 1000 == 0) {
-                System.out.println("Translated " + counterValue + " entities");
+        }
+
+        private void recordRead() {
+            currentFileRecords++;
+        }
+
+        private void recordSubmitted() {
+            positions.add(new RecordPosition(currentFile, currentFileRecords));
+        }
+
+        /**
+         * Called exactly once per submitted record. After a record failed, the output no longer matches the positions,
+         * so no further checkpoints are written and a resumed run starts from the last good one.
+         */
+        private void recordDone(boolean success) throws IOException {
+            lastPosition = positions.poll();
+            if (!success) {
+                failed = true;
             }
-        });
-        parser.parse();
-        jsonWriter.endArray();
-        System.out.println("Translated " + counter.get() + " entities");
+            if (!failed && ++recordsSinceCheckpoint >= checkpointInterval) {
+                write(false);
+            }
+        }
+
+        //The complete checkpoint is written after the output has been closed
+        private void write(boolean complete) throws IOException {
+            if (!complete) {
+                output.sync();
+            }
+            final List<String> finishedFiles = new ArrayList<>(resumedFiles);
+            String currentFileName = resumed != null ? resumed.getCurrentFile() : null;
+            long records = resumed != null ? resumed.getCurrentFileRecords() : 0;
+            synchronized (startedFiles) {
+                final int finishedCount = complete ? startedFiles.size() : lastPosition != null ? lastPosition.file : 0;
+                for (int i = 0; i < finishedCount; i++) {
+                    finishedFiles.add(directoryPath.relativize(startedFiles.get(i)).toString());
+                }
+                if (complete) {
+                    currentFileName = null;
+                    records = 0;
+                } else if (lastPosition != null) {
+                    currentFileName = directoryPath.relativize(startedFiles.get(lastPosition.file)).toString();
+                    records = lastPosition.records;
+                }
+            }
+            new TranslationCheckpoint(settings, finishedFiles, currentFileName, records, output.getByteCount(),
+                output.getEntityCount(), complete).write(checkpointPath);
+            recordsSinceCheckpoint = 0;
+        }
     }
 
-    private Entity toEntity(byte[] bytes) {
-        final OnestoreEntity.EntityProto entityProto = new OnestoreEntity.EntityProto();
-        ProtocolSource protocolSource = new ProtocolSource(bytes);
-        entityProto.merge(protocolSource);
-        return EntityTranslator.createFromPb(entityProto);
+    private static class RecordPosition {
+        private final int file;
+        //Records of the file up to and including this one
+        private final long records;
+
+        private RecordPosition(int file, long records) {
+            this.file = file;
+            this.records = records;
+        }
+    }
+
+    private static class EncodedEntity {
+        private final String kind;
+        private final String keyString;
+        private final String json;
+        //Only for columnar output, which encodes the entities on the writer thread
+        private final Entity entity;
+
+        private EncodedEntity(String kind, String keyString, String json, Entity entity) {
+            this.kind = kind;
+            this.keyString = keyString;
+            this.json = json;
+            this.entity = entity;
+        }
+    }
+
+    //Serializes entities into a buffer owned by one decoder thread
+    private static class EntityEncoder {
+        private final StringWriter buffer = new StringWriter();
+        private final JsonWriter jsonWriter = new JsonWriter(buffer);
+        private final EntityProtoJsonWriter entityJsonWriter = new EntityProtoJsonWriter(jsonWriter);
+
+        EntityEncoder(boolean indent, boolean compact, int keyCacheSize) {
+            if (indent) {
+                jsonWriter.setIndent(" ");
+            }
+            entityJsonWriter.setCompact(compact);
+            entityJsonWriter.setKeyCache(keyCacheSize, indent ? " " : null);
+            //Allows writing one top level value after the other
+            jsonWriter.setLenient(true);
+        }
+
+        String encode(OnestoreEntity.EntityProto entityProto, Key key) throws IOException {
+            buffer.getBuffer().setLength(0);
+            entityJsonWriter.serializeEntity(entityProto, key);
+            jsonWriter.flush();
+            return buffer.toString();
+        }
+
+        String keyToString(Key key) {
+            return entityJsonWriter.keyToString(key);
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,5 @@
 package com.crokoking.datastore.export.translator;
 
-import com.google.gson.stream.JsonReader;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -9,21 +8,35 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class ValidatorMain {
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Translator.DEFAULT_PROGRESS_INTERVAL_MILLIS);
+    private static final AtomicLong LAST_PROGRESS_NANOS = new AtomicLong(System.nanoTime());
+
     public static void main(String[] args) {
         final Option help = Option.builder().option("help").desc("Print help").build();
-        final Option input = Option.builder().option("input").hasArgs().desc("Input file").required().build();
+        final Option input = Option.builder().option("input").hasArgs().desc("Input file, may be gzip compressed").required().build();
+        final Option structureOnly = Option.builder().option("structureOnly").desc("Only check the JSON structure, keys and values are skipped without being decoded. Faster, but corrupt keys and values are not found").build();
+        final Option properties = Option.builder().option("properties").hasArgs().desc("Names of the properties that are read, the values of other properties are skipped. Defaults to all properties").build();
+        final Option threads = Option.builder().option("threads").hasArg().desc("Number of threads parsing chunks of the input in parallel. Defaults to 1").build();
+        final Option keyCacheSize = Option.builder().option("keyCacheSize").hasArg().desc("Number of parsed keys that are cached, 0 disables the cache. Not used with -structureOnly. Defaults to " + EntityJsonReader.DEFAULT_KEY_CACHE_SIZE).build();
 
         final Options options = new Options();
         options.addOption(help);
         options.addOption(input);
+        options.addOption(structureOnly);
+        options.addOption(properties);
+        options.addOption(threads);
+        options.addOption(keyCacheSize);
 
         final CommandLine commandLine;
         try {
@@ -50,25 +63,99 @@ public class ValidatorMain {
             return;
         }
 
-        try(FileReader fr = new FileReader(inputPath.toFile())) {
-            final BufferedReader bufferedReader = new BufferedReader(fr);
-            final JsonReader jsonReader = new JsonReader(bufferedReader);
-            runValidation(jsonReader);
+        int keyCacheEntries = EntityJsonReader.DEFAULT_KEY_CACHE_SIZE;
+        if (commandLine.hasOption(keyCacheSize)) {
+            try {
+                keyCacheEntries = Integer.parseInt(commandLine.getOptionValue(keyCacheSize));
+            } catch (NumberFormatException e) {
+                keyCacheEntries = -1;
+            }
+            if (keyCacheEntries < 0) {
+                System.err.println("Invalid value for keyCacheSize: " + commandLine.getOptionValue(keyCacheSize));
+                return;
+            }
+        }
+
+        int threadCount = 1;
+        if (commandLine.hasOption(threads)) {
+            try {
+                threadCount = Integer.parseInt(commandLine.getOptionValue(threads));
+            } catch (NumberFormatException e) {
+                threadCount = 0;
+            }
+            if (threadCount <= 0) {
+                System.err.println("Invalid value for threads: " + commandLine.getOptionValue(threads));
+                return;
+            }
+        }
+
+        final Set<String> projection = commandLine.hasOption(properties)
+            ? new HashSet<>(Arrays.asList(commandLine.getOptionValues(properties)))
+            : null;
+        try(BufferedReader bufferedReader = CompressedFiles.newReader(inputPath)) {
+            if (threadCount > 1) {
+                final ParallelEntityJsonReader parallelReader = new ParallelEntityJsonReader(bufferedReader, threadCount, keyCacheEntries);
+                parallelReader.setProjection(projection);
+                runParallelValidation(parallelReader, !commandLine.hasOption(structureOnly));
+            } else {
+                final EntityJsonReader entityJsonReader = new EntityJsonReader(bufferedReader, keyCacheEntries);
+                entityJsonReader.setProjection(projection);
+                runValidation(entityJsonReader, !commandLine.hasOption(structureOnly));
+            }
         } catch (IOException e) {
             e.printStackTrace(System.err);
         }
     }
 
-    private static void runValidation(JsonReader jsonReader) throws IOException {
+    private static void runValidation(EntityJsonReader entityJsonReader, boolean decode) throws IOException {
         final AtomicLong validated = new AtomicLong();
-        final EntityJsonReader entityJsonReader = new EntityJsonReader(jsonReader);
-        entityJsonReader.deserializeEntityArray(entity -> {
-            long cur = validated.incrementAndGet();
-            if (cur % 1000 == 0) {
+        if (decode) {
+            entityJsonReader.deserializeEntities(entity -> countValidated(validated));
+        } else {
+            //Only walks the structure, values are skipped without being decoded
+            entityJsonReader.visitEntities(new EntityVisitor() {
+                @Override
+                public void endEntity() {
+                    countValidated(validated);
+                }
+            });
+        }
+        System.out.println("Validated " + validated.get() + " entities");
+        if (decode) {
+            System.out.println("Key cache: " + entityJsonReader.getKeyCacheHits() + " hits, "
+                + entityJsonReader.getKeyCacheMisses() + " misses");
+        }
+    }
+
+    private static void runParallelValidation(ParallelEntityJsonReader parallelReader, boolean decode) throws IOException {
+        final AtomicLong validated = new AtomicLong();
+        if (decode) {
+            parallelReader.deserializeEntities(entity -> countValidated(validated));
+        } else {
+            parallelReader.visitEntities(() -> new EntityVisitor() {
+                @Override
+                public void endEntity() {
+                    countValidated(validated);
+                }
+            });
+        }
+        System.out.println("Validated " + validated.get() + " entities");
+        if (decode) {
+            System.out.println("Key cache: " + parallelReader.getKeyCacheHits() + " hits, "
+                + parallelReader.getKeyCacheMisses() + " misses");
+        }
+    }
+
+    private static void countValidated(AtomicLong validated) {
+        long cur = validated.incrementAndGet();
+        //Only looks at the clock every 1000 entities and prints at most one line per interval
+        if (cur % 1000 == 0) {
+            final long now = System.nanoTime();
+            final long last = LAST_PROGRESS_NANOS.get();
+            if (now - last >= PROGRESS_INTERVAL_NANOS && LAST_PROGRESS_NANOS.compareAndSet(last, now)) {
                 System.out.println("Validated " + cur + " entities");
             }
-        });
-        System.out.println("Validated " + validated.get() + " entities");
+        }
     }
 
     private static void printHelp(Options options) {
@@ -0,0 +1,53 @@
+package com.crokoking.datastore.export.translator;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class AsyncChannelOutputStreamTest {
+    @TempDir
+    Path tempDirectory;
+
+    @Test
+    public void testWrite() throws IOException {
+        final Path file = tempDirectory.resolve("output");
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final Random random = new Random(42);
+        try (AsyncChannelOutputStream outputStream = new AsyncChannelOutputStream(
+            FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE), 1024, 3)) {
+            for (int i = 0; i < 2000; i++) {
+                //Multi byte characters and surrogate pairs end up split across buffers
+                final String string = "entity " + i + " \u00e4\u20ac\ud83d\ude00 " + (char) ('a' + random.nextInt(26));
+                final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                Assertions.assertEquals(bytes.length, outputStream.writeUtf8(string));
+                expected.write(bytes);
+                if (i % 100 == 0) {
+                    final byte[] raw = new byte[random.nextInt(3000)];
+                    random.nextBytes(raw);
+                    outputStream.write(raw, 0, raw.length);
+                    outputStream.write(7);
+                    expected.write(raw);
+                    expected.write(7);
+                }
+                if (i == 1000) {
+                    outputStream.flush();
+                    Assertions.assertEquals(expected.size(), Files.size(file));
+                }
+            }
+            //An unpaired surrogate is replaced like String.getBytes does
+            final String unpaired = "x\ud83dy";
+            Assertions.assertEquals(unpaired.getBytes(StandardCharsets.UTF_8).length, outputStream.writeUtf8(unpaired));
+            expected.write(unpaired.getBytes(StandardCharsets.UTF_8));
+        }
+        Assertions.assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file));
+    }
+}
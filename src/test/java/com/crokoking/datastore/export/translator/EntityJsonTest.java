@@ -3,6 +3,7 @@ package com.crokoking.datastore.export.translator;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
@@ -12,6 +13,7 @@ import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestC
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import com.google.storage.onestore.v3.OnestoreEntity;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -22,11 +24,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EntityJsonTest {
 
@@ -60,6 +69,412 @@ public class EntityJsonTest {
         JsonReader jsonReader = new JsonReader(new InputStreamReader(byteArrayInputStream));
         EntityJsonReader entityJsonReader = new EntityJsonReader(jsonReader);
         final List<Entity> outputEntities = entityJsonReader.deserializeEntityArray();
+        assertEntities(inputEntities, outputEntities);
+    }
+
+    @Test
+    public void testNewlineDelimitedSerialization() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        OutputStreamWriter writer = new OutputStreamWriter(byteArrayOutputStream, StandardCharsets.UTF_8);
+        EntityJsonWriter entityJsonWriter = EntityJsonWriter.newlineDelimited(writer);
+        entityJsonWriter.serializeEntities(inputEntities);
+        writer.close();
+
+        final String output = new String(byteArrayOutputStream.toByteArray(), StandardCharsets.UTF_8);
+        final String[] lines = output.split("\n");
+        Assertions.assertEquals(inputEntities.size(), lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            final EntityJsonReader lineReader = new EntityJsonReader(new JsonReader(new StringReader(lines[i])));
+            Assertions.assertEquals(inputEntities.get(i).getKey(), lineReader.deserializeEntity().getKey());
+        }
+
+        final List<Entity> outputEntities = new ArrayList<>();
+        new EntityJsonReader(new StringReader(output)).deserializeEntities(outputEntities::add);
+        assertEntities(inputEntities, outputEntities);
+
+        //Lines are only read from the input itself
+        Assertions.assertThrows(IllegalStateException.class, () ->
+            new EntityJsonReader(new JsonReader(new StringReader(output))).deserializeEntities(entity -> {
+            }));
+    }
+
+    @Test
+    public void testStrictNewlineDelimited() throws IOException {
+        final StringWriter writer = new StringWriter();
+        final EntityJsonWriter entityJsonWriter = EntityJsonWriter.newlineDelimited(writer);
+        entityJsonWriter.setCompact(true);
+        entityJsonWriter.serializeEntities(Arrays.asList(new Entity(KeyFactory.createKey("Kind", 1L)), new Entity(KeyFactory.createKey("Kind", 2L))));
+        final String valid = writer.toString();
+        final String line = valid.substring(0, valid.indexOf('\n'));
+        for (String input : Arrays.asList(valid, "\n" + valid.replace("\n", "\r\n\n"))) {
+            final List<Entity> entities = new ArrayList<>();
+            new EntityJsonReader(new StringReader(input)).deserializeEntities(entities::add);
+            Assertions.assertEquals(2, entities.size());
+            entities.clear();
+            new ParallelEntityJsonReader(new StringReader(input), 2, 0).deserializeEntities(entities::add);
+            Assertions.assertEquals(2, entities.size());
+        }
+
+        final List<String> malformed = Arrays.asList(
+            line + " " + line,
+            line + "{}",
+            "/* comment */" + line,
+            line.replaceFirst("\"k\"", "k"),
+            line.replaceFirst("\"k\"", "'k'"),
+            "{\"extra\":NaN," + line.substring(1),
+            line.replaceFirst(",", ",\n"));
+        for (String input : malformed) {
+            Assertions.assertThrows(IOException.class, () -> new EntityJsonReader(new StringReader(input + "\n" + valid)).deserializeEntities(entity -> {
+            }), input);
+            Assertions.assertThrows(IOException.class, () -> new ParallelEntityJsonReader(new StringReader(input + "\n" + valid), 2, 0).deserializeEntities(entity -> {
+            }), input);
+            Assertions.assertThrows(IOException.class, () -> new ParallelEntityJsonReader(new StringReader(input + "\n" + valid), 2, 0).visitEntities(() -> new EntityVisitor() {
+            }), input);
+        }
+    }
+
+    @Test
+    public void testCompactSerialization() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+
+        final byte[] standard = serialize(inputEntities, false);
+        final byte[] compact = serialize(inputEntities, true);
+        Assertions.assertTrue(compact.length * 2 < standard.length);
+
+        JsonReader jsonReader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(compact), StandardCharsets.UTF_8));
+        final List<Entity> outputEntities = new EntityJsonReader(jsonReader).deserializeEntityArray();
+        assertEntities(inputEntities, outputEntities);
+    }
+
+    @Test
+    public void testKeyCache() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+        final byte[] serialized = serialize(inputEntities, false);
+
+        final EntityJsonReader cachingReader = new EntityJsonReader(new JsonReader(
+            new InputStreamReader(new ByteArrayInputStream(serialized), StandardCharsets.UTF_8)));
+        assertEntities(inputEntities, cachingReader.deserializeEntityArray());
+        Assertions.assertTrue(cachingReader.getKeyCacheHits() > 0);
+
+        final EntityJsonReader uncachedReader = new EntityJsonReader(new JsonReader(
+            new InputStreamReader(new ByteArrayInputStream(serialized), StandardCharsets.UTF_8)), 0);
+        assertEntities(inputEntities, uncachedReader.deserializeEntityArray());
+        Assertions.assertEquals(0, uncachedReader.getKeyCacheHits());
+        Assertions.assertEquals(cachingReader.getKeyCacheHits() + cachingReader.getKeyCacheMisses(), uncachedReader.getKeyCacheMisses());
+
+        final LruCache<String, String> cache = new LruCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals("1", cache.get("a"));
+        Assertions.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testVisitor() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+        int expectedProperties = 0;
+        for (Entity entity : inputEntities) {
+            expectedProperties += entity.getProperties().size();
+        }
+        for (boolean compact : new boolean[]{false, true}) {
+            final byte[] serialized = serialize(inputEntities, compact);
+            final List<String> keyStrings = new ArrayList<>();
+            final int[] counts = new int[3];
+            final EntityJsonReader entityJsonReader = new EntityJsonReader(new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(serialized), StandardCharsets.UTF_8)));
+            entityJsonReader.visitEntities(new EntityVisitor() {
+                private int embeddedDepth;
+
+                @Override
+                public void key(String keyString) {
+                    if (embeddedDepth == 0) {
+                        keyStrings.add(keyString);
+                    }
+                }
+
+                @Override
+                public void startProperty(String name, boolean unindexed) {
+                    if (embeddedDepth == 0) {
+                        counts[1]++;
+                    }
+                }
+
+                @Override
+                public void value(EntityValue value) throws IOException {
+                    if (Key.class.getSimpleName().equals(value.getValueClass())) {
+                        Assertions.assertNotNull(KeyFactory.stringToKey(value.readKeyString()));
+                        counts[2]++;
+                    }
+                }
+
+                @Override
+                public void startEmbeddedEntity() {
+                    embeddedDepth++;
+                }
+
+                @Override
+                public void endEmbeddedEntity() {
+                    embeddedDepth--;
+                }
+
+                @Override
+                public void endEntity() {
+                    counts[0]++;
+                }
+            });
+            Assertions.assertEquals(inputEntities.size(), counts[0]);
+            Assertions.assertEquals(expectedProperties, counts[1]);
+            Assertions.assertTrue(counts[2] > 0);
+            for (int i = 0; i < inputEntities.size(); i++) {
+                Assertions.assertEquals(inputEntities.get(i).getKey(), KeyFactory.stringToKey(keyStrings.get(i)));
+            }
+            //Nothing was decoded
+            Assertions.assertEquals(0, entityJsonReader.getKeyCacheHits() + entityJsonReader.getKeyCacheMisses());
+        }
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+        final Set<String> projection = new HashSet<>(Arrays.asList("long", "stringList", "embeddedEntityNoKey", "missing"));
+        for (boolean compact : new boolean[]{false, true}) {
+            final EntityJsonReader entityJsonReader = new EntityJsonReader(new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(serialize(inputEntities, compact)), StandardCharsets.UTF_8)));
+            entityJsonReader.setProjection(projection);
+            final List<Entity> outputEntities = new ArrayList<>();
+            entityJsonReader.deserializeEntities(outputEntities::add);
+            Assertions.assertEquals(inputEntities.size(), outputEntities.size());
+            for (int i = 0; i < inputEntities.size(); i++) {
+                final Entity expected = inputEntities.get(i).clone();
+                expected.getProperties().keySet().stream()
+                    .filter(name -> !projection.contains(name))
+                    .forEach(expected::removeProperty);
+                Assertions.assertEquals(expected.getKey(), outputEntities.get(i).getKey());
+                assertProperties(expected, outputEntities.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelReading() throws IOException {
+        final List<Entity> inputEntities = new ArrayList<>(generateTestEntities());
+        for (int i = 0; i < 50; i++) {
+            final Entity entity = new Entity(KeyFactory.createKey(KeyFactory.createKey("Parent", i % 3 + 1L), "Child", "name" + i));
+            //Brackets and quotes in strings must not end the entity
+            entity.setProperty("tricky", "}]{[\"\\\"" + i);
+            entity.setUnindexedProperty("text", new Text("\\\\"));
+            inputEntities.add(entity);
+        }
+        final byte[] array = serialize(inputEntities, false);
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        try (OutputStreamWriter writer = new OutputStreamWriter(lines, StandardCharsets.UTF_8)) {
+            final EntityJsonWriter entityJsonWriter = EntityJsonWriter.newlineDelimited(writer);
+            entityJsonWriter.setCompact(true);
+            entityJsonWriter.serializeEntities(inputEntities);
+        }
+        for (byte[] serialized : Arrays.asList(array, lines.toByteArray())) {
+            final ParallelEntityJsonReader parallelReader = new ParallelEntityJsonReader(
+                new InputStreamReader(new ByteArrayInputStream(serialized), StandardCharsets.UTF_8), 3, 100);
+            parallelReader.setChunkEntities(4);
+            final List<Entity> outputEntities = new ArrayList<>();
+            parallelReader.deserializeEntities(outputEntities::add);
+            assertEntities(inputEntities, outputEntities);
+            Assertions.assertTrue(parallelReader.getKeyCacheHits() > 0);
+
+            final AtomicLong visited = new AtomicLong();
+            new ParallelEntityJsonReader(new InputStreamReader(new ByteArrayInputStream(serialized), StandardCharsets.UTF_8), 3, 0)
+                .visitEntities(() -> new EntityVisitor() {
+                    @Override
+                    public void endEntity() {
+                        visited.incrementAndGet();
+                    }
+                });
+            Assertions.assertEquals(inputEntities.size(), visited.get());
+        }
+
+        final ParallelEntityJsonReader linesAsArray = new ParallelEntityJsonReader(
+            new InputStreamReader(new ByteArrayInputStream(lines.toByteArray()), StandardCharsets.UTF_8), 2, 0);
+        Assertions.assertThrows(IOException.class, () -> linesAsArray.deserializeEntityArray(entity -> {
+        }));
+        final ParallelEntityJsonReader missingComma = new ParallelEntityJsonReader(new StringReader("[{} {}]"), 2, 0);
+        Assertions.assertThrows(IOException.class, () -> missingComma.deserializeEntities(entity -> {
+        }));
+    }
+
+    @Test
+    public void testBinaryFormat() throws IOException {
+        final List<Entity> inputEntities = generateTestEntities();
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (EntityBinaryWriter writer = new EntityBinaryWriter(byteArrayOutputStream)) {
+            writer.serializeEntities(inputEntities);
+        }
+        final byte[] binary = byteArrayOutputStream.toByteArray();
+        Assertions.assertTrue(binary.length < serialize(inputEntities, true).length);
+
+        final List<Entity> outputEntities = new ArrayList<>();
+        new EntityBinaryReader(new ByteArrayInputStream(binary)).deserializeEntities(outputEntities::add);
+        assertEntities(inputEntities, outputEntities);
+
+        final int[] counts = new int[2];
+        final List<String> keyStrings = new ArrayList<>();
+        new EntityBinaryReader(new ByteArrayInputStream(binary)).visitEntities(new EntityVisitor() {
+            @Override
+            public void key(String keyString) {
+                if (keyStrings.size() == counts[0]) {
+                    keyStrings.add(keyString);
+                }
+            }
+
+            @Override
+            public void value(EntityValue value) throws IOException {
+                //Read every other value, the rest is skipped
+                if (counts[1]++ % 2 == 0) {
+                    value.read();
+                }
+            }
+
+            @Override
+            public void endEntity() {
+                counts[0]++;
+            }
+        });
+        Assertions.assertEquals(inputEntities.size(), counts[0]);
+        Assertions.assertTrue(counts[1] > 0);
+        for (int i = 0; i < inputEntities.size(); i++) {
+            Assertions.assertEquals(inputEntities.get(i).getKey(), KeyFactory.stringToKey(keyStrings.get(i)));
+        }
+
+        Assertions.assertThrows(IOException.class, () ->
+            new EntityBinaryReader(new ByteArrayInputStream(Arrays.copyOf(binary, binary.length - 1))).deserializeEntities(entity -> {
+            }));
+    }
+
+    @Test
+    public void testKeyCacheKeepsOutput() throws IOException {
+        final List<Entity> entities = generateTestEntities();
+        for (boolean compact : new boolean[]{false, true}) {
+            for (boolean indented : new boolean[]{false, true}) {
+                final String expected = serialize(entities, compact, indented, 0);
+                final StringWriter actual = new StringWriter();
+                final JsonWriter jsonWriter = new JsonWriter(actual);
+                if (indented) {
+                    jsonWriter.setIndent(" ");
+                }
+                final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
+                entityJsonWriter.setCompact(compact);
+                entityJsonWriter.setKeyCache(100, indented ? " " : null);
+                entityJsonWriter.serializeEntities(entities);
+                jsonWriter.flush();
+                Assertions.assertEquals(expected, actual.toString());
+                Assertions.assertTrue(entityJsonWriter.getKeyCacheHits() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testPropertyFieldOrder() throws IOException {
+        final Key key = KeyFactory.createKey("Kind", 1L);
+        final String prefix = "{\"k\":\"" + KeyFactory.keyToString(key) + "\",\"p\":[";
+        final Entity entity = new EntityJsonReader(new JsonReader(new StringReader(
+            prefix + "{\"n\":\"a\",\"u\":true,\"t\":\"s\",\"v\":\"x\"}]}"))).deserializeEntity();
+        Assertions.assertEquals(key, entity.getKey());
+        Assertions.assertEquals("x", entity.getProperty("a"));
+        Assertions.assertTrue(entity.isUnindexedProperty("a"));
+
+        //The property starts at its value, fields after it cannot be applied anymore
+        for (String property : Arrays.asList("{\"t\":\"s\",\"v\":\"x\",\"n\":\"a\"}", "{\"n\":\"a\",\"t\":\"s\",\"v\":\"x\",\"u\":true}")) {
+            final EntityJsonReader entityJsonReader = new EntityJsonReader(new JsonReader(new StringReader(prefix + property + "]}")));
+            final IllegalArgumentException exception = Assertions.assertThrows(IllegalArgumentException.class, entityJsonReader::deserializeEntity);
+            Assertions.assertTrue(exception.getMessage().contains("the value"), exception.getMessage());
+        }
+    }
+
+    private static String serialize(List<Entity> entities, boolean compact, boolean indented, int keyCacheSize) throws IOException {
+        final StringWriter output = new StringWriter();
+        final JsonWriter jsonWriter = new JsonWriter(output);
+        if (indented) {
+            jsonWriter.setIndent(" ");
+        }
+        final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
+        entityJsonWriter.setCompact(compact);
+        entityJsonWriter.setKeyCache(keyCacheSize, indented ? " " : null);
+        entityJsonWriter.serializeEntities(entities);
+        jsonWriter.flush();
+        return output.toString();
+    }
+
+    @Test
+    public void testProtoSerializationMatchesEntitySerialization() throws IOException {
+        final List<Entity> entities = new ArrayList<>(generateTestEntities());
+        final Entity edgeCases = new Entity(KeyFactory.createKey(KeyFactory.createKey("parent", "p"), "edgeCases", 5L));
+        edgeCases.setProperty("emptyList", new ArrayList<>());
+        edgeCases.setProperty("embeddedList", Arrays.asList(new EmbeddedEntity(), new EmbeddedEntity()));
+        edgeCases.setUnindexedProperty("mixed", Arrays.asList("a", 1L, null, new Text("t")));
+        entities.add(edgeCases);
+
+        for (Entity entity : entities) {
+            final OnestoreEntity.EntityProto entityProto = EntityTranslator.convertToPb(entity);
+            //Sub millisecond dates are truncated by the entity decoding
+            entityProto.addProperty().setName("preciseDate").setMeaning(OnestoreEntity.Property.Meaning.GD_WHEN)
+                .setMultiple(false).getMutableValue().setInt64Value(-1_500_001L);
+            for (boolean compact : new boolean[]{false, true}) {
+                for (int keyCacheSize : new int[]{0, 100}) {
+                    final StringWriter expected = new StringWriter();
+                    final JsonWriter expectedWriter = new JsonWriter(expected);
+                    final StringWriter actual = new StringWriter();
+                    final JsonWriter actualWriter = new JsonWriter(actual);
+                    if (!compact) {
+                        expectedWriter.setIndent(" ");
+                        actualWriter.setIndent(" ");
+                    }
+                    final EntityJsonWriter entityJsonWriter = new EntityJsonWriter(expectedWriter);
+                    entityJsonWriter.setCompact(compact);
+                    entityJsonWriter.serializeEntity(EntityTranslator.createFromPb(entityProto));
+                    final EntityProtoJsonWriter entityProtoJsonWriter = new EntityProtoJsonWriter(actualWriter);
+                    entityProtoJsonWriter.setCompact(compact);
+                    entityProtoJsonWriter.setKeyCache(keyCacheSize, compact ? null : " ");
+                    entityProtoJsonWriter.serializeEntity(entityProto);
+                    expectedWriter.flush();
+                    actualWriter.flush();
+                    Assertions.assertEquals(expected.toString(), actual.toString());
+                }
+            }
+            Assertions.assertEquals(entity.getKind(), EntityProtoJsonWriter.getKind(entityProto));
+        }
+
+        //Keys below the parent of the previous key are created from it
+        final DecodeContext decodeContext = new DecodeContext();
+        final Key root = KeyFactory.createKey("root", "r");
+        final Key parent = KeyFactory.createKey(root, "parent", 3L);
+        for (Key key : Arrays.asList(root, KeyFactory.createKey(parent, "child", 1L), KeyFactory.createKey(parent, "child", "two"),
+            KeyFactory.createKey(parent, "child", 3L), KeyFactory.createKey(root, "parent", 4L), KeyFactory.createKey(parent, "child", 5L))) {
+            Assertions.assertEquals(key, decodeContext.toKey(EntityTranslator.convertToPb(new Entity(key)).getKey()));
+        }
+        final OnestoreEntity.Reference otherApp = EntityTranslator.convertToPb(new Entity(KeyFactory.createKey(parent, "child", 6L))).getKey();
+        otherApp.setApp("s~other");
+        Assertions.assertEquals("s~other", decodeContext.toKey(otherApp).getAppId());
+        Assertions.assertEquals("s~other", decodeContext.toKey(otherApp).getParent().getAppId());
+    }
+
+    private static byte[] serialize(List<Entity> entities, boolean compact) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        JsonWriter jsonWriter = new JsonWriter(new OutputStreamWriter(byteArrayOutputStream, StandardCharsets.UTF_8));
+        if (!compact) {
+            jsonWriter.setIndent(" ");
+        }
+        EntityJsonWriter entityJsonWriter = new EntityJsonWriter(jsonWriter);
+        entityJsonWriter.setCompact(compact);
+        entityJsonWriter.serializeEntities(entities);
+        jsonWriter.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private void assertEntities(List<Entity> inputEntities, List<Entity> outputEntities) {
         assert outputEntities.size() == inputEntities.size();
         for (int i = 0; i < inputEntities.size(); i++) {
             final Entity inputEntity = inputEntities.get(i);
@@ -0,0 +1,139 @@
+package com.crokoking.datastore.export.translator;
+
+import org.iq80.leveldb.impl.LogWriter;
+import org.iq80.leveldb.impl.Logs;
+import org.iq80.leveldb.util.Slice;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+public class LevelDBLogParserTest {
+    private static final int FILES = 5;
+    private static final int RECORDS_PER_FILE = 3000;
+
+    @TempDir
+    Path exportDirectory;
+
+    @Test
+    public void testSequential() throws IOException {
+        final List<String> expected = writeExport();
+        Assertions.assertEquals(expected, parse(1, true));
+    }
+
+    @Test
+    public void testParallelOrdered() throws IOException {
+        final List<String> expected = writeExport();
+        Assertions.assertEquals(expected, parse(3, true));
+    }
+
+    @Test
+    public void testParallelUnordered() throws IOException {
+        final List<String> expected = writeExport();
+        final List<String> actual = parse(3, false);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        Assertions.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testKindDirectoriesSkippedWithMetadata() throws IOException {
+        final List<String> expected = writeExport();
+        writeMetadata();
+        expected.removeIf(record -> !record.startsWith("file1-") && !record.startsWith("file3-"));
+        final Predicate<String> kindFilter = kind -> kind.equals("Kind1") || kind.equals("Kind3");
+        Assertions.assertEquals(expected, parse(2, true, kindFilter));
+    }
+
+    @Test
+    public void testKindFilterIgnoredWithoutMetadata() throws IOException {
+        final List<String> expected = writeExport();
+        Assertions.assertEquals(expected, parse(1, true, kind -> false));
+    }
+
+    @Test
+    public void testStopOnFileError() throws IOException {
+        final List<String> expected = writeExport();
+        expected.removeIf(record -> record.startsWith("file" + (FILES - 1) + "-"));
+        final Path lastFile = exportDirectory.resolve("kind_Kind" + (FILES - 1)).resolve("output-" + (FILES - 1));
+        for (int threads : new int[]{1, 3}) {
+            for (boolean stopOnFileError : new boolean[]{false, true}) {
+                Files.copy(lastFile, exportDirectory.resolve("copy"));
+                final List<String> records = new ArrayList<>();
+                //The last file disappears after it was found, before it is opened
+                final LevelDBLogParser parser = new LevelDBLogParser(exportDirectory, (buffer, offset, length) -> {
+                    if (records.isEmpty()) {
+                        try {
+                            Files.delete(lastFile);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    records.add(toString(buffer, offset, length));
+                }, threads, true);
+                parser.setStopOnFileError(stopOnFileError);
+                if (stopOnFileError) {
+                    Assertions.assertThrows(IOException.class, parser::parse);
+                } else {
+                    parser.parse();
+                }
+                Assertions.assertEquals(expected, records);
+                Files.move(exportDirectory.resolve("copy"), lastFile);
+            }
+        }
+    }
+
+    private List<String> parse(int threads, boolean ordered) throws IOException {
+        return parse(threads, ordered, kind -> true);
+    }
+
+    private List<String> parse(int threads, boolean ordered, Predicate<String> kindFilter) throws IOException {
+        final List<String> records = new ArrayList<>();
+        final LevelDBLogParser parser = new LevelDBLogParser(exportDirectory,
+            (buffer, offset, length) -> records.add(toString(buffer, offset, length)), threads, ordered);
+        parser.setKindFilter(kindFilter);
+        parser.parse();
+        return records;
+    }
+
+    private static String toString(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer record = buffer.duplicate();
+        record.limit(offset + length).position(offset);
+        return StandardCharsets.UTF_8.decode(record).toString();
+    }
+
+    private void writeMetadata() throws IOException {
+        Files.createFile(exportDirectory.resolve("export.overall_export_metadata"));
+        for (int file = 0; file < FILES; file++) {
+            Files.createFile(exportDirectory.resolve("kind_Kind" + file).resolve("all_namespaces_kind_Kind" + file + ".export_metadata"));
+        }
+    }
+
+    private List<String> writeExport() throws IOException {
+        final List<String> records = new ArrayList<>();
+        for (int file = 0; file < FILES; file++) {
+            final Path kindDirectory = Files.createDirectories(exportDirectory.resolve("kind_Kind" + file));
+            final LogWriter logWriter = Logs.createLogWriter(kindDirectory.resolve("output-" + file).toFile(), file);
+            try {
+                for (int record = 0; record < RECORDS_PER_FILE; record++) {
+                    final String value = "file" + file + "-record" + record;
+                    records.add(value);
+                    logWriter.addRecord(new Slice(value.getBytes(StandardCharsets.UTF_8)), false);
+                }
+            } finally {
+                logWriter.close();
+            }
+        }
+        return records;
+    }
+}
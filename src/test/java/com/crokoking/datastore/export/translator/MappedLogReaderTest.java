@@ -0,0 +1,99 @@
+package com.crokoking.datastore.export.translator;
+
+import org.iq80.leveldb.impl.LogWriter;
+import org.iq80.leveldb.impl.Logs;
+import org.iq80.leveldb.util.Slice;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MappedLogReaderTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRecordsAcrossBlocksAndWindows() throws IOException {
+        final Random random = new Random(42);
+        final List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            //Mostly small records, some spanning several blocks
+            final byte[] record = new byte[i % 50 == 0 ? 100_000 + random.nextInt(1000) : random.nextInt(2000)];
+            random.nextBytes(record);
+            expected.add(record);
+        }
+        final Path file = writeLog(expected);
+        final List<byte[]> actual = read(file, MappedLogReader.BLOCK_SIZE * 2);
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertArrayEquals(expected.get(i), actual.get(i), "record " + i);
+        }
+        Assertions.assertEquals(expected.size(), read(file, MappedLogReader.DEFAULT_WINDOW_SIZE).size());
+    }
+
+    @Test
+    public void testCorruptedBlockSkipped() throws IOException {
+        final List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(new byte[1000]);
+        }
+        final Path file = writeLog(expected);
+        final byte[] content = Files.readAllBytes(file);
+        //Damages the data of the first record, the rest of the first block is dropped
+        content[MappedLogReader.HEADER_SIZE] ^= 1;
+        Files.write(file, content);
+        final List<byte[]> actual = read(file, MappedLogReader.DEFAULT_WINDOW_SIZE);
+        Assertions.assertTrue(actual.size() > 60 && actual.size() < expected.size(), "records read: " + actual.size());
+    }
+
+    @Test
+    public void testChunkChecksumMatchesLevelDB() {
+        final Random random = new Random(7);
+        for (int length : new int[]{0, 1, 7, 8, 9, 100, 1001}) {
+            final byte[] data = new byte[length + 3];
+            random.nextBytes(data);
+            final ByteBuffer littleEndian = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer bigEndian = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+            final int expected = Logs.getChunkChecksum(1, data, 3, length);
+            Assertions.assertEquals(expected, MappedLogReader.chunkChecksum(1, littleEndian, 3, length));
+            Assertions.assertEquals(expected, MappedLogReader.chunkChecksum(1, bigEndian, 3, length));
+        }
+    }
+
+    private Path writeLog(List<byte[]> records) throws IOException {
+        final Path file = directory.resolve("output-0");
+        final LogWriter logWriter = Logs.createLogWriter(file.toFile(), 0);
+        try {
+            for (byte[] record : records) {
+                logWriter.addRecord(new Slice(record), false);
+            }
+        } finally {
+            logWriter.close();
+        }
+        return file;
+    }
+
+    private static List<byte[]> read(Path file, int windowSize) throws IOException {
+        final List<byte[]> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            new MappedLogReader(channel, windowSize, true).read((buffer, offset, length) -> {
+                final ByteBuffer record = buffer.duplicate();
+                record.position(offset);
+                final byte[] bytes = new byte[length];
+                record.get(bytes);
+                records.add(bytes);
+            });
+        }
+        return records;
+    }
+}
@@ -0,0 +1,51 @@
+package com.crokoking.datastore.export.translator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGzipOutputStreamTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] data = new byte[100_000];
+        final Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            //Compressible, but not trivially
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed, executor, 4096, 3)) {
+            gzip.write(data, 0, 10);
+            gzip.write(data[10]);
+            gzip.write(data, 11, data.length - 11);
+        }
+        Assertions.assertTrue(compressed.size() < data.length);
+
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        Assertions.assertArrayEquals(data, decompressed.toByteArray());
+    }
+}
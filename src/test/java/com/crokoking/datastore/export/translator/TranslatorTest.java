@@ -0,0 +1,587 @@
+package com.crokoking.datastore.export.translator;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.storage.onestore.v3.OnestoreEntity;
+import org.iq80.leveldb.impl.LogWriter;
+import org.iq80.leveldb.impl.Logs;
+import org.iq80.leveldb.util.Slice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TranslatorTest {
+    private static final List<String> KINDS = Arrays.asList("KindA", "KindB", "KindC");
+    private static final int ENTITIES_PER_KIND = 500;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @TempDir
+    Path tempDirectory;
+
+    @BeforeEach
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testTranslate() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("output.json");
+        new Translator().translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+    }
+
+    @Test
+    public void testTranslateParallel() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("output.json");
+        final Translator translator = new Translator();
+        translator.setThreads(2);
+        translator.setDecoders(4);
+        translator.setQueueCapacity(16);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+    }
+
+    @Test
+    public void testTranslateNewlineDelimited() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("output.ndjson");
+        final Translator translator = new Translator();
+        translator.setNewlineDelimited(true);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected.size(), Files.readAllLines(output, StandardCharsets.UTF_8).size());
+        Assertions.assertEquals(expected, readOutput(output));
+    }
+
+    @Test
+    public void testTranslateCompressed() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("output.json.gz");
+        final Translator translator = new Translator();
+        translator.setCompressionThreads(2);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+    }
+
+    @Test
+    public void testIncludeExclude() throws IOException {
+        writeExport();
+        final Path output = tempDirectory.resolve("output.json");
+        new Translator().translate(exportDirectory(), output, Arrays.asList("KindA", "KindB"), Collections.singletonList("KindB"));
+        final List<Entity> entities = readOutput(output);
+        Assertions.assertEquals(ENTITIES_PER_KIND, entities.size());
+        for (Entity entity : entities) {
+            Assertions.assertEquals("KindA", entity.getKind());
+        }
+    }
+
+    @Test
+    public void testWhere() throws IOException {
+        final List<Entity> expected = new ArrayList<>();
+        for (Entity entity : writeExport()) {
+            final long index = (Long) entity.getProperty("index");
+            if (index <= 100 && !"KindC".equals(entity.getKind())
+                && ("parent3".equals(entity.getParent().getName()) || index == 7)) {
+                expected.add(entity);
+            }
+        }
+        final Path output = tempDirectory.resolve("output.json");
+        final Translator translator = new Translator();
+        translator.setWhere(EntityFilter.parse("index <= 100 and not __kind__ = 'KindC'"
+            + " AND (__key__ HAS ANCESTOR KEY('Parent', 'parent3') OR `text` == \"text 7\")"));
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+
+        final Entity entity = expected.get(0);
+        final OnestoreEntity.EntityProto entityProto = EntityTranslator.convertToPb(entity);
+        final String keyLiteral = "KEY('Parent', '" + entity.getParent().getName() + "', '" + entity.getKind() + "', " + entity.getKey().getId() + ")";
+        Assertions.assertTrue(EntityFilter.parse("__key__ = " + keyLiteral).test(entityProto));
+        Assertions.assertFalse(EntityFilter.parse("__key__ HAS ANCESTOR KEY('Parent', 1)").test(entityProto));
+        Assertions.assertTrue(EntityFilter.parse("missing = null OR index > 0.5").test(entityProto));
+        Assertions.assertFalse(EntityFilter.parse("missing = null OR index != " + entity.getProperty("index")).test(entityProto));
+        Assertions.assertTrue(EntityFilter.parse("__namespace__ = ''").test(entityProto));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> EntityFilter.parse("index >"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> EntityFilter.parse("index < KEY('Parent', 1)"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> EntityFilter.parse("(index = 1"));
+
+        //Backquoted keywords are property names
+        final Entity keywords = new Entity(KeyFactory.createKey("Keywords", 1L));
+        keywords.setProperty("not", 1L);
+        keywords.setProperty("and", 3L);
+        keywords.setProperty("key", null);
+        final OnestoreEntity.EntityProto keywordsProto = EntityTranslator.convertToPb(keywords);
+        Assertions.assertTrue(EntityFilter.parse("`not` = 1 AND `and` > 2").test(keywordsProto));
+        Assertions.assertFalse(EntityFilter.parse("NOT `not` = 1").test(keywordsProto));
+        Assertions.assertTrue(EntityFilter.parse("`key` = null").test(keywordsProto));
+        Assertions.assertFalse(EntityFilter.parse("`__kind__` = 'Keywords'").test(keywordsProto));
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        final List<Entity> expected = writeExport();
+        for (boolean newlineDelimited : new boolean[]{false, true}) {
+            final Path output = tempDirectory.resolve(newlineDelimited ? "output.ndjson" : "output.json");
+            final Translator translator = new Translator();
+            translator.setIndexed(true);
+            translator.setNewlineDelimited(newlineDelimited);
+            translator.setThreads(2);
+            translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+            try (EntityIndex index = EntityIndex.open(EntityIndex.indexPath(output))) {
+                Assertions.assertEquals(expected.size(), index.getEntryCount());
+                Assertions.assertEquals(KINDS, new ArrayList<>(index.getKindRanges().keySet()));
+                Assertions.assertEquals(ENTITIES_PER_KIND, index.getKindRanges().get("KindB").getEntityCount());
+                for (int i = 0; i < expected.size(); i += 37) {
+                    final Entity entity = expected.get(i);
+                    final Entity found = EntityJsonReader.lookup(output, index, KeyFactory.keyToString(entity.getKey()));
+                    Assertions.assertEquals(entity.getKey(), found.getKey());
+                    Assertions.assertEquals(entity.getProperties(), found.getProperties());
+                }
+                Assertions.assertNull(index.find(KeyFactory.keyToString(KeyFactory.createKey("KindA", 100_000L))));
+                Assertions.assertNull(index.find(""));
+            }
+        }
+
+        //Enough entries to spill sorted runs that are merged
+        final Path indexPath = tempDirectory.resolve("spilled.idx");
+        final EntityIndexWriter indexWriter = new EntityIndexWriter(indexPath, 100);
+        for (int i = 0; i < 1000; i++) {
+            final int number = (i * 7919) % 1000;
+            indexWriter.add("key" + number, "Kind", number * 10L, 10);
+        }
+        indexWriter.close();
+        try (EntityIndex index = EntityIndex.open(indexPath)) {
+            Assertions.assertEquals(1000, index.getEntryCount());
+            for (int number = 0; number < 1000; number++) {
+                Assertions.assertEquals(number * 10L, index.find("key" + number).getOffset());
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDirectory, "*.run")) {
+            Assertions.assertFalse(files.iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path complete = tempDirectory.resolve("complete.json");
+        final Translator checkpointed = new Translator();
+        checkpointed.setCheckpointed(true);
+        checkpointed.setCheckpointInterval(50);
+        checkpointed.translate(exportDirectory(), complete, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(complete));
+        final TranslationCheckpoint completeCheckpoint = TranslationCheckpoint.read(TranslationCheckpoint.checkpointPath(complete));
+        Assertions.assertTrue(completeCheckpoint.isComplete());
+        Assertions.assertEquals(KINDS.size(), completeCheckpoint.getFinishedFiles().size());
+
+        //An interrupted run that wrote part of the entity after the last checkpoint
+        final Path indexed = tempDirectory.resolve("indexed.json");
+        final Translator indexing = new Translator();
+        indexing.setIndexed(true);
+        indexing.translate(exportDirectory(), indexed, Collections.emptyList(), Collections.emptyList());
+        final int written = ENTITIES_PER_KIND + 100;
+        final EntityIndex.Entry last;
+        try (EntityIndex index = EntityIndex.open(EntityIndex.indexPath(indexed))) {
+            last = index.find(KeyFactory.keyToString(expected.get(written - 1).getKey()));
+        }
+        final Path output = tempDirectory.resolve("output.json");
+        final byte[] prefix = Arrays.copyOf(Files.readAllBytes(indexed), (int) (last.getOffset() + last.getLength()));
+        Files.write(output, prefix);
+        Files.write(output, ",\n {\"key\": {\"kind\"".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        new TranslationCheckpoint(completeCheckpoint.getSettings(), Collections.singletonList("all_namespaces/kind_KindA/output-0"),
+            "all_namespaces/kind_KindB/output-0", 100, prefix.length, written, false)
+            .write(TranslationCheckpoint.checkpointPath(output));
+
+        final Translator resuming = new Translator();
+        resuming.setResume(true);
+        resuming.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+        Assertions.assertArrayEquals(Files.readAllBytes(complete), Files.readAllBytes(output));
+        Assertions.assertTrue(TranslationCheckpoint.read(TranslationCheckpoint.checkpointPath(output)).isComplete());
+
+        //A complete run is not translated again, a run with other settings is not resumed
+        resuming.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertArrayEquals(Files.readAllBytes(complete), Files.readAllBytes(output));
+        resuming.setCompact(true);
+        Assertions.assertThrows(IllegalStateException.class, () ->
+            resuming.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList()));
+    }
+
+    @Test
+    public void testResumeAfterReadFailure() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("output.json");
+        //Found like an export file of KindB, but cannot be read
+        final Path unreadable = Files.createDirectory(exportDirectory().resolve("all_namespaces").resolve("kind_KindB").resolve("output-1"));
+        final Translator failing = new Translator();
+        failing.setCheckpointed(true);
+        failing.setCheckpointInterval(50);
+        failing.setDecoders(2);
+        final IOException thrown = Assertions.assertThrows(IOException.class, () ->
+            failing.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList()));
+        Assertions.assertTrue(thrown.getMessage().contains(unreadable.toString()), thrown.getMessage());
+        final TranslationCheckpoint checkpoint = TranslationCheckpoint.read(TranslationCheckpoint.checkpointPath(output));
+        Assertions.assertFalse(checkpoint.isComplete());
+        Assertions.assertTrue(checkpoint.getOutputEntities() > 0);
+        Assertions.assertFalse(checkpoint.getFinishedFiles().contains(exportDirectory().relativize(unreadable).toString()));
+
+        Files.delete(unreadable);
+
+        final Translator resuming = new Translator();
+        resuming.setResume(true);
+        resuming.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+        Assertions.assertEquals(expected, readOutput(output));
+        Assertions.assertTrue(TranslationCheckpoint.read(TranslationCheckpoint.checkpointPath(output)).isComplete());
+    }
+
+    @Test
+    public void testShardByKindWithRolling() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("shards");
+        final Translator translator = new Translator();
+        translator.setShardByKind(true);
+        translator.setMaxEntitiesPerFile(200);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+
+        final JsonObject manifest;
+        try (Reader reader = Files.newBufferedReader(output.resolve(ShardedOutput.MANIFEST_FILE_NAME), StandardCharsets.UTF_8)) {
+            manifest = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        Assertions.assertEquals(expected.size(), manifest.get("entities").getAsLong());
+        final JsonArray shards = manifest.getAsJsonArray("shards");
+        Assertions.assertEquals(KINDS.size() * 3, shards.size());
+        final List<Entity> actual = new ArrayList<>();
+        for (JsonElement element : shards) {
+            final JsonObject shard = element.getAsJsonObject();
+            final Path shardPath = output.resolve(shard.get("file").getAsString());
+            final List<Entity> entities = readOutput(shardPath);
+            Assertions.assertEquals(shard.get("entities").getAsLong(), entities.size());
+            Assertions.assertEquals(shard.get("bytes").getAsLong(), Files.size(shardPath));
+            for (Entity entity : entities) {
+                Assertions.assertEquals(shard.get("kind").getAsString(), entity.getKind());
+            }
+            actual.addAll(entities);
+        }
+        Assertions.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testShardedOutputLimitsOpenFiles() throws IOException {
+        final Path output = Files.createDirectories(tempDirectory.resolve("limited"));
+        final Map<String, List<String>> expected = new HashMap<>();
+        //Two writers with one open file each, KindA and KindC share a writer and take turns
+        try (ShardedOutput shardedOutput = new ShardedOutput(output, true, 0, 0, "ndjson",
+            path -> new EntityOutputFile(path, true, null, 0, 1024, 2))) {
+            shardedOutput.setMaxOpenFiles(2);
+            for (int i = 0; i < 30; i++) {
+                final String kind = KINDS.get(i % KINDS.size());
+                final String json = "{\"i\":" + i + "}";
+                expected.computeIfAbsent(kind, k -> new ArrayList<>()).add(json);
+                shardedOutput.write(kind, null, json);
+            }
+        }
+
+        final JsonObject manifest;
+        try (Reader reader = Files.newBufferedReader(output.resolve(ShardedOutput.MANIFEST_FILE_NAME), StandardCharsets.UTF_8)) {
+            manifest = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        final Map<String, List<String>> actual = new HashMap<>();
+        final Map<String, Integer> files = new HashMap<>();
+        for (JsonElement element : manifest.getAsJsonArray("shards")) {
+            final JsonObject shard = element.getAsJsonObject();
+            final String kind = shard.get("kind").getAsString();
+            actual.computeIfAbsent(kind, k -> new ArrayList<>())
+                .addAll(Files.readAllLines(output.resolve(shard.get("file").getAsString()), StandardCharsets.UTF_8));
+            files.merge(kind, 1, Integer::sum);
+        }
+        Assertions.assertEquals(expected, actual);
+        Assertions.assertEquals(10, (int) files.get("KindA"));
+        Assertions.assertEquals(1, (int) files.get("KindB"));
+        Assertions.assertEquals(10, (int) files.get("KindC"));
+    }
+
+    @Test
+    public void testColumnar() throws IOException {
+        final List<Entity> expected = writeExport();
+        final Path output = tempDirectory.resolve("columns");
+        final Translator translator = new Translator();
+        translator.setColumnar(true);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.emptyList());
+
+        final ColumnarReader reader = ColumnarReader.open(output);
+        Assertions.assertEquals(KINDS, reader.getKinds());
+        final List<Object> keys = reader.readColumn("KindB", ColumnarOutput.KEY_COLUMN);
+        final List<Object> indexes = reader.readColumn("KindB", "index");
+        final List<Object> texts = reader.readColumn("KindB", "text");
+        Assertions.assertEquals(ENTITIES_PER_KIND, reader.getRowCount("KindB"));
+        final List<Entity> kindEntities = expected.subList(ENTITIES_PER_KIND, 2 * ENTITIES_PER_KIND);
+        for (int i = 0; i < ENTITIES_PER_KIND; i++) {
+            Assertions.assertEquals(kindEntities.get(i).getKey(), keys.get(i));
+            Assertions.assertEquals(kindEntities.get(i).getProperty("index"), indexes.get(i));
+            Assertions.assertEquals(kindEntities.get(i).getProperty("text"), texts.get(i));
+        }
+
+        //Several row groups, a property that only appears later and values of every encoding
+        final Path direct = tempDirectory.resolve("direct");
+        Files.createDirectories(direct);
+        final int rows = ColumnarOutput.ROW_GROUP_SIZE * 2 + 10;
+        final List<Entity> entities = new ArrayList<>();
+        try (ColumnarOutput columnarOutput = new ColumnarOutput(direct)) {
+            for (int i = 0; i < rows; i++) {
+                final Entity entity = new Entity(KeyFactory.createKey("Row", i + 1L));
+                entity.setProperty("state", i % 3 == 0 ? "open" : "closed");
+                entity.setProperty("flag", i % 2 == 0);
+                entity.setProperty("created", new Date(1_600_000_000_000L + i * 1000L));
+                entity.setProperty("tags", i % 5 == 0 ? null : Arrays.asList("a" + i, "b"));
+                if (i >= ColumnarOutput.ROW_GROUP_SIZE) {
+                    entity.setProperty("late", i % 2 == 0 ? (Object) (double) i : KeyFactory.createKey("Other", "o" + i));
+                }
+                entities.add(entity);
+                columnarOutput.write("Row", entity);
+            }
+        }
+        final ColumnarReader directReader = ColumnarReader.open(direct);
+        final Map<String, ColumnarReader.Column> columns = new HashMap<>();
+        for (ColumnarReader.Column column : directReader.getColumns("Row")) {
+            columns.put(column.getName(), column);
+        }
+        Assertions.assertTrue(columns.get("tags").isRepeated());
+        Assertions.assertTrue(columns.get("tags").isNullable());
+        Assertions.assertEquals(Collections.singletonList("String"), columns.get("tags").getTypes());
+        Assertions.assertFalse(columns.get("flag").isNullable());
+        Assertions.assertTrue(columns.get("late").isNullable());
+        Assertions.assertEquals(Arrays.asList("Double", "Key"), columns.get("late").getTypes());
+        for (String property : Arrays.asList("state", "flag", "created", "tags", "late")) {
+            final List<Object> values = directReader.readColumn("Row", property);
+            Assertions.assertEquals(rows, values.size());
+            for (int i = 0; i < rows; i++) {
+                Assertions.assertEquals(entities.get(i).getProperty(property), values.get(i), property + " " + i);
+            }
+        }
+        Assertions.assertTrue(Files.size(direct.resolve("Row").resolve("c1.col")) < rows);
+
+        //More kinds than fit into the buffer, row groups are written before they are full
+        final Path manyKinds = tempDirectory.resolve("manyKinds");
+        Files.createDirectories(manyKinds);
+        final int kindCount = ColumnarOutput.MAX_BUFFERED_ROWS / ColumnarOutput.ROW_GROUP_SIZE * 2;
+        try (ColumnarOutput columnarOutput = new ColumnarOutput(manyKinds)) {
+            for (int i = 0; i < ColumnarOutput.ROW_GROUP_SIZE - 1; i++) {
+                for (int kind = 0; kind < kindCount; kind++) {
+                    final Entity entity = new Entity(KeyFactory.createKey("Kind" + kind, i + 1L));
+                    entity.setProperty("index", (long) i);
+                    columnarOutput.write("Kind" + kind, entity);
+                }
+            }
+        }
+        final ColumnarReader manyKindsReader = ColumnarReader.open(manyKinds);
+        for (int kind = 0; kind < kindCount; kind++) {
+            final List<Object> kindIndexes = manyKindsReader.readColumn("Kind" + kind, "index");
+            Assertions.assertEquals(ColumnarOutput.ROW_GROUP_SIZE - 1, kindIndexes.size());
+            for (int i = 0; i < kindIndexes.size(); i++) {
+                Assertions.assertEquals((long) i, kindIndexes.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSummary() throws IOException, MalformedObjectNameException {
+        writeExport();
+        //Corrupts a record of KindB, the rest of its block is skipped
+        final Path corrupted = exportDirectory().resolve("all_namespaces").resolve("kind_KindB").resolve("output-0");
+        final byte[] bytes = Files.readAllBytes(corrupted);
+        bytes[1000] ^= 0x55;
+        Files.write(corrupted, bytes);
+
+        final Path output = tempDirectory.resolve("output.json");
+        final Path summary = tempDirectory.resolve("summary.json");
+        final Translator translator = new Translator();
+        translator.setDecoders(2);
+        translator.setSummaryPath(summary);
+        translator.translate(exportDirectory(), output, Collections.emptyList(), Collections.singletonList("KindC"));
+
+        final JsonObject metrics;
+        try (Reader reader = Files.newBufferedReader(summary, StandardCharsets.UTF_8)) {
+            metrics = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        final long written = metrics.get("entitiesWritten").getAsLong();
+        Assertions.assertEquals(readOutput(output).size(), written);
+        Assertions.assertTrue(metrics.get("corruptionEvents").getAsLong() >= 1);
+        final JsonObject kinds = metrics.getAsJsonObject("kinds");
+        Assertions.assertEquals(ENTITIES_PER_KIND, kinds.getAsJsonObject("KindA").get("entities").getAsLong());
+        Assertions.assertTrue(kinds.getAsJsonObject("KindB").get("entities").getAsLong() < ENTITIES_PER_KIND);
+        Assertions.assertFalse(kinds.has("KindC"));
+        Assertions.assertEquals(written, metrics.get("recordsDecoded").getAsLong());
+        Assertions.assertEquals(metrics.get("recordsRead").getAsLong(), written + ENTITIES_PER_KIND);
+        //Both count the bytes of the files, so a complete run reads the whole input
+        Assertions.assertEquals(metrics.get("totalInputBytes").getAsLong(), metrics.get("bytesRead").getAsLong());
+        //The metrics are only registered while the translation runs
+        Assertions.assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+            new ObjectName("com.crokoking.datastore.export.translator:type=Translation,*"), null).isEmpty());
+    }
+
+    @Test
+    public void testGeneratedExport() throws IOException {
+        final ExportGenerator generator = new ExportGenerator();
+        generator.addKind("Wide", ExportGenerator.Shape.WIDE, 3);
+        generator.addKind("Blob", ExportGenerator.Shape.BLOB_HEAVY, 1);
+        generator.addKind("Ancestor", ExportGenerator.Shape.DEEP_ANCESTOR, 1);
+        generator.setEntityCount(300);
+        generator.setMaxFileBytes(64 * 1024);
+        Assertions.assertEquals(300, generator.generate(exportDirectory()));
+        final Path blobDirectory = exportDirectory().resolve("all_namespaces").resolve("kind_Blob");
+        Assertions.assertTrue(Files.exists(blobDirectory.resolve("output-1")));
+        Assertions.assertEquals("Blob", ExportMetadata.getKind(blobDirectory));
+
+        //The same settings write the same export
+        final Path second = tempDirectory.resolve("second");
+        generator.generate(second);
+        Assertions.assertArrayEquals(Files.readAllBytes(blobDirectory.resolve("output-0")),
+            Files.readAllBytes(second.resolve("all_namespaces").resolve("kind_Blob").resolve("output-0")));
+
+        final Path output = tempDirectory.resolve("output.json");
+        new Translator().translate(exportDirectory(), output, Collections.emptyList(), Collections.singletonList("Wide"));
+        final List<Entity> entities = readOutput(output);
+        Assertions.assertFalse(entities.isEmpty());
+        Assertions.assertTrue(entities.size() < 300);
+        for (Entity entity : entities) {
+            Assertions.assertTrue(Arrays.asList("Blob", "Ancestor").contains(entity.getKind()), entity.getKind());
+        }
+    }
+
+    @Test
+    public void testPipelineStopsOnWriteFailure() {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        final TranslationPipeline<Integer> pipeline = new TranslationPipeline<>(2, 8, (buffer, offset, length) -> {
+            if (length == 3) {
+                throw new IllegalArgumentException("Cannot decode");
+            }
+            return length;
+        });
+        final IOException thrown = Assertions.assertThrows(IOException.class, () -> {
+            try {
+                pipeline.start(encoded -> {
+                    if (written.size() == 5) {
+                        throw new IOException("Disk full");
+                    }
+                    written.add(encoded);
+                });
+                for (int i = 0; i < 1000; i++) {
+                    pipeline.submit(ByteBuffer.allocate(0), 0, i);
+                }
+                pipeline.finish();
+            } catch (UncheckedIOException e) {
+                //Submitting stops once the failure is seen, finish() reports it
+                pipeline.finish();
+            } finally {
+                pipeline.close();
+            }
+        });
+        Assertions.assertEquals("Disk full", thrown.getMessage());
+        Assertions.assertEquals(Arrays.asList(0, 1, 2, 4, 5), written);
+        Assertions.assertEquals(1, pipeline.getDecodeFailures());
+    }
+
+    @Test
+    public void testReadKindFromProtoBytes() {
+        final Entity entity = new Entity(KeyFactory.createKey(KeyFactory.createKey("Parent", 1L), "Child", "name"));
+        entity.setProperty("kind", "NotTheKind");
+        final byte[] bytes = EntityTranslator.convertToPb(entity).toByteArray();
+        Assertions.assertEquals("Child", EntityProtoKindReader.readKind(bytes));
+        Assertions.assertNull(EntityProtoKindReader.readKind(Arrays.copyOf(bytes, 5)));
+    }
+
+    @Test
+    public void testDecodeContextReuse() {
+        final Entity large = new Entity(KeyFactory.createKey("Large", 1L));
+        large.setUnindexedProperty("text", new Text(String.join("", Collections.nCopies(5000, "large "))));
+        large.setProperty("list", Arrays.asList(1L, 2L, 3L));
+        final Entity small = new Entity(KeyFactory.createKey("Small", "name"));
+        small.setProperty("value", true);
+        final byte[] largeBytes = EntityTranslator.convertToPb(large).toByteArray();
+        final byte[] smallBytes = EntityTranslator.convertToPb(small).toByteArray();
+        //Both records in one direct buffer, as they would be in a mapped file
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(largeBytes.length + smallBytes.length + 3);
+        buffer.position(3);
+        buffer.put(largeBytes).put(smallBytes);
+
+        final DecodeContext context = new DecodeContext();
+        for (int i = 0; i < 2; i++) {
+            Assertions.assertEquals(large.getProperties(), context.toEntity(buffer, 3, largeBytes.length).getProperties());
+            Assertions.assertEquals(small.getProperties(), context.toEntity(buffer, 3 + largeBytes.length, smallBytes.length).getProperties());
+            Assertions.assertEquals(small.getKey(), context.toEntity(ByteBuffer.wrap(smallBytes), 0, smallBytes.length).getKey());
+        }
+        Assertions.assertEquals("Small", EntityProtoKindReader.readKind(buffer, 3 + largeBytes.length, smallBytes.length));
+    }
+
+    private Path exportDirectory() {
+        return tempDirectory.resolve("export");
+    }
+
+    //Writes one output file per kind, in the same layout as a Datastore export
+    private List<Entity> writeExport() throws IOException {
+        final List<Entity> entities = new ArrayList<>();
+        for (int kindIndex = 0; kindIndex < KINDS.size(); kindIndex++) {
+            final String kind = KINDS.get(kindIndex);
+            final Path kindDirectory = Files.createDirectories(exportDirectory().resolve("all_namespaces").resolve("kind_" + kind));
+            final LogWriter logWriter = Logs.createLogWriter(kindDirectory.resolve("output-0").toFile(), kindIndex);
+            try {
+                for (int i = 1; i <= ENTITIES_PER_KIND; i++) {
+                    final Entity entity = new Entity(KeyFactory.createKey(KeyFactory.createKey("Parent", "parent" + (i % 7)), kind, i));
+                    entity.setProperty("name", kind + i);
+                    entity.setProperty("index", (long) i);
+                    entity.setUnindexedProperty("text", new Text("text " + i));
+                    entities.add(entity);
+                    logWriter.addRecord(new Slice(EntityTranslator.convertToPb(entity).toByteArray()), false);
+                }
+            } finally {
+                logWriter.close();
+            }
+        }
+        return entities;
+    }
+
+    private static List<Entity> readOutput(Path output) throws IOException {
+        try (Reader reader = CompressedFiles.newReader(output)) {
+            final List<Entity> entities = new ArrayList<>();
+            new EntityJsonReader(reader).deserializeEntities(entities::add);
+            return entities;
+        }
+    }
+}